@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Small benchmark harness used in place of JMH, since the project has no build tool to pull it in.
+ * Each operation is run repeatedly for a warm-up period so the JIT settles, then timed for a measurement
+ * period. Results are passed to a volatile sink so the JIT cannot discard the work.
+ * With --json=<file>, the results so far are also written to the file as JSON after each operation, along
+ * with the JVM and machine they were measured on, so runs can be compared across releases.
+ */
+public class Bench {
+    public static final long DEFAULT_WARMUP_MILLIS = 2000;
+    public static final long DEFAULT_MEASURE_MILLIS = 3000;
+
+    static volatile Object sink;
+
+    final String benchmark;
+    final long warmupMillis;
+    final long measureMillis;
+    final List<Result> results = new ArrayList<Result>();
+    // Kept so results still reach the console if a benchmark silences System.out for the code it measures.
+    final PrintStream console = System.out;
+    Path jsonFile;
+    String label;
+
+    public Bench(long warmupMillis, long measureMillis) {
+        this("benchmark", warmupMillis, measureMillis);
+    }
+
+    public Bench(String benchmark, long warmupMillis, long measureMillis) {
+        this.benchmark = benchmark;
+        this.warmupMillis = warmupMillis;
+        this.measureMillis = measureMillis;
+    }
+
+    /**
+     * Reads --warmup=<ms>, --measure=<ms>, --json=<file> and --label=<text> from the command line. The label,
+     * such as a commit, is recorded in the JSON to tell runs apart.
+     * @param args The command line arguments.
+     * @return A harness using the given periods, named after the calling benchmark.
+     */
+    public static Bench fromArgs(String[] args) {
+        long warmup = DEFAULT_WARMUP_MILLIS;
+        long measure = DEFAULT_MEASURE_MILLIS;
+        Path jsonFile = null;
+        String label = null;
+        for (String arg : args) {
+            try {
+                if (arg.startsWith("--warmup=")) {
+                    warmup = Long.parseLong(arg.substring("--warmup=".length()));
+                } else if (arg.startsWith("--measure=")) {
+                    measure = Long.parseLong(arg.substring("--measure=".length()));
+                } else if (arg.startsWith("--json=")) {
+                    jsonFile = Paths.get(arg.substring("--json=".length()));
+                } else if (arg.startsWith("--label=")) {
+                    label = arg.substring("--label=".length());
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring invalid option " + arg);
+            }
+        }
+        String benchmark = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE).getCallerClass()
+                .getSimpleName();
+        Bench bench = new Bench(benchmark, warmup, measure);
+        bench.jsonFile = jsonFile;
+        bench.label = label;
+        return bench;
+    }
+
+    /**
+     * Reads an integer option such as --chats=<count> from the command line.
+     * @param args The command line arguments.
+     * @param name The option name, without the leading dashes.
+     * @param defaultValue The value to use if the option is missing or invalid.
+     * @return The option's value.
+     */
+    public static int intOption(String[] args, String name, int defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                try {
+                    return Integer.parseInt(arg.substring(prefix.length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring invalid option " + arg);
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Reads a text option such as --db-url=<url> from the command line.
+     * @return The option's value, or null if it is missing.
+     */
+    public static String stringOption(String[] args, String name) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return null;
+    }
+
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    /**
+     * Warms up and then times an operation, printing and recording the result.
+     * @param name The name to report the operation under.
+     * @param operation The operation to time.
+     * @return The measured result.
+     */
+    public Result run(String name, Operation operation) throws Exception {
+        loop(operation, warmupMillis);
+        long start = System.nanoTime();
+        long operations = loop(operation, measureMillis);
+        long elapsed = System.nanoTime() - start;
+        Result result = new Result(name, operations, elapsed);
+        results.add(result);
+        console.println(result);
+        if (jsonFile != null) {
+            writeJson();
+        }
+        return result;
+    }
+
+    /**
+     * Writes the results so far to the JSON file, replacing what was there.
+     */
+    private void writeJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"benchmark\": ").append(quote(benchmark));
+        json.append(",\n  \"label\": ").append(label == null ? "null" : quote(label));
+        json.append(",\n  \"timestamp\": ").append(quote(Instant.now().toString()));
+        json.append(",\n  \"java\": ").append(quote(System.getProperty("java.vm.name") + " "
+                + System.getProperty("java.version")));
+        json.append(",\n  \"os\": ").append(quote(System.getProperty("os.name") + " "
+                + System.getProperty("os.arch")));
+        json.append(",\n  \"processors\": ").append(Runtime.getRuntime().availableProcessors());
+        json.append(",\n  \"warmupMillis\": ").append(warmupMillis);
+        json.append(",\n  \"measureMillis\": ").append(measureMillis);
+        json.append(",\n  \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"name\": ").append(quote(result.name));
+            json.append(", \"operations\": ").append(result.operations);
+            json.append(", \"elapsedNanos\": ").append(result.elapsedNanos);
+            json.append(String.format(Locale.ROOT, ", \"opsPerSecond\": %.3f", result.getOperationsPerSecond()));
+            json.append(String.format(Locale.ROOT, ", \"nanosPerOp\": %.3f}", result.getNanosPerOperation()));
+        }
+        json.append("\n  ]\n}\n");
+        try {
+            Path parent = jsonFile.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Files.write(jsonFile, json.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Failed to write results to " + jsonFile + ". " + e.getMessage());
+        }
+    }
+
+    static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static long loop(Operation operation, long millis) throws Exception {
+        long deadline = System.nanoTime() + millis * 1000000L;
+        long operations = 0;
+        // Check the clock every few calls so that timing overhead stays small for fast operations.
+        do {
+            for (int i = 0; i < 64; i++) {
+                sink = operation.run();
+            }
+            operations += 64;
+        } while (System.nanoTime() < deadline);
+        return operations;
+    }
+
+    public List<Result> getResults() {
+        return results;
+    }
+
+    public static class Result {
+        final String name;
+        final long operations;
+        final long elapsedNanos;
+
+        Result(String name, long operations, long elapsedNanos) {
+            this.name = name;
+            this.operations = operations;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getOperationsPerSecond() {
+            return operations * 1e9 / elapsedNanos;
+        }
+
+        public double getNanosPerOperation() {
+            return (double) elapsedNanos / operations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-40s %14.1f ops/s %12.1f ns/op", name, getOperationsPerSecond(),
+                    getNanosPerOperation());
+        }
+    }
+}
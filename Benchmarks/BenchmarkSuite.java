@@ -0,0 +1,64 @@
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks one after another in this JVM, writing each one's results to <results dir>/<name>.json.
+ * Other options, such as --warmup and --measure, are passed on to every benchmark.
+ * Usage: java BenchmarkSuite [--results=<dir>] [--only=<name>,<name>...] [benchmark options]
+ */
+public class BenchmarkSuite {
+    public static final String DEFAULT_RESULTS = "Benchmarks/results";
+
+    interface Benchmark {
+        void run(String[] args) throws Exception;
+    }
+
+    static final Map<String, Benchmark> BENCHMARKS = new LinkedHashMap<String, Benchmark>();
+    static {
+        BENCHMARKS.put("CryptoBenchmark", CryptoBenchmark::main);
+        BENCHMARKS.put("EnvelopeBenchmark", EnvelopeBenchmark::main);
+        BENCHMARKS.put("ChallengeBenchmark", ChallengeBenchmark::main);
+        BENCHMARKS.put("KeyringBenchmark", KeyringBenchmark::main);
+        BENCHMARKS.put("ProtocolBenchmark", ProtocolBenchmark::main);
+        BENCHMARKS.put("PersistenceBenchmark", PersistenceBenchmark::main);
+        BENCHMARKS.put("BroadcastBenchmark", BroadcastBenchmark::main);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String results = DEFAULT_RESULTS;
+        List<String> only = null;
+        List<String> passedOn = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("--results=")) {
+                results = arg.substring("--results=".length());
+            } else if (arg.startsWith("--only=")) {
+                only = Arrays.asList(arg.substring("--only=".length()).split(","));
+            } else {
+                passedOn.add(arg);
+            }
+        }
+        if (only != null) {
+            for (String name : only) {
+                if (!BENCHMARKS.containsKey(name)) {
+                    System.err.println("Unknown benchmark " + name + "! Choose from " + BENCHMARKS.keySet() + ".");
+                    return;
+                }
+            }
+        }
+
+        for (Map.Entry<String, Benchmark> benchmark : BENCHMARKS.entrySet()) {
+            if (only != null && !only.contains(benchmark.getKey())) {
+                continue;
+            }
+            System.out.println("== " + benchmark.getKey());
+            List<String> benchmarkArgs = new ArrayList<String>(passedOn);
+            benchmarkArgs.add("--json=" + Paths.get(results, benchmark.getKey() + ".json"));
+            benchmark.getValue().run(benchmarkArgs.toArray(new String[0]));
+        }
+        System.out.println("Results written to " + results + ".");
+    }
+}
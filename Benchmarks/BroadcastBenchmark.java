@@ -0,0 +1,101 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import Shared.Frame;
+import Shared.HandleMode;
+
+/**
+ * Measures relaying one chat message to every other member of its room, from the sender's handler receiving
+ * the frame to each member's connection being handed it, for rooms of different sizes. Members are either
+ * all in single-chat mode, who get the frame as sent, or all in multi-chat sessions, who share one tagged copy.
+ * Lines are journalled with immediate durability into InMemoryDatabase, so the relay does not wait on a commit.
+ * The handlers' console logging is silenced while measuring.
+ * Usage: java BroadcastBenchmark [--warmup=<ms>] [--measure=<ms>]
+ */
+public class BroadcastBenchmark {
+    static final int[] ROOM_SIZES = { 1, 10, 100, 1000 };
+    static final int CHAT_ID = 1;
+
+    /**
+     * A connection that only counts what it is handed.
+     */
+    static class CountingConnection implements ClientConnection {
+        long delivered;
+
+        @Override
+        public void send(Frame frame) {
+        }
+
+        @Override
+        public void deliver(Frame message) {
+            delivered++;
+        }
+
+        @Override
+        public void startBinaryFraming() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "benchmark";
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = Bench.fromArgs(args);
+        ChatStore chatStore = new InMemoryDatabase(10000).newDBUtils();
+        ClientHandler.chatRooms = new ChatRoomRegistry();
+        ClientHandler.chatLineWriter = new ChatLineWriter(chatStore, null, Durability.IMMEDIATE, 256, 5, 65536);
+        ClientHandler.chatLineWriter.start();
+        // Each message arrives as a new frame, so its conversions are not cached between messages.
+        byte[] message = new byte[157];
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (HandleMode memberMode : new HandleMode[] { HandleMode.CHAT, HandleMode.SESSION }) {
+                for (int size : ROOM_SIZES) {
+                    ClientHandler sender = member(chatStore, HandleMode.CHAT);
+                    List<ClientHandler> members = new ArrayList<ClientHandler>();
+                    for (int i = 0; i < size; i++) {
+                        members.add(member(chatStore, memberMode));
+                    }
+                    String name = "broadcast/" + memberMode.name().toLowerCase() + "/" + size;
+                    bench.run(name, () -> {
+                        sender.handleFrame(Frame.data(message));
+                        return sender;
+                    });
+                    ClientHandler.chatRooms.leave(CHAT_ID, sender);
+                    for (ClientHandler member : members) {
+                        ClientHandler.chatRooms.leave(CHAT_ID, member);
+                    }
+                }
+            }
+        } finally {
+            System.setOut(console);
+            ClientHandler.chatLineWriter.close();
+        }
+    }
+
+    /**
+     * @return A handler in the benchmark's chat, as if it had passed the challenge.
+     */
+    private static ClientHandler member(ChatStore chatStore, HandleMode handleMode) {
+        ClientHandler handler = new ClientHandler(new CountingConnection(), chatStore);
+        handler.binaryFraming = true;
+        handler.handleMode = handleMode;
+        if (handleMode == HandleMode.SESSION) {
+            handler.sessionChats.add(CHAT_ID);
+        } else {
+            handler.currentChat = CHAT_ID;
+        }
+        ClientHandler.chatRooms.join(CHAT_ID, handler);
+        return handler;
+    }
+}
@@ -0,0 +1,56 @@
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import Shared.KeyUtils;
+
+/**
+ * Compares the work done to let a client into a chat: the legacy challenge, with a new SecureRandom per
+ * challenge and the challenge encrypted with the chat's RSA private key, against signed challenges checked
+ * with a chat's cached verifiers, and against entering with a rejoin token.
+ * Both sides are measured, since clients sign on every join during a reconnect storm.
+ * Usage: java ChallengeBenchmark [--warmup=<ms>] [--measure=<ms>]
+ */
+public class ChallengeBenchmark {
+    static final int CHAT_ID = 1;
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = Bench.fromArgs(args);
+        KeyPair rsaKeyPair = KeyUtils.generateRSAKeyPair();
+        KeyPair ed25519KeyPair = KeyUtils.generateEd25519KeyPair();
+        ChatMetadata rsaChat = new ChatMetadata(CHAT_ID, "", rsaKeyPair.getPublic());
+        ChatMetadata ed25519Chat = new ChatMetadata(CHAT_ID, "", ed25519KeyPair.getPublic());
+        byte[] challenge = new byte[ClientHandler.CHALLENGE_LENGTH];
+        new SecureRandom().nextBytes(challenge);
+
+        bench.run("challenge/new-secure-random", () -> {
+            byte[] bytes = new byte[ClientHandler.CHALLENGE_LENGTH];
+            new SecureRandom().nextBytes(bytes);
+            return bytes;
+        });
+        bench.run("challenge/shared-secure-random", () -> {
+            byte[] bytes = new byte[ClientHandler.CHALLENGE_LENGTH];
+            ClientHandler.CHALLENGE_RANDOM.nextBytes(bytes);
+            return bytes;
+        });
+
+        bench.run("client/rsa-encrypt", () -> KeyUtils.encryptBytes(challenge, rsaKeyPair.getPrivate(), KeyUtils.RSA));
+        bench.run("client/rsa-pss-sign",
+                () -> KeyUtils.signChallenge(CHAT_ID, challenge, rsaKeyPair.getPrivate()));
+        bench.run("client/ed25519-sign",
+                () -> KeyUtils.signChallenge(CHAT_ID, challenge, ed25519KeyPair.getPrivate()));
+
+        byte[] encryptedChallenge = KeyUtils.encryptBytes(challenge, rsaKeyPair.getPrivate(), KeyUtils.RSA);
+        byte[] rsaProof = KeyUtils.signChallenge(CHAT_ID, challenge, rsaKeyPair.getPrivate());
+        byte[] ed25519Proof = KeyUtils.signChallenge(CHAT_ID, challenge, ed25519KeyPair.getPrivate());
+        bench.run("server/rsa-decrypt", () -> Arrays
+                .equals(challenge, KeyUtils.decryptBytes(encryptedChallenge, rsaKeyPair.getPublic(), KeyUtils.RSA)));
+        bench.run("server/rsa-pss-verify", () -> rsaChat.verifyProof(challenge, rsaProof));
+        bench.run("server/ed25519-verify", () -> ed25519Chat.verifyProof(challenge, ed25519Proof));
+
+        JoinTokens joinTokens = new JoinTokens(300);
+        String token = joinTokens.issue(CHAT_ID);
+        bench.run("server/token-issue", () -> joinTokens.issue(CHAT_ID));
+        bench.run("server/token-check", () -> joinTokens.check(CHAT_ID, token));
+    }
+}
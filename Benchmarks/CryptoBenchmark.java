@@ -0,0 +1,83 @@
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import Shared.KeyUtils;
+
+/**
+ * Compares looking up a new Cipher or KeyFactory on every call, as KeyUtils used to, against the thread's
+ * reused instances and a per-key CryptoContext, and the String API against the ByteBuffer API.
+ * Usage: java CryptoBenchmark [--warmup=<ms>] [--measure=<ms>]
+ */
+public class CryptoBenchmark {
+    public static void main(String[] args) throws Exception {
+        Bench bench = Bench.fromArgs(args);
+        SecretKey aesKey = KeyUtils.generateAESKey();
+        KeyPair rsaKeyPair = KeyUtils.generateRSAKeyPair();
+        byte[] message = "A typical chat message of around a hundred characters, give or take a few, sent to a chat."
+                .getBytes(KeyUtils.CHARSET);
+        byte[] encryptedMessage = KeyUtils.encryptBytes(message, aesKey, KeyUtils.AES);
+        byte[] challenge = new byte[245];
+        byte[] encryptedChallenge = KeyUtils.encryptBytes(challenge, rsaKeyPair.getPrivate(), KeyUtils.RSA);
+        byte[] encodedPublicKey = rsaKeyPair.getPublic().getEncoded();
+        KeyUtils.CryptoContext aesContext = KeyUtils.newCryptoContext(aesKey, KeyUtils.AES);
+        KeyUtils.CryptoContext rsaContext = KeyUtils.newCryptoContext(rsaKeyPair.getPublic(), KeyUtils.RSA);
+
+        bench.run("aes-encrypt/getInstance", () -> {
+            Cipher cipher = Cipher.getInstance(KeyUtils.AES);
+            cipher.init(Cipher.ENCRYPT_MODE, aesKey);
+            return cipher.doFinal(message);
+        });
+        bench.run("aes-encrypt/thread-cipher", () -> KeyUtils.encryptBytes(message, aesKey, KeyUtils.AES));
+        bench.run("aes-encrypt/context", () -> aesContext.encryptBytes(message));
+
+        bench.run("aes-decrypt/getInstance", () -> {
+            Cipher cipher = Cipher.getInstance(KeyUtils.AES);
+            cipher.init(Cipher.DECRYPT_MODE, aesKey);
+            return cipher.doFinal(encryptedMessage);
+        });
+        bench.run("aes-decrypt/thread-cipher", () -> KeyUtils.decryptBytes(encryptedMessage, aesKey, KeyUtils.AES));
+        bench.run("aes-decrypt/context", () -> aesContext.decryptBytes(encryptedMessage));
+
+        bench.run("rsa-challenge-decrypt/getInstance", () -> {
+            Cipher cipher = Cipher.getInstance(KeyUtils.RSA);
+            cipher.init(Cipher.DECRYPT_MODE, rsaKeyPair.getPublic());
+            return cipher.doFinal(encryptedChallenge);
+        });
+        bench.run("rsa-challenge-decrypt/thread-cipher",
+                () -> KeyUtils.decryptBytes(encryptedChallenge, rsaKeyPair.getPublic(), KeyUtils.RSA));
+        bench.run("rsa-challenge-decrypt/context", () -> rsaContext.decryptBytes(encryptedChallenge));
+
+        String messageString = new String(message, KeyUtils.CHARSET);
+        String encryptedString = KeyUtils.encryptString(messageString, aesKey, KeyUtils.AES);
+        byte[] encryptedBase64 = encryptedString.getBytes(KeyUtils.CHARSET);
+        ByteBuffer plainBuffer = ByteBuffer.allocateDirect(message.length);
+        plainBuffer.put(message).flip();
+        ByteBuffer base64Buffer = ByteBuffer.allocateDirect(encryptedBase64.length);
+        ByteBuffer outputBuffer = ByteBuffer.allocateDirect(encryptedBase64.length);
+
+        bench.run("chat-line-encrypt/string", () -> KeyUtils.encryptString(messageString, aesKey, KeyUtils.AES));
+        bench.run("chat-line-encrypt/direct-buffer", () -> {
+            plainBuffer.rewind();
+            outputBuffer.clear();
+            return aesContext.encryptToBase64(plainBuffer, outputBuffer);
+        });
+
+        bench.run("chat-line-decrypt/string", () -> KeyUtils.decryptString(encryptedString, aesKey, KeyUtils.AES));
+        bench.run("chat-line-decrypt/direct-buffer", () -> {
+            // Decoding is in place, so the Base64 has to be put back each time.
+            base64Buffer.clear();
+            base64Buffer.put(encryptedBase64).flip();
+            outputBuffer.clear();
+            return aesContext.decryptFromBase64(base64Buffer, outputBuffer);
+        });
+
+        bench.run("rsa-public-key-parse/getInstance",
+                () -> KeyFactory.getInstance(KeyUtils.RSA).generatePublic(new X509EncodedKeySpec(encodedPublicKey)));
+        bench.run("rsa-public-key-parse/thread-factory", () -> KeyUtils.readRSAPublicKey(encodedPublicKey));
+    }
+}
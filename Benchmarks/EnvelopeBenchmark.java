@@ -0,0 +1,40 @@
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+import Shared.KeyUtils;
+
+/**
+ * Compares chat line encryption before and after message envelopes: AES/ECB with padding, as encryptString
+ * used to do, against AES-GCM sealString. Each is measured for a round trip at a few message sizes and
+ * reported as message throughput.
+ * Usage: java EnvelopeBenchmark [--warmup=<ms>] [--measure=<ms>]
+ */
+public class EnvelopeBenchmark {
+    static final int[] MESSAGE_SIZES = { 16, 100, 500, 1500 };
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = Bench.fromArgs(args);
+        SecretKey aesKey = KeyUtils.generateAESKey();
+        KeyUtils.CryptoContext context = KeyUtils.newCryptoContext(aesKey, KeyUtils.AES);
+
+        for (int size : MESSAGE_SIZES) {
+            char[] characters = new char[size];
+            Arrays.fill(characters, 'x');
+            String message = new String(characters);
+
+            report(size, bench.run("ecb-encrypt/" + size, () -> context.encryptString(message)));
+            report(size, bench.run("gcm-seal/" + size, () -> context.sealString(message)));
+
+            String encrypted = context.encryptString(message);
+            String sealed = context.sealString(message);
+            report(size, bench.run("ecb-decrypt/" + size, () -> context.decryptString(encrypted)));
+            report(size, bench.run("gcm-open/" + size, () -> context.openString(sealed)));
+            report(size, bench.run("legacy-via-open/" + size, () -> context.openString(encrypted)));
+        }
+    }
+
+    private static void report(int size, Bench.Result result) {
+        System.out.println(String.format("%-40s %14.1f MB/s", "", result.getOperationsPerSecond() * size / 1e6));
+    }
+}
@@ -0,0 +1,311 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in for the chat database, so that DBUtils and the layers above it can be benchmarked without a
+ * database server.
+ * Connections, statements and result sets are proxies that understand only the chat line, chat creation and
+ * chat metadata statements DBUtils sends, answered from memory. What is measured is DBUtils' own work, preparing
+ * statements, binding parameters and reading results, without a driver or a network round trip.
+ * Transactions are not modelled: rows are visible as soon as they are written and rollbacks do nothing.
+ * Each chat keeps only its newest lines, so a long measurement does not run out of memory.
+ */
+public class InMemoryDatabase {
+    static final int PAGE_SIZE = 25;
+
+    final int maxLinesPerChat;
+    final ConcurrentHashMap<Integer, List<ChatLine>> chatLines = new ConcurrentHashMap<Integer, List<ChatLine>>();
+    final ConcurrentHashMap<Integer, Object[]> chats = new ConcurrentHashMap<Integer, Object[]>();
+    final AtomicLong nextLineID = new AtomicLong(1);
+    final AtomicInteger nextChatID = new AtomicInteger(1);
+
+    /**
+     * @param maxLinesPerChat The most lines to keep for each chat. Older lines are dropped.
+     */
+    public InMemoryDatabase(int maxLinesPerChat) {
+        this.maxLinesPerChat = maxLinesPerChat;
+    }
+
+    /**
+     * @return A DBUtils whose connections are to this stand-in.
+     */
+    public DBUtils newDBUtils() {
+        return new DBUtils("jdbc:in-memory", "", "") {
+            @Override
+            public Connection openConnection() {
+                return newConnection();
+            }
+        };
+    }
+
+    /**
+     * Adds a chat that DBUtils.readChatMetadata can find.
+     */
+    public void addChat(int chatID, String chatName, byte[] publicKey) {
+        chats.put(chatID, new Object[] { chatName, publicKey });
+        nextChatID.accumulateAndGet(chatID + 1, Math::max);
+    }
+
+    /**
+     * Saves a chat as proc_create_chat would.
+     * @return The new chat's ID.
+     */
+    public int createChat(String chatName, byte[] publicKey) {
+        int chatID = nextChatID.getAndIncrement();
+        chats.put(chatID, new Object[] { chatName, publicKey });
+        return chatID;
+    }
+
+    /**
+     * Saves a line as an INSERT into chat_line would.
+     * @return The line's ID.
+     */
+    public long addLine(int chatID, String text) {
+        List<ChatLine> lines = chatLines.computeIfAbsent(chatID, id -> new ArrayList<ChatLine>());
+        synchronized (lines) {
+            long id = nextLineID.getAndIncrement();
+            lines.add(new ChatLine(id, chatID, text));
+            if (lines.size() > maxLinesPerChat * 2) {
+                lines.subList(0, lines.size() - maxLinesPerChat).clear();
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @return The rows of proc_read_chat: up to a page of line texts, newest first, after skipping offset lines.
+     */
+    List<Object[]> readChat(int chatID, int offset) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        List<ChatLine> lines = chatLines.get(chatID);
+        if (lines != null) {
+            synchronized (lines) {
+                for (int i = lines.size() - 1 - offset; i >= 0 && rows.size() < PAGE_SIZE; i--) {
+                    rows.add(new Object[] { lines.get(i).getText() });
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return The rows of proc_read_chat_before: up to a page of IDs and texts below beforeID, newest first.
+     */
+    List<Object[]> readChatBefore(int chatID, long beforeID) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        List<ChatLine> lines = chatLines.get(chatID);
+        if (lines != null) {
+            synchronized (lines) {
+                for (int i = firstAtOrAbove(lines, beforeID) - 1; i >= 0 && rows.size() < PAGE_SIZE; i--) {
+                    rows.add(new Object[] { lines.get(i).getID(), lines.get(i).getText() });
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return Up to limit IDs and texts above afterID, oldest first.
+     */
+    List<Object[]> readChatAfter(int chatID, long afterID, int limit) {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        List<ChatLine> lines = chatLines.get(chatID);
+        if (lines != null) {
+            synchronized (lines) {
+                for (int i = firstAtOrAbove(lines, afterID + 1); i < lines.size() && rows.size() < limit; i++) {
+                    rows.add(new Object[] { lines.get(i).getID(), lines.get(i).getText() });
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return The index of the first line with an ID of at least id. Lines are kept in ID order.
+     */
+    private static int firstAtOrAbove(List<ChatLine> lines, long id) {
+        int low = 0;
+        int high = lines.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lines.get(middle).getID() < id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private Connection newConnection() {
+        return proxy(Connection.class, new InvocationHandler() {
+            boolean autoCommit = true;
+            boolean closed;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "prepareStatement":
+                    case "prepareCall":
+                        return newStatement((String) args[0]);
+                    case "setAutoCommit":
+                        autoCommit = (Boolean) args[0];
+                        return null;
+                    case "getAutoCommit":
+                        return autoCommit;
+                    case "commit":
+                    case "rollback":
+                        return null;
+                    case "close":
+                        closed = true;
+                        return null;
+                    case "isClosed":
+                        return closed;
+                    case "isValid":
+                        return !closed;
+                    default:
+                        return objectMethod(proxy, method, args);
+                }
+            }
+        });
+    }
+
+    private CallableStatement newStatement(String sql) {
+        return proxy(CallableStatement.class, new InvocationHandler() {
+            final Map<Integer, Object> parameters = new HashMap<Integer, Object>();
+            final List<Map<Integer, Object>> batch = new ArrayList<Map<Integer, Object>>();
+            final List<Object[]> generatedKeys = new ArrayList<Object[]>();
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "setInt":
+                    case "setLong":
+                    case "setString":
+                    case "setBytes":
+                        parameters.put((Integer) args[0], args[1]);
+                        return null;
+                    case "registerOutParameter":
+                        return null;
+                    case "getInt":
+                        // The only output parameter is the ID of a chat created by proc_create_chat.
+                        return generatedKeys.get(generatedKeys.size() - 1)[0];
+                    case "addBatch":
+                        batch.add(new HashMap<Integer, Object>(parameters));
+                        return null;
+                    case "executeQuery":
+                        return newResultSet(query(sql, parameters));
+                    case "executeUpdate":
+                        insert(parameters);
+                        return 1;
+                    case "executeBatch":
+                        int[] counts = new int[batch.size()];
+                        for (int i = 0; i < counts.length; i++) {
+                            insert(batch.get(i));
+                            counts[i] = 1;
+                        }
+                        batch.clear();
+                        return counts;
+                    case "getGeneratedKeys":
+                        return newResultSet(new ArrayList<Object[]>(generatedKeys));
+                    case "close":
+                        return null;
+                    default:
+                        return objectMethod(proxy, method, args);
+                }
+            }
+
+            private void insert(Map<Integer, Object> row) throws SQLException {
+                if (sql.startsWith("INSERT INTO chat_line")) {
+                    generatedKeys.add(new Object[] { addLine((Integer) row.get(1), (String) row.get(2)) });
+                } else if (sql.startsWith("CALL proc_create_chat")) {
+                    generatedKeys.add(new Object[] { createChat((String) row.get(1), (byte[]) row.get(2)) });
+                } else {
+                    throw new SQLFeatureNotSupportedException("Stand-in database cannot run " + sql);
+                }
+            }
+        });
+    }
+
+    private List<Object[]> query(String sql, Map<Integer, Object> parameters) throws SQLException {
+        int chatID = (Integer) parameters.get(1);
+        if (sql.startsWith("CALL proc_read_chat_before")) {
+            return readChatBefore(chatID, (Long) parameters.get(2));
+        } else if (sql.startsWith("CALL proc_read_chat")) {
+            return readChat(chatID, (Integer) parameters.get(2));
+        } else if (sql.startsWith("SELECT id, line_text FROM chat_line")) {
+            return readChatAfter(chatID, (Long) parameters.get(2), (Integer) parameters.get(3));
+        } else if (sql.startsWith("SELECT chat_name, rsa_public_key FROM chat")) {
+            List<Object[]> rows = new ArrayList<Object[]>();
+            Object[] chat = chats.get(chatID);
+            if (chat != null) {
+                rows.add(chat);
+            }
+            return rows;
+        }
+        throw new SQLFeatureNotSupportedException("Stand-in database cannot run " + sql);
+    }
+
+    private static ResultSet newResultSet(List<Object[]> rows) {
+        return proxy(ResultSet.class, new InvocationHandler() {
+            int row = -1;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "next":
+                        return ++row < rows.size();
+                    case "getString":
+                    case "getBytes":
+                        return column(args);
+                    case "getLong":
+                        return ((Number) column(args)).longValue();
+                    case "getInt":
+                        return ((Number) column(args)).intValue();
+                    case "close":
+                        return null;
+                    default:
+                        return objectMethod(proxy, method, args);
+                }
+            }
+
+            private Object column(Object[] args) {
+                return rows.get(row)[(Integer) args[0] - 1];
+            }
+        });
+    }
+
+    /**
+     * Answers the Object methods a proxy may be asked for, and refuses any JDBC call the stand-in does not model.
+     */
+    private static Object objectMethod(Object proxy, Method method, Object[] args) throws SQLException {
+        switch (method.getName()) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "InMemoryDatabase." + proxy.getClass().getInterfaces()[0].getSimpleName();
+            default:
+                throw new SQLFeatureNotSupportedException("Stand-in database does not support " + method.getName());
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(InMemoryDatabase.class.getClassLoader(), new Class<?>[] { type },
+                handler));
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.crypto.SecretKey;
+
+import Shared.ChatKeyStore;
+import Shared.ChatKeyring;
+import Shared.KeyUtils;
+
+/**
+ * Compares reading a chat's keys from its loose key files, as the client used to on every mode switch, against
+ * reading them from a key store and from a loaded keyring, and times preloading every chat both ways.
+ * Every chat shares one key pair, since only reading the keys is measured.
+ * Usage: java KeyringBenchmark [--warmup=<ms>] [--measure=<ms>] [--chats=<count>]
+ */
+public class KeyringBenchmark {
+    static final int DEFAULT_CHATS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = Bench.fromArgs(args);
+        int chatCount = Bench.intOption(args, "chats", DEFAULT_CHATS);
+
+        Path folder = Files.createTempDirectory("keyring-benchmark");
+        String keyFolder = folder.toString() + File.separator;
+        KeyPair keyPair = KeyUtils.generateRSAKeyPair();
+        SecretKey aesKey = KeyUtils.generateAESKey();
+        ChatKeyring files = new ChatKeyring(keyFolder, null);
+        try (ChatKeyStore keyStore = new ChatKeyStore(folder.resolve(ChatKeyStore.DEFAULT_FILE_NAME))) {
+            ChatKeyring stored = new ChatKeyring(keyFolder, keyStore);
+            // Saving logs every key file, so the console is silenced while the chats are set up.
+            PrintStream console = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            try {
+                for (int chatID = 1; chatID <= chatCount; chatID++) {
+                    files.save(chatID, keyPair, aesKey);
+                    stored.save(chatID, keyPair, aesKey);
+                }
+            } finally {
+                System.setOut(console);
+            }
+
+            bench.run("key-read/files", () -> {
+                int chatID = ThreadLocalRandom.current().nextInt(chatCount) + 1;
+                KeyUtils.readAESKey(chatID, keyFolder);
+                return KeyUtils.readPrivateKey(chatID, keyFolder);
+            });
+            bench.run("key-read/store", () -> {
+                ChatKeyStore.Record record = keyStore.read(ThreadLocalRandom.current().nextInt(chatCount) + 1);
+                return KeyUtils.readPrivateKey(record.getPrivateKey());
+            });
+            bench.run("key-read/keyring",
+                    () -> stored.getPrivateKey(ThreadLocalRandom.current().nextInt(chatCount) + 1));
+
+            int threads = Runtime.getRuntime().availableProcessors();
+            bench.run("preload/files/" + chatCount, () -> new ChatKeyring(keyFolder, null).preload(threads));
+            bench.run("preload/store/" + chatCount, () -> new ChatKeyring(keyFolder, keyStore).preload(threads));
+            bench.run("open-store/" + chatCount, () -> {
+                try (ChatKeyStore reopened = new ChatKeyStore(folder.resolve(ChatKeyStore.DEFAULT_FILE_NAME))) {
+                    return reopened.chatIDs().size();
+                }
+            });
+        } finally {
+            for (File file : folder.toFile().listFiles()) {
+                file.delete();
+            }
+            folder.toFile().delete();
+        }
+    }
+}
@@ -0,0 +1,800 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.crypto.SecretKey;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import Client.ServerLink;
+import Shared.Frame;
+import Shared.HandleMode;
+import Shared.HandshakeMetrics;
+import Shared.KeyUtils;
+import Shared.LatencyHistogram;
+import Shared.SslUtil;
+
+/**
+ * Drives simulated chat members against a server and reports throughput and latency.
+ * One connection creates the chats. Each member then opens its own mutually authenticated connection, asks
+ * for binary framing, starts a multi-chat session and joins its chats by signing their challenges. Members
+ * then send messages at a fixed overall rate, each sealed with its chat's key as a real client would.
+ * The time a message was due to be sent is written in the clear in front of the sealed message, so members
+ * can measure delivery latency without opening every message. Using the due time rather than the time the
+ * send happened means a server that holds up senders is charged for the wait.
+ * By default a server is started in a child JVM on a free port, with InMemoryDatabase standing in for the
+ * database and only its warnings logged, or with a SegmentChatStore in --store-dir. Options after "--" are
+ * passed on to that server. With --host and
+ * --port an already running server is used instead, and the chats are created in its database.
+ * With --rejoin, every member then leaves and rejoins its chats with the tokens the server gave it.
+ * Usage: java LoadGenerator <caCrtFile> <serverCrtFile> <serverKeyFile> <clientCrtFile> <clientKeyFile>
+ *        [--host=<host> --port=<port>] [--mode=threads|virtual|nio] [--clients=<count>] [--chats=<count>]
+ *        [--chats-per-client=<count>] [--rate=<messages per second>] [--size=<bytes>] [--warmup=<s>]
+ *        [--duration=<s>] [--senders=<threads>] [--connectors=<threads>] [--ed25519] [--rejoin]
+ *        [--server-log] [--store-dir=<dir>] [--json=<file>] [--label=<text>] [-- <server options>]
+ */
+public class LoadGenerator {
+    static final String SERVE_COMMAND = "--serve";
+    static final String SERVER_OPTIONS_SEPARATOR = "--";
+    static final String STORE_DIR_OPTION = "--store-dir=";
+    static final int STAMP_LENGTH = 8;
+    static final int MAX_LINES_PER_CHAT = 1000;
+    static final long REPLY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    static final long SERVER_START_TIMEOUT_MILLIS = 30000;
+    static final long JOIN_TIMEOUT_SECONDS = 120;
+    static final long DRAIN_TIMEOUT_MILLIS = 10000;
+    // Reader threads only decode frames, so they can do with far less stack than the default.
+    static final long READER_STACK_SIZE = 256 * 1024;
+
+    final SSLSocketFactory socketFactory;
+    String host = "localhost";
+    int port;
+    int clients;
+    int chatCount;
+    int chatsPerClient;
+    int rate;
+    int size;
+    int warmupSeconds;
+    int durationSeconds;
+    int senders;
+    int connectors;
+    boolean ed25519Keys;
+    boolean rejoin;
+
+    final Map<Integer, SimulatedChat> chats = new HashMap<Integer, SimulatedChat>();
+    final List<Member> members = new ArrayList<Member>();
+    final HandshakeMetrics handshakeMetrics = new HandshakeMetrics();
+    final LatencyHistogram handshakeLatency = new LatencyHistogram();
+    final LatencyHistogram joinLatency = new LatencyHistogram();
+    final LatencyHistogram rejoinLatency = new LatencyHistogram();
+    final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    final LongAdder failedJoins = new LongAdder();
+    final LongAdder challengesAnswered = new LongAdder();
+    final LongAdder sent = new LongAdder();
+    final LongAdder expectedDeliveries = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder sendFailures = new LongAdder();
+    // Joins in progress record into this histogram and count down this latch.
+    volatile LatencyHistogram currentJoinLatency = joinLatency;
+    volatile CountDownLatch joinsLeft;
+    // Only messages due in this window are counted, and only while measuring.
+    volatile long measureFrom = Long.MAX_VALUE;
+    volatile long measureUntil = Long.MAX_VALUE;
+    volatile boolean measuring;
+    volatile boolean closing;
+
+    /**
+     * A chat created for the run, with the keys its members use.
+     */
+    static class SimulatedChat {
+        final int id;
+        final PrivateKey privateKey;
+        final KeyUtils.CryptoContext crypto;
+        final AtomicInteger members = new AtomicInteger();
+
+        SimulatedChat(int id, PrivateKey privateKey, SecretKey aesKey) {
+            this.id = id;
+            this.privateKey = privateKey;
+            this.crypto = KeyUtils.newCryptoContext(aesKey, KeyUtils.AES);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && SERVE_COMMAND.equals(args[0])) {
+            serve(args);
+            return;
+        }
+
+        int separator = Arrays.asList(args).indexOf(SERVER_OPTIONS_SEPARATOR);
+        String[] serverOptions = separator < 0 ? new String[0] : Arrays.copyOfRange(args, separator + 1, args.length);
+        if (separator >= 0) {
+            args = Arrays.copyOfRange(args, 0, separator);
+        }
+        ServerConfig config = new ServerConfig(args);
+        if (config.positionalCount() < 5) {
+            throw new IllegalArgumentException(
+                    "Usage: java LoadGenerator <caCrtFile> <serverCrtFile> <serverKeyFile> <clientCrtFile> <clientKeyFile>"
+                            + " [--host=<host> --port=<port>] [--mode=threads|virtual|nio] [--clients=<count>]"
+                            + " [--chats=<count>] [--chats-per-client=<count>] [--rate=<messages per second>]"
+                            + " [--size=<bytes>] [--warmup=<s>] [--duration=<s>] [--senders=<threads>]"
+                            + " [--connectors=<threads>] [--ed25519] [--rejoin] [--server-log] [--store-dir=<dir>]"
+                            + " [--json=<file>] [--label=<text>] [-- <server options>]");
+        }
+        LoadGenerator generator = new LoadGenerator(SslUtil.getSSLSocketFactory(config.getPositional(0),
+                config.getPositional(3), config.getPositional(4)));
+        generator.clients = Math.max(1, config.getInt("clients", 100));
+        generator.chatCount = Math.max(1, config.getInt("chats", 10));
+        // A session can follow at most 64 chats.
+        generator.chatsPerClient = Math.max(1, Math.min(64,
+                Math.min(generator.chatCount, config.getInt("chats-per-client", 1))));
+        generator.rate = Math.max(1, config.getInt("rate", 1000));
+        generator.size = Math.max(1, Math.min(Frame.MAX_PAYLOAD_LENGTH - Frame.CHAT_ID_LENGTH - STAMP_LENGTH
+                - KeyUtils.ENVELOPE_OVERHEAD, config.getInt("size", 100)));
+        generator.warmupSeconds = Math.max(0, config.getInt("warmup", 5));
+        generator.durationSeconds = Math.max(1, config.getInt("duration", 20));
+        generator.senders = Math.max(1, Math.min(generator.clients, config.getInt("senders", 4)));
+        generator.connectors = Math.max(1, config.getInt("connectors", 32));
+        generator.ed25519Keys = config.getBoolean("ed25519", false);
+        generator.rejoin = config.getBoolean("rejoin", false);
+
+        Process server = null;
+        if (config.getString("host", null) != null) {
+            generator.host = config.getString("host", null);
+            generator.port = config.getInt("port", SecureChatServer.DEFAULT_PORT);
+        } else {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                generator.port = probe.getLocalPort();
+            }
+            server = startServer(config, serverOptions, generator.port);
+        }
+        try {
+            generator.run();
+            generator.report();
+            String jsonFile = config.getString("json", null);
+            if (jsonFile != null) {
+                generator.writeJson(Paths.get(jsonFile), config.getString("label", null));
+            }
+        } finally {
+            generator.close();
+            if (server != null) {
+                server.destroy();
+                server.waitFor(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    LoadGenerator(SSLSocketFactory socketFactory) {
+        this.socketFactory = socketFactory;
+    }
+
+    /**
+     * Starts a server in a child JVM and waits until it accepts connections.
+     */
+    private static Process startServer(ServerConfig config, String[] serverOptions, int port) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<String>(Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+                LoadGenerator.class.getName(), SERVE_COMMAND, config.getPositional(0), config.getPositional(1),
+                config.getPositional(2), Integer.toString(port), "--mode=" + config.getString("mode", "threads")));
+        if (config.getBoolean("server-log", false)) {
+            command.add("--server-log");
+        }
+        if (config.getString("store-dir", null) != null) {
+            command.add(STORE_DIR_OPTION + config.getString("store-dir", null));
+        }
+        command.addAll(Arrays.asList(serverOptions));
+        Process server = new ProcessBuilder(command).inheritIO().redirectInput(ProcessBuilder.Redirect.PIPE).start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::destroy));
+
+        long deadline = System.currentTimeMillis() + SERVER_START_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline && server.isAlive()) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", port), 1000);
+                System.out.println("Started " + config.getString("mode", "threads") + " server on port " + port + ".");
+                return server;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        server.destroyForcibly();
+        throw new IOException("Server did not start.");
+    }
+
+    /**
+     * Runs the server in a child JVM against InMemoryDatabase, or a SegmentChatStore if given a directory, until
+     * the parent closes standard input.
+     */
+    private static void serve(String[] args) throws IOException {
+        String storeDir = null;
+        for (String arg : args) {
+            if (arg.startsWith(STORE_DIR_OPTION)) {
+                storeDir = arg.substring(STORE_DIR_OPTION.length());
+            }
+        }
+        String dbURL = storeDir != null ? SegmentChatStore.URL_PREFIX + storeDir : "jdbc:in-memory";
+        List<String> serverArgs = new ArrayList<String>(Arrays.asList(args[1], args[2], args[3], dbURL, "", "",
+                args[4]));
+        if (!Arrays.asList(args).contains("--server-log")) {
+            // Every connection and join is logged, which would cost more than the work itself. Later options win.
+            serverArgs.add("--log-level=warn");
+        }
+        serverArgs.addAll(Arrays.asList(args).subList(5, args.length));
+        SecureChatServer server = new SecureChatServer(serverArgs.toArray(new String[0]));
+        if (storeDir == null) {
+            server.chatStore = new InMemoryDatabase(MAX_LINES_PER_CHAT).newDBUtils();
+        }
+        Thread serverThread = new Thread(server::start, "server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        InputStream parent = System.in;
+        while (parent.read() >= 0) {
+            // Wait for the parent to exit.
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Creates the chats, connects and joins the members, sends messages, and optionally rejoins.
+     */
+    void run() throws Exception {
+        ExecutorService connectorPool = Executors.newFixedThreadPool(connectors);
+        try {
+            createChats(connectorPool);
+            connectMembers(connectorPool);
+            sendMessages();
+            if (rejoin) {
+                rejoinChats(connectorPool);
+            }
+        } finally {
+            connectorPool.shutdownNow();
+        }
+    }
+
+    private void createChats(ExecutorService connectorPool) throws Exception {
+        long start = System.nanoTime();
+        List<Future<KeyPair>> keyPairs = new ArrayList<Future<KeyPair>>();
+        for (int i = 0; i < chatCount; i++) {
+            keyPairs.add(connectorPool.submit(
+                    () -> ed25519Keys ? KeyUtils.generateEd25519KeyPair() : KeyUtils.generateRSAKeyPair()));
+        }
+        Member creator = connect(-1, false);
+        try {
+            for (int i = 0; i < chatCount; i++) {
+                KeyPair keyPair = keyPairs.get(i).get();
+                SecretKey aesKey = KeyUtils.generateAESKey();
+                int chatID = creator.createChat("load test chat " + i, keyPair, aesKey);
+                chats.put(chatID, new SimulatedChat(chatID, keyPair.getPrivate(), aesKey));
+            }
+        } finally {
+            creator.close();
+        }
+        System.out.println("Created " + chatCount + " chats in " + (System.nanoTime() - start) / 1000000 + "ms.");
+    }
+
+    /**
+     * Connects every member in a session and joins each to its chats, spreading members evenly over the chats.
+     */
+    private void connectMembers(ExecutorService connectorPool) throws Exception {
+        long start = System.nanoTime();
+        List<SimulatedChat> chatList = new ArrayList<SimulatedChat>(chats.values());
+        joinsLeft = new CountDownLatch(clients * chatsPerClient);
+        List<Future<Member>> connecting = new ArrayList<Future<Member>>();
+        for (int i = 0; i < clients; i++) {
+            int index = i;
+            connecting.add(connectorPool.submit(() -> {
+                Member member = connect(index, true);
+                for (int j = 0; j < chatsPerClient; j++) {
+                    member.join(chatList.get((index * chatsPerClient + j) % chatList.size()), null);
+                }
+                return member;
+            }));
+        }
+        for (Future<Member> future : connecting) {
+            try {
+                members.add(future.get());
+            } catch (Exception e) {
+                System.out.println("Failed to connect a member. " + e.getCause());
+                for (int j = 0; j < chatsPerClient; j++) {
+                    failedJoins.increment();
+                    joinsLeft.countDown();
+                }
+            }
+        }
+        if (!joinsLeft.await(JOIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            System.out.println(joinsLeft.getCount() + " joins did not finish in time.");
+        }
+        System.out.println("Connected " + members.size() + " members and joined " + joinLatency.getCount()
+                + " chats in " + (System.nanoTime() - start) / 1000000 + "ms.");
+    }
+
+    /**
+     * Sends messages at the configured rate through the warm-up and measurement periods, then waits for the
+     * measured messages to be delivered.
+     */
+    private void sendMessages() throws InterruptedException {
+        byte[] plaintext = new byte[size];
+        new Random(0).nextBytes(plaintext);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long end = start + TimeUnit.SECONDS.toNanos(warmupSeconds + durationSeconds);
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        measureUntil = end;
+        measuring = true;
+
+        List<Thread> senderThreads = new ArrayList<Thread>();
+        for (int i = 0; i < senders; i++) {
+            List<Member> own = new ArrayList<Member>();
+            for (int j = i; j < members.size(); j += senders) {
+                own.add(members.get(j));
+            }
+            Thread sender = new Thread(() -> send(own, plaintext, start, end), "sender-" + i);
+            senderThreads.add(sender);
+            sender.start();
+        }
+        System.out.println("Sending " + rate + " messages per second for " + warmupSeconds + "s of warm-up and "
+                + durationSeconds + "s of measurement.");
+        for (Thread sender : senderThreads) {
+            sender.join();
+        }
+
+        long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (delivered.sum() < expectedDeliveries.sum() && System.currentTimeMillis() < drainDeadline) {
+            Thread.sleep(50);
+        }
+        measuring = false;
+    }
+
+    /**
+     * Sends this thread's share of the messages, taking members and their chats in turn.
+     */
+    private void send(List<Member> own, byte[] plaintext, long start, long end) {
+        long interval = TimeUnit.SECONDS.toNanos(senders) / rate;
+        long due = start;
+        int turn = 0;
+        while (due < end && !own.isEmpty()) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Member member = own.get(turn++ % own.size());
+            SimulatedChat chat = member.nextChat();
+            if (chat != null) {
+                try {
+                    byte[] sealed = chat.crypto.sealBytes(plaintext);
+                    byte[] message = new byte[STAMP_LENGTH + sealed.length];
+                    writeStamp(message, due);
+                    System.arraycopy(sealed, 0, message, STAMP_LENGTH, sealed.length);
+                    member.link.sendChatData(chat.id, message);
+                    if (due >= measureFrom) {
+                        sent.increment();
+                        expectedDeliveries.add(chat.members.get() - 1);
+                    }
+                } catch (IOException | GeneralSecurityException e) {
+                    sendFailures.increment();
+                }
+            }
+            due += interval;
+        }
+    }
+
+    /**
+     * Leaves every chat and joins it again, with the member's token for it if the server gave one.
+     */
+    private void rejoinChats(ExecutorService connectorPool) throws Exception {
+        long start = System.nanoTime();
+        long challengesBefore = challengesAnswered.sum();
+        int rejoins = 0;
+        for (Member member : members) {
+            rejoins += member.joined.size();
+        }
+        currentJoinLatency = rejoinLatency;
+        joinsLeft = new CountDownLatch(rejoins);
+        for (Member member : members) {
+            connectorPool.execute(() -> {
+                for (SimulatedChat chat : new ArrayList<SimulatedChat>(member.joined)) {
+                    try {
+                        member.leave(chat);
+                        member.join(chat, member.joinTokens.get(chat.id));
+                    } catch (IOException e) {
+                        failedJoins.increment();
+                        joinsLeft.countDown();
+                    }
+                }
+            });
+        }
+        if (!joinsLeft.await(JOIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            System.out.println(joinsLeft.getCount() + " rejoins did not finish in time.");
+        }
+        System.out.println("Rejoined " + rejoinLatency.getCount() + " chats in " + (System.nanoTime() - start) / 1000000
+                + "ms, " + (challengesAnswered.sum() - challengesBefore) + " of them with a challenge.");
+    }
+
+    void report() {
+        System.out.println();
+        System.out.println(clients + " members in " + chatCount + " chats, " + chatsPerClient + " chats each, "
+                + rate + " messages per second of " + size + " bytes.");
+        System.out.println("Handshake latency: " + handshakeLatency.getStats());
+        System.out.println(handshakeMetrics.getStats());
+        System.out.println("Join latency: " + joinLatency.getStats() + ", " + failedJoins.sum() + " failed");
+        if (rejoin) {
+            System.out.println("Rejoin latency: " + rejoinLatency.getStats());
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "Messages: %d sent (%.1f/s), %d of %d deliveries (%.1f/s), %d failed sends", sent.sum(),
+                (double) sent.sum() / durationSeconds, delivered.sum(), expectedDeliveries.sum(),
+                (double) delivered.sum() / durationSeconds, sendFailures.sum()));
+        System.out.println("Delivery latency: " + deliveryLatency.getStats());
+    }
+
+    /**
+     * Writes the settings and results to a JSON file, in the manner of the benchmark suite's results.
+     */
+    void writeJson(Path jsonFile, String label) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"benchmark\": ").append(Bench.quote(LoadGenerator.class.getSimpleName()));
+        json.append(",\n  \"label\": ").append(label == null ? "null" : Bench.quote(label));
+        json.append(",\n  \"timestamp\": ").append(Bench.quote(Instant.now().toString()));
+        json.append(",\n  \"java\": ").append(Bench.quote(System.getProperty("java.vm.name") + " "
+                + System.getProperty("java.version")));
+        json.append(",\n  \"processors\": ").append(Runtime.getRuntime().availableProcessors());
+        json.append(",\n  \"clients\": ").append(clients);
+        json.append(",\n  \"chats\": ").append(chatCount);
+        json.append(",\n  \"chatsPerClient\": ").append(chatsPerClient);
+        json.append(",\n  \"rate\": ").append(rate);
+        json.append(",\n  \"size\": ").append(size);
+        json.append(",\n  \"measureSeconds\": ").append(durationSeconds);
+        json.append(",\n  \"sent\": ").append(sent.sum());
+        json.append(",\n  \"expectedDeliveries\": ").append(expectedDeliveries.sum());
+        json.append(",\n  \"delivered\": ").append(delivered.sum());
+        json.append(",\n  \"failedSends\": ").append(sendFailures.sum());
+        json.append(",\n  \"failedJoins\": ").append(failedJoins.sum());
+        json.append(",\n  \"fullHandshakes\": ").append(handshakeMetrics.getFullHandshakes());
+        json.append(",\n  \"resumedHandshakes\": ").append(handshakeMetrics.getResumedHandshakes());
+        json.append(",\n  \"latencies\": {");
+        appendLatency(json, "handshake", handshakeLatency, true);
+        appendLatency(json, "join", joinLatency, false);
+        if (rejoin) {
+            appendLatency(json, "rejoin", rejoinLatency, false);
+        }
+        appendLatency(json, "delivery", deliveryLatency, false);
+        json.append("\n  }\n}\n");
+        try {
+            Path parent = jsonFile.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Files.write(jsonFile, json.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Failed to write results to " + jsonFile + ". " + e.getMessage());
+        }
+    }
+
+    private static void appendLatency(StringBuilder json, String name, LatencyHistogram histogram, boolean first) {
+        json.append(first ? "\n" : ",\n");
+        json.append("    ").append(Bench.quote(name)).append(": {\"count\": ").append(histogram.getCount());
+        json.append(String.format(Locale.ROOT,
+                ", \"meanMillis\": %.3f, \"p50Millis\": %.3f, \"p99Millis\": %.3f, \"p999Millis\": %.3f, \"maxMillis\": %.3f}",
+                histogram.getMeanMillis(), histogram.getPercentileMillis(50), histogram.getPercentileMillis(99),
+                histogram.getPercentileMillis(99.9), histogram.getMaxMillis()));
+    }
+
+    void close() {
+        closing = true;
+        for (Member member : members) {
+            member.close();
+        }
+    }
+
+    /**
+     * Connects a member and waits for it to be in chat selection, or in a multi-chat session if asked.
+     * @param index The member's number, used to name its reader thread.
+     */
+    Member connect(int index, boolean session) throws IOException {
+        SSLSocket socket = (SSLSocket) socketFactory.createSocket(host, port);
+        try {
+            socket.setTcpNoDelay(true);
+            long startMillis = System.currentTimeMillis();
+            long start = System.nanoTime();
+            socket.startHandshake();
+            long elapsed = System.nanoTime() - start;
+            handshakeMetrics.record(socket.getSession(), startMillis, elapsed);
+            handshakeLatency.record(elapsed);
+
+            Member member = new Member(socket);
+            Thread reader = new Thread(null, member::read, "member-" + index, READER_STACK_SIZE);
+            reader.setDaemon(true);
+            reader.start();
+            member.awaitMode(HandleMode.CHAT_SELECT);
+            if (!member.link.requestBinary()) {
+                throw new IOException("Server does not support binary framing.");
+            }
+            if (session) {
+                member.link.sendText(HandleMode.SESSION_COMMAND);
+                member.awaitMode(HandleMode.SESSION);
+            }
+            return member;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    static void writeStamp(byte[] message, long nanos) {
+        for (int i = STAMP_LENGTH - 1; i >= 0; i--) {
+            message[i] = (byte) nanos;
+            nanos >>>= 8;
+        }
+    }
+
+    static long readStamp(byte[] message) {
+        long nanos = 0;
+        for (int i = 0; i < STAMP_LENGTH; i++) {
+            nanos = (nanos << 8) | (message[i] & 0xff);
+        }
+        return nanos;
+    }
+
+    /**
+     * One simulated member: a connection to the server with a thread reading everything it sends.
+     * The sending side is used by one thread at a time, first while connecting and then by its sender.
+     */
+    class Member {
+        final SSLSocket socket;
+        final ServerLink link;
+        final Object monitor = new Object();
+        // Guarded by monitor.
+        HandleMode handleMode;
+        // Chats joined, which the member sends messages to in turn.
+        final List<SimulatedChat> joined = new CopyOnWriteArrayList<SimulatedChat>();
+        // Chats being joined by when the join started, and those whose challenge has not arrived yet.
+        final Map<Integer, Long> joinStarts = new ConcurrentHashMap<Integer, Long>();
+        final Set<Integer> pendingChallenges = ConcurrentHashMap.newKeySet();
+        // Chats being left, whose "/left" reply is expected.
+        final Set<Integer> leaving = ConcurrentHashMap.newKeySet();
+        final Map<Integer, String> joinTokens = new ConcurrentHashMap<Integer, String>();
+        // Other lines from the server, kept outside of sessions for chat creation to read.
+        final BlockingQueue<String> replies = new LinkedBlockingQueue<String>();
+        int nextChat;
+        volatile boolean closed;
+
+        Member(SSLSocket socket) throws IOException {
+            this.socket = socket;
+            this.link = new ServerLink(socket.getInputStream(), socket.getOutputStream());
+        }
+
+        /**
+         * Creates a chat from chat selection and returns to chat selection.
+         * @return The new chat's ID.
+         */
+        int createChat(String name, KeyPair keyPair, SecretKey aesKey) throws IOException, GeneralSecurityException {
+            replies.clear();
+            link.sendText(HandleMode.CHAT_CREATION_COMMAND);
+            awaitMode(HandleMode.CHAT_CREATION);
+            link.sendData(KeyUtils.sealBytes(name.getBytes(KeyUtils.CHARSET), aesKey));
+            link.sendData(keyPair.getPublic().getEncoded());
+            int chatID = awaitChatID();
+            awaitMode(HandleMode.CHAT);
+            link.sendText(HandleMode.EXIT_COMMAND);
+            awaitMode(HandleMode.CHAT_SELECT);
+            return chatID;
+        }
+
+        /**
+         * Starts joining a chat in the session. The reader answers its challenge and records the join.
+         * @param token A rejoin token for the chat, or null.
+         */
+        void join(SimulatedChat chat, String token) throws IOException {
+            joinStarts.put(chat.id, System.nanoTime());
+            pendingChallenges.add(chat.id);
+            link.sendText(HandleMode.JOIN_COMMAND + " " + chat.id + (token == null ? "" : " " + token));
+        }
+
+        void leave(SimulatedChat chat) throws IOException {
+            joined.remove(chat);
+            chat.members.decrementAndGet();
+            leaving.add(chat.id);
+            link.sendText(HandleMode.LEAVE_COMMAND + " " + chat.id);
+        }
+
+        /**
+         * @return The next joined chat to send a message to, or null if there is none.
+         */
+        SimulatedChat nextChat() {
+            int count = joined.size();
+            if (count == 0) {
+                return null;
+            }
+            nextChat = (nextChat + 1) % count;
+            try {
+                return joined.get(nextChat);
+            } catch (IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        void awaitMode(HandleMode expected) throws IOException {
+            long deadline = System.nanoTime() + REPLY_TIMEOUT_NANOS;
+            synchronized (monitor) {
+                while (handleMode != expected) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0 || socket.isClosed()) {
+                        throw new IOException("Timed out waiting for " + expected + " mode.");
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(monitor, left);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for " + expected + " mode.");
+                    }
+                }
+            }
+        }
+
+        private int awaitChatID() throws IOException {
+            long deadline = System.nanoTime() + REPLY_TIMEOUT_NANOS;
+            try {
+                String reply;
+                while ((reply = replies.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null) {
+                    if (reply.equals("Failed to create chat!") || reply.equals("Failed to read public key.")) {
+                        throw new IOException(reply);
+                    }
+                    try {
+                        return Integer.parseInt(reply);
+                    } catch (NumberFormatException e) {
+                        // One of the server's prompts.
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Timed out waiting for the new chat's ID.");
+        }
+
+        void read() {
+            try {
+                Frame frame;
+                while ((frame = link.read()) != null) {
+                    handle(frame);
+                }
+            } catch (IOException e) {
+                if (!closing && !closed) {
+                    System.out.println("Member lost its connection. " + e.getMessage());
+                }
+            }
+            close();
+        }
+
+        private void handle(Frame frame) throws IOException {
+            if (frame.getType() == Frame.MODE) {
+                switchMode(frame.getMode());
+            } else if (frame.getType() == Frame.CHAT_DATA) {
+                chatData(frame.getChatID(), frame.getChatData());
+            } else if (frame.getType() == Frame.TEXT) {
+                HandleMode lineMode = link.isBinary() ? null : HandleMode.stringToHandleMode(frame.getText());
+                if (lineMode != null) {
+                    // The line protocol spells out mode switches as lines.
+                    switchMode(lineMode);
+                } else {
+                    text(frame.getText());
+                }
+            }
+        }
+
+        private void switchMode(HandleMode newHandleMode) {
+            synchronized (monitor) {
+                handleMode = newHandleMode;
+                monitor.notifyAll();
+            }
+        }
+
+        private void text(String text) {
+            String[] words = text.split(" ");
+            try {
+                if (words.length == 3 && HandleMode.TOKEN_REPLY.equals(words[0])) {
+                    joinTokens.put(Integer.parseInt(words[1]), words[2]);
+                    return;
+                } else if (words.length > 1 && HandleMode.JOINED_REPLY.equals(words[0])) {
+                    joinedChat(Integer.parseInt(words[1]));
+                    return;
+                } else if (words.length > 1 && HandleMode.LEFT_REPLY.equals(words[0])) {
+                    leftChat(Integer.parseInt(words[1]));
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                // Not a reply after all.
+            }
+            if (handleMode != HandleMode.SESSION) {
+                replies.add(text);
+            }
+        }
+
+        private void chatData(int chatID, byte[] data) throws IOException {
+            if (pendingChallenges.remove(chatID)) {
+                SimulatedChat chat = chats.get(chatID);
+                try {
+                    link.sendChatData(chatID, KeyUtils.signChallenge(chatID, data, chat.privateKey));
+                    challengesAnswered.increment();
+                } catch (GeneralSecurityException e) {
+                    System.out.println("Failed to sign challenge for chat " + chatID + ". " + e.toString());
+                    link.sendText(HandleMode.LEAVE_COMMAND + " " + chatID);
+                }
+                return;
+            }
+            if (!measuring || data.length < STAMP_LENGTH) {
+                return;
+            }
+            long due = readStamp(data);
+            if (due >= measureFrom && due < measureUntil) {
+                deliveryLatency.record(System.nanoTime() - due);
+                delivered.increment();
+            }
+        }
+
+        private void joinedChat(int chatID) {
+            // A token skips the challenge, so one may still be expected.
+            pendingChallenges.remove(chatID);
+            Long start = joinStarts.remove(chatID);
+            SimulatedChat chat = chats.get(chatID);
+            if (start == null || chat == null) {
+                return;
+            }
+            currentJoinLatency.record(System.nanoTime() - start);
+            chat.members.incrementAndGet();
+            joined.add(chat);
+            joinsLeft.countDown();
+        }
+
+        private void leftChat(int chatID) {
+            if (leaving.remove(chatID)) {
+                return;
+            }
+            pendingChallenges.remove(chatID);
+            if (joinStarts.remove(chatID) != null) {
+                failedJoins.increment();
+                joinsLeft.countDown();
+            }
+        }
+
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Measures the chat line read and write paths: ChatStore.readChat, readChatBefore and sendToChat, one line at
+ * a time and batched as ChatLineWriter does, and a page served by RecentHistoryCache instead of the database.
+ * DBUtils is measured against InMemoryDatabase, so only its own overhead is counted, and SegmentChatStore
+ * against files in a temporary directory, or in --store-dir if given, with and without forcing each write to
+ * disk. Given --db-url, DBUtils is measured against that database too. It writes to the chat given by
+ * --db-chat, so point it at a scratch database.
+ * Usage: java PersistenceBenchmark [--warmup=<ms>] [--measure=<ms>] [--store-dir=<dir>] [--db-url=<url>
+ *        --db-user=<user> --db-password=<password> --db-chat=<chat ID>]
+ */
+public class PersistenceBenchmark {
+    static final int CHAT_ID = 1;
+    static final int PRELOADED_LINES = 10000;
+    static final int MAX_LINES_PER_CHAT = 100000;
+    static final int BATCH_SIZE = 256;
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = Bench.fromArgs(args);
+        char[] characters = new char[140];
+        Arrays.fill(characters, 'x');
+        String line = new String(characters);
+
+        InMemoryDatabase database = new InMemoryDatabase(MAX_LINES_PER_CHAT);
+        for (int i = 0; i < PRELOADED_LINES; i++) {
+            database.addLine(CHAT_ID, line);
+        }
+        DBUtils standIn = database.newDBUtils();
+        run(bench, "stand-in", standIn, CHAT_ID, line);
+
+        RecentHistoryCache recentHistory = new RecentHistoryCache(standIn, 100, 16 * 1024 * 1024);
+        recentHistory.pageBefore(CHAT_ID, Long.MAX_VALUE);
+        bench.run("history/latest-page/cached", () -> recentHistory.pageBefore(CHAT_ID, Long.MAX_VALUE));
+
+        String storeDir = Bench.stringOption(args, "store-dir");
+        Path storeParent = storeDir != null ? Files.createDirectories(Paths.get(storeDir))
+                : Files.createTempDirectory("segment-store");
+        try {
+            runSegments(bench, "segments", storeParent.resolve("sync"), true, line);
+            runSegments(bench, "segments-nosync", storeParent.resolve("no-sync"), false, line);
+        } finally {
+            deleteStore(storeParent.resolve("sync"));
+            deleteStore(storeParent.resolve("no-sync"));
+            if (storeDir == null) {
+                Files.deleteIfExists(storeParent);
+            }
+        }
+
+        String dbURL = Bench.stringOption(args, "db-url");
+        if (dbURL != null) {
+            DBUtils mariaDB = new DBUtils(dbURL, Bench.stringOption(args, "db-user"),
+                    Bench.stringOption(args, "db-password"));
+            run(bench, "mariadb", mariaDB, Bench.intOption(args, "db-chat", CHAT_ID), line);
+        }
+    }
+
+    private static void runSegments(Bench bench, String database, Path directory, boolean sync, String line)
+            throws Exception {
+        deleteStore(directory);
+        SegmentChatStore segments = new SegmentChatStore(directory, SegmentChatStore.DEFAULT_SEGMENT_BYTES, sync);
+        try {
+            int chatID = segments.createChat("benchmark", new byte[0]);
+            List<ChatLine> preloaded = new ArrayList<ChatLine>(PRELOADED_LINES);
+            for (int i = 0; i < PRELOADED_LINES; i++) {
+                preloaded.add(new ChatLine(chatID, line));
+            }
+            segments.sendToChat(preloaded);
+            run(bench, database, segments, chatID, line);
+        } finally {
+            segments.close();
+        }
+    }
+
+    private static void deleteStore(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static void run(Bench bench, String database, ChatStore chatStore, int chatID, String line)
+            throws Exception {
+        List<ChatLine> batch = new ArrayList<ChatLine>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(new ChatLine(chatID, line));
+        }
+        bench.run(database + "/send-to-chat/single", () -> {
+            chatStore.sendToChat(chatID, line);
+            return null;
+        });
+        bench.run(database + "/send-to-chat/batch-" + BATCH_SIZE, () -> chatStore.sendToChat(batch));
+        bench.run(database + "/read-chat/latest-page", () -> chatStore.readChat(chatID, 0));
+        bench.run(database + "/read-chat-before/latest-page", () -> chatStore.readChatBefore(chatID, Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import Shared.Frame;
+import Shared.HandleMode;
+
+/**
+ * Measures the receive path's protocol work: checking each line for a handle mode switch, as the client and
+ * ClientHandler.sendMessage do, and reading and writing frames with the line protocol and with binary framing.
+ * The mode check is compared against scanning values() by name, as HandleMode.stringToHandleMode used to.
+ * Usage: java ProtocolBenchmark [--warmup=<ms>] [--measure=<ms>]
+ */
+public class ProtocolBenchmark {
+    static final int[] MESSAGE_SIZES = { 100, 1500 };
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = Bench.fromArgs(args);
+        String chatLine = Base64.getEncoder().encodeToString(new byte[157]);
+
+        bench.run("handle-mode/chat-line", () -> HandleMode.stringToHandleMode(chatLine));
+        bench.run("handle-mode/chat-line/values-scan", () -> scanValues(chatLine));
+        bench.run("handle-mode/mode-name", () -> HandleMode.stringToHandleMode("CHAT"));
+        bench.run("handle-mode/mode-name/values-scan", () -> scanValues("CHAT"));
+        bench.run("handle-mode/command", () -> HandleMode.stringToHandleMode(HandleMode.OLDER_COMMAND));
+
+        for (int size : MESSAGE_SIZES) {
+            byte[] data = new byte[size];
+            Frame frame = Frame.data(data);
+            ByteBuffer output = ByteBuffer.allocate(frame.getEncodedLength());
+            bench.run("frame/write-binary/" + size, () -> {
+                output.clear();
+                Frame.data(data).write(output);
+                return output;
+            });
+
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            frame.write(new DataOutputStream(encoded));
+            byte[] binary = encoded.toByteArray();
+            bench.run("frame/read-binary/" + size,
+                    () -> Frame.read(new DataInputStream(new ByteArrayInputStream(binary))).getPayload());
+
+            byte[] line = (frame.getText() + "\n").getBytes(StandardCharsets.UTF_8);
+            bench.run("frame/read-line/" + size, () -> Frame.base64Data(
+                    Frame.readLine(new DataInputStream(new ByteArrayInputStream(line)), StandardCharsets.UTF_8))
+                    .getPayload());
+        }
+    }
+
+    private static HandleMode scanValues(String test) {
+        for (HandleMode handleMode : HandleMode.values()) {
+            if (handleMode.name().equals(test)) {
+                return handleMode;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,13 @@
+#!/bin/sh
+# Compiles the project and runs the benchmark suite, writing JSON results to Benchmarks/results/<label>/.
+# The label is the current commit, or the time if this is not a git checkout.
+# Extra arguments are passed to BenchmarkSuite, for example --only=CryptoBenchmark --measure=1000.
+# Jars that are not in Libraries/, such as the Bouncy Castle provider, can be added with CLASSPATH.
+set -e
+cd "$(dirname "$0")/.."
+LABEL=$(git rev-parse --short HEAD 2>/dev/null || date +%Y%m%d-%H%M%S)
+CP="Libraries/*${CLASSPATH:+:$CLASSPATH}"
+BUILD=$(mktemp -d)
+trap 'rm -rf "$BUILD"' EXIT
+javac -d "$BUILD" -cp "$CP" $(find Shared Server Client Benchmarks -name '*.java')
+java -cp "$BUILD:$CP" BenchmarkSuite --results="Benchmarks/results/$LABEL" --label="$LABEL" "$@"
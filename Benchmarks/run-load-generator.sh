@@ -0,0 +1,12 @@
+#!/bin/sh
+# Compiles the project and runs the load generator against a local server backed by an in-memory database,
+# or by segment files with --store-dir=<dir>.
+# Arguments are passed to LoadGenerator, starting with the CA, server and client certificate and key files.
+# Jars that are not in Libraries/, such as the Bouncy Castle provider, can be added with CLASSPATH.
+set -e
+cd "$(dirname "$0")/.."
+CP="Libraries/*${CLASSPATH:+:$CLASSPATH}"
+BUILD=$(mktemp -d)
+trap 'rm -rf "$BUILD"' EXIT
+javac -d "$BUILD" -cp "$CP" $(find Shared Server Client Benchmarks -name '*.java')
+java -cp "$BUILD:$CP" LoadGenerator "$@"
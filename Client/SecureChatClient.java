@@ -5,15 +5,24 @@ package Client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.SecretKey;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
+import Shared.ChatKeyStore;
+import Shared.ChatKeyring;
+import Shared.Frame;
 import Shared.HandleMode;
 import Shared.KeyUtils;
 import Shared.SslUtil;
@@ -32,53 +41,136 @@ public class SecureChatClient {
                 String caCrtFile = args[2];
                 String crtFile = args[3];
                 String keyFile = args[4];
-                sslSocketFactory = SslUtil.getSSLSocketFactory(caCrtFile, crtFile, keyFile);
 
                 keyFolder = args[5];
-                return;
+                boolean validOptions = true;
+                for (int i = 6; i < args.length; i++) {
+                    if (args[i].startsWith(TLS_SESSION_CACHE_OPTION)) {
+                        sessionCacheSize = intOption(args[i], TLS_SESSION_CACHE_OPTION);
+                    } else if (args[i].startsWith(TLS_SESSION_TIMEOUT_OPTION)) {
+                        sessionTimeout = intOption(args[i], TLS_SESSION_TIMEOUT_OPTION);
+                    } else if (args[i].startsWith(TLS_TICKETS_OPTION)) {
+                        sessionTickets = Boolean.parseBoolean(args[i].substring(TLS_TICKETS_OPTION.length()));
+                    } else if (BINARY_OPTION.equals(args[i])) {
+                        binaryFraming = true;
+                    } else if (ED25519_OPTION.equals(args[i])) {
+                        ed25519Keys = true;
+                    } else if (KEY_STORE_OPTION.equals(args[i])) {
+                        useKeyStore = true;
+                    } else if (PRELOAD_KEYS_OPTION.equals(args[i])) {
+                        preloadKeys = true;
+                    } else if (SEALED_ONLY_OPTION.equals(args[i])) {
+                        sealedOnly = true;
+                    } else {
+                        System.err.println("Unknown option " + args[i] + "!");
+                        validOptions = false;
+                    }
+                }
+                if (validOptions) {
+                    // JSSE reads the ticket setting once, so it has to be set before the context is built.
+                    SslUtil.configureSessionTickets(sessionTickets, SslUtil.DEFAULT_TICKET_KEY_TIMEOUT);
+                    SSLContext sslContext = SslUtil.getSSLContext(caCrtFile, crtFile, keyFile, "");
+                    SslUtil.configureSessions(sslContext, sessionCacheSize, sessionTimeout);
+                    sslSocketFactory = sslContext.getSocketFactory();
+                    keyring = new ChatKeyring(keyFolder, useKeyStore
+                            ? new ChatKeyStore(Paths.get(keyFolder, ChatKeyStore.DEFAULT_FILE_NAME)) : null);
+                    return;
+                }
             } catch (NumberFormatException e) {
-                System.err.println("Port must be a valid integer!");
+                System.err.println("Port and TLS session options must be valid integers!");
+            } catch (IOException e) {
+                System.err.println("Failed to open key store! " + e.getMessage());
             }
         }
         throw new IllegalArgumentException(
-                "Usage: java SecureChatClient <host address> <port number> <caCrtFile> <crtFile> <keyFile> <chat key folder>");
+                "Usage: java SecureChatClient <host address> <port number> <caCrtFile> <crtFile> <keyFile> <chat key folder> ["
+                        + BINARY_OPTION + "] [" + ED25519_OPTION + "] [" + KEY_STORE_OPTION + "] ["
+                        + PRELOAD_KEYS_OPTION + "] [" + SEALED_ONLY_OPTION + "] [" + TLS_SESSION_CACHE_OPTION
+                        + "<sessions>] [" + TLS_SESSION_TIMEOUT_OPTION + "<s>] [" + TLS_TICKETS_OPTION + "<true|false>]");
     }
 
+    // Asks the server for binary framing instead of lines of Base64.
+    static final String BINARY_OPTION = "--binary";
+    // Creates new chats with Ed25519 keys instead of RSA keys. The keys are far smaller, but the JDK checks
+    // Ed25519 proofs more slowly than RSA-PSS ones, so RSA stays the default.
+    static final String ED25519_OPTION = "--ed25519";
+    // Keeps chat keys in one indexed file in the key folder instead of three files per chat.
+    static final String KEY_STORE_OPTION = "--key-store";
+    // Loads every chat's keys in the background on startup instead of when each chat is first used.
+    static final String PRELOAD_KEYS_OPTION = "--preload-keys";
+    // Only shows chat lines sealed in envelopes. For use once ChatLineMigration has sealed a chat's old lines.
+    static final String SEALED_ONLY_OPTION = "--sealed-only";
+    // Size and lifetime of the cache of sessions this client can resume when it reconnects, as on the server.
+    static final String TLS_SESSION_CACHE_OPTION = "--tls-session-cache=";
+    static final String TLS_SESSION_TIMEOUT_OPTION = "--tls-session-timeout=";
+    // Whether to resume TLS 1.3 sessions with tickets rather than the server's session cache.
+    static final String TLS_TICKETS_OPTION = "--tls-tickets=";
+
     String hostAddress;
     int port;
     String keyFolder;
+    boolean binaryFraming;
+    boolean ed25519Keys;
+    boolean useKeyStore;
+    boolean preloadKeys;
+    boolean sealedOnly;
+    int sessionCacheSize = SslUtil.DEFAULT_SESSION_CACHE_SIZE;
+    int sessionTimeout = SslUtil.DEFAULT_SESSION_TIMEOUT;
+    boolean sessionTickets = true;
+    ChatKeyring keyring;
     SSLSocketFactory sslSocketFactory;
 
-    HandleMode handleMode = HandleMode.CHAT_SELECT;
-    boolean shuttingDown;
-    byte[] challenge;
+    volatile HandleMode handleMode = HandleMode.CHAT_SELECT;
+    volatile boolean shuttingDown;
+    volatile byte[] challenge;
     int chatID;
     final Object monitor = new Object();
 
     PrivateKey chatPrivateKey;
     PublicKey chatPublicKey;
     SecretKey chatSymmetricKey;
+    // Reuses initialised ciphers for the chat's messages. Shared by the sending and receiving threads.
+    volatile KeyUtils.CryptoContext chatCrypto;
+    // Chats followed in a multi-chat session, with the contexts for their messages. Used by both threads.
+    final Map<Integer, KeyUtils.CryptoContext> sessionChats = new ConcurrentHashMap<Integer, KeyUtils.CryptoContext>();
+    // Chats asked for in a multi-chat session whose challenge has not arrived yet.
+    final Set<Integer> pendingJoins = ConcurrentHashMap.newKeySet();
+    // Rejoin tokens from the server by chat. Sent when entering the chat again to skip its challenge.
+    final Map<Integer, String> joinTokens = new ConcurrentHashMap<Integer, String>();
+
+    private static int intOption(String arg, String option) {
+        return Integer.parseInt(arg.substring(option.length()));
+    }
 
     public void start() {
+        if (preloadKeys) {
+            preloadKeys();
+        }
+
         // Try to connect to the server specified.
         try (
                 // Create a socket to connect to the server.
                 SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(hostAddress, port);
 
-                // Set up a reader and writer to transfer data between the client and server.
-                BufferedReader serverInput = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter serverOutput = new PrintWriter(socket.getOutputStream(), true);
 
                 // Use a buffered reader to let the user send messages through the client.
                 BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in))) {
             socket.startHandshake();
             System.out.println("Connected to Echo Server. Type " + HandleMode.EXIT_COMMAND + " to quit.");
 
+            // Set up a link to transfer data between the client and server.
+            ServerLink server = new ServerLink(socket.getInputStream(), socket.getOutputStream());
+
             // Wait for any messages from the server.
-            listener(socket, serverInput);
+            listener(socket, server);
+
+            if (binaryFraming) {
+                System.out.println(server.requestBinary() ? "Using binary framing."
+                        : "Server does not support binary framing. Using lines.");
+            }
 
             // Wait for any input from the user to send to the server.
-            sender(socket, serverOutput, userInput);
+            sender(socket, server, userInput);
         } catch (UnknownHostException e) {
             System.err.println("Don't know about host " + hostAddress);
             System.exit(1);
@@ -89,38 +181,58 @@ public class SecureChatClient {
         }
     }
 
+    /**
+     * Loads the keys of every chat on a background thread while the client connects.
+     */
+    private void preloadKeys() {
+        Thread preloader = new Thread(() -> {
+            long start = System.nanoTime();
+            int loaded = keyring.preload(Runtime.getRuntime().availableProcessors());
+            System.out.println("Preloaded keys for " + loaded + " chats in " + (System.nanoTime() - start) / 1000000
+                    + "ms.");
+        }, "key-preload");
+        preloader.setDaemon(true);
+        preloader.start();
+    }
+
     /**
      * Output part of the client that sends messages to the server..
      * @param socket The secure socket to the server.
-     * @param serverOutput A writer to output text to the server.
+     * @param server The link to send text and data to the server through.
      * @param userInput A reader to get user input.
      * @throws IOException
      */
-    public void sender(SSLSocket socket, PrintWriter serverOutput, BufferedReader userInput)
+    public void sender(SSLSocket socket, ServerLink server, BufferedReader userInput)
             throws IOException {
         while (!socket.isClosed()) {
-            switch (handleMode) {
+            HandleMode handledMode = handleMode;
+            switch (handledMode) {
                 case CHALLENGE_RESPONSE:
-                    challengeResponse(serverOutput);
+                    challengeResponse(server);
                     break;
                 case CHAT:
-                    chat(serverOutput, userInput);
+                    chat(server, userInput);
                     break;
                 case CHAT_CREATION:
-                    chatCreation(serverOutput, userInput);
+                    chatCreation(server, userInput);
                     break;
                 case CHAT_SELECT:
-                    chatSelect(socket, serverOutput, userInput);
+                    chatSelect(socket, server, userInput);
+                    break;
+                case SESSION:
+                    session(server, userInput);
                     break;
                 default:
-                    directMode(socket, serverOutput, userInput);
+                    directMode(socket, server, userInput);
                     break;
             }
             if (!shuttingDown) {
-                // Wait for a handle mode change.
+                // Wait for a handle mode change. The server may already have switched modes.
                 try {
                     synchronized (monitor) {
-                        monitor.wait();
+                        while (handleMode == handledMode && !socket.isClosed()) {
+                            monitor.wait();
+                        }
                     }
                 } catch (InterruptedException e) {
                     e.printStackTrace();
@@ -133,26 +245,31 @@ public class SecureChatClient {
 
     /**
      * Performs the challenge as part of the server's challenge response protocol when entering a chat.
-     * @param serverOutput A writer to output text to the server.
+     * @param server The link to the server.
      */
-    private void challengeResponse(PrintWriter serverOutput) {
+    private void challengeResponse(ServerLink server) {
         System.out.println("Entered challenge response mode.");
         try {
-            // Wait for the challenge to be received.
+            // Wait for the challenge to be received, unless it already has been.
             synchronized (monitor) {
-                monitor.wait();
+                while (challenge == null && handleMode == HandleMode.CHALLENGE_RESPONSE) {
+                    monitor.wait();
+                }
+            }
+            if (challenge == null) {
+                return;
             }
 
-            // Encrypt the challenge using the chat's private key.
-            System.out.println("Encrypting challenge.");
-            chatPrivateKey = KeyUtils.readRSAPrivateKey(chatID, keyFolder);
-            byte[] encryptedChallenge = KeyUtils.encryptBytes(challenge, chatPrivateKey,
-                    KeyUtils.RSA);
+            // Being challenged means any token for the chat has expired. Passing brings a new one.
+            joinTokens.remove(chatID);
 
-            String encryptedChallengeString = Base64.getEncoder().encodeToString(encryptedChallenge);
+            // Sign the challenge using the chat's private key.
+            System.out.println("Signing challenge.");
+            chatPrivateKey = keyring.getPrivateKey(chatID);
+            byte[] signedChallenge = KeyUtils.signChallenge(chatID, challenge, chatPrivateKey);
 
             // Send the response back to the server.
-            serverOutput.println(encryptedChallengeString);
+            server.sendData(signedChallenge);
             System.out.println("Sent challenge response to server.");
 
             // Mark the challenge as attempted.
@@ -162,34 +279,43 @@ public class SecureChatClient {
         } catch (Exception e) {
             System.out.println("Failed to do challenge.");
             System.out.println(e.toString());
-            serverOutput.println(HandleMode.CHALLENGE_FAILED);
+            try {
+                server.sendText(HandleMode.CHALLENGE_FAILED);
+            } catch (IOException sendFailure) {
+                System.out.println("Failed to report failed challenge. " + sendFailure.toString());
+            }
         }
         challenge = null;
         System.out.println("Quit challenge response mode.");
     }
 
-    private void chat(PrintWriter serverOutput, BufferedReader userInput) throws IOException {
+    private void chat(ServerLink server, BufferedReader userInput) throws IOException {
         System.out.println("Entered chat mode.");
-        chatSymmetricKey = KeyUtils.readAESKey(chatID, keyFolder);
+        try {
+            chatCrypto = keyring.getCryptoContext(chatID);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to read keys for chat " + chatID + ".", e);
+        }
         while (handleMode == HandleMode.CHAT) {
             String userInputLine;
             if ((userInputLine = userInput.readLine()) != null) {
                 if (userInputLine.length() > 0) {
                     // Check whether the user wants to quit first.
                     if (userInputLine.charAt(0) == '/') {
-                        serverOutput.println(userInputLine);
+                        server.sendText(userInputLine);
                         if (HandleMode.EXIT_COMMAND.equalsIgnoreCase(userInputLine)) {
                             break;
                         }
                     } else {
                         // If the user does not want to quit, encrypt their chat message and send it to the server.
+                        byte[] encryptedMessage;
                         try {
-                            String encryptedString = KeyUtils.encryptString(userInputLine, chatSymmetricKey,
-                                    KeyUtils.AES);
-                            serverOutput.println(encryptedString);
+                            encryptedMessage = chatCrypto.sealBytes(userInputLine.getBytes(KeyUtils.CHARSET));
                         } catch (Exception e) {
                             System.out.println("Failed to encrypt message. " + e.toString());
+                            continue;
                         }
+                        server.sendData(encryptedMessage);
                     }
                 }
             }
@@ -197,21 +323,85 @@ public class SecureChatClient {
         System.out.println("Quit chat mode.");
     }
 
-    private void chatCreation(PrintWriter serverOutput, BufferedReader userInput) throws IOException {
+    /**
+     * Input part of a multi-chat session. Commands name their chat, as in "/join 3", and messages start with
+     * the number of the chat they are for, as in "3 hello".
+     */
+    private void session(ServerLink server, BufferedReader userInput) throws IOException {
+        System.out.println("Entered multi-chat session.");
+        while (handleMode == HandleMode.SESSION) {
+            String userInputLine;
+            if ((userInputLine = userInput.readLine()) != null && userInputLine.length() > 0) {
+                if (userInputLine.charAt(0) == '/') {
+                    if (userInputLine.startsWith(HandleMode.JOIN_COMMAND + " ")) {
+                        // Expect the challenge before the server can send it.
+                        int sessionChat;
+                        try {
+                            sessionChat = Integer.parseInt(
+                                    userInputLine.substring(HandleMode.JOIN_COMMAND.length() + 1).trim());
+                        } catch (NumberFormatException e) {
+                            System.out.println("Failed to read \"" + userInputLine + "\". Please enter a valid integer.");
+                            continue;
+                        }
+                        pendingJoins.add(sessionChat);
+                        String token = joinTokens.get(sessionChat);
+                        if (token != null) {
+                            userInputLine = HandleMode.JOIN_COMMAND + " " + sessionChat + " " + token;
+                        }
+                    }
+                    server.sendText(userInputLine);
+                    if (HandleMode.EXIT_COMMAND.equalsIgnoreCase(userInputLine)) {
+                        break;
+                    }
+                    continue;
+                }
+
+                // Encrypt the message for the chat it starts with.
+                int space = userInputLine.indexOf(' ');
+                int sessionChat = -1;
+                KeyUtils.CryptoContext crypto = null;
+                if (space > 0) {
+                    try {
+                        sessionChat = Integer.parseInt(userInputLine.substring(0, space));
+                        crypto = sessionChats.get(sessionChat);
+                    } catch (NumberFormatException e) {
+                        crypto = null;
+                    }
+                }
+                if (crypto == null) {
+                    System.out.println("Start messages with the number of a joined chat.");
+                    continue;
+                }
+                byte[] encryptedMessage;
+                try {
+                    encryptedMessage = crypto.sealBytes(userInputLine.substring(space + 1).getBytes(KeyUtils.CHARSET));
+                } catch (Exception e) {
+                    System.out.println("Failed to encrypt message. " + e.toString());
+                    continue;
+                }
+                server.sendChatData(sessionChat, encryptedMessage);
+            }
+        }
+        sessionChats.clear();
+        pendingJoins.clear();
+        System.out.println("Quit multi-chat session.");
+    }
+
+    private void chatCreation(ServerLink server, BufferedReader userInput) throws IOException {
         System.out.println("Entered chat creation mode.");
         String userInputLine;
         if ((userInputLine = userInput.readLine()) != null) {
             // Check whether the user wants to quit first.
             if (HandleMode.EXIT_COMMAND.equalsIgnoreCase(userInputLine)) {
-                serverOutput.println(userInputLine);
+                server.sendText(userInputLine);
                 return;
             }
 
             // If the user does not want to quit, create keys for the new chat.
             try {
-                KeyPair rsaKeyPair = KeyUtils.generateRSAKeyPair();
-                chatPublicKey = rsaKeyPair.getPublic();
-                chatPrivateKey = rsaKeyPair.getPrivate();
+                KeyPair chatKeyPair = ed25519Keys ? KeyUtils.generateEd25519KeyPair() : KeyUtils.generateRSAKeyPair();
+                chatPublicKey = chatKeyPair.getPublic();
+                chatPrivateKey = chatKeyPair.getPrivate();
                 chatSymmetricKey = KeyUtils.generateAESKey();
             } catch (Exception e) {
                 System.out.println("Failed to generate keys for new chat.");
@@ -219,23 +409,23 @@ public class SecureChatClient {
 
             // Encrypt the chat name and send it to the server.
             try {
-                String encryptedChatName = KeyUtils.encryptString(userInputLine, chatSymmetricKey,
-                        KeyUtils.AES);
-                serverOutput.println(encryptedChatName);
-            } catch (Exception e) {
+                byte[] encryptedChatName = KeyUtils.sealBytes(userInputLine.getBytes(KeyUtils.CHARSET),
+                        chatSymmetricKey);
+                server.sendData(encryptedChatName);
+            } catch (GeneralSecurityException e) {
                 System.out.println("Failed to encrypt message.");
             }
 
             // Send the public key to the server.
-            String chatPublicKeyString = Base64.getEncoder().encodeToString(chatPublicKey.getEncoded());
-            System.out.println("Sending public key bytes: " + chatPublicKeyString);
-            serverOutput.println(chatPublicKeyString);
+            System.out.println("Sending public key bytes: "
+                    + Base64.getEncoder().encodeToString(chatPublicKey.getEncoded()));
+            server.sendData(chatPublicKey.getEncoded());
             System.out.println("Generated keys successfully.");
         }
         System.out.println("Quit chat creation mode.");
     }
 
-    private void chatSelect(SSLSocket socket, PrintWriter serverOutput, BufferedReader userInput) throws IOException {
+    private void chatSelect(SSLSocket socket, ServerLink server, BufferedReader userInput) throws IOException {
         String userInputLine;
         System.out.println("Entered chat select mode.");
         if ((userInputLine = userInput.readLine()) != null) {
@@ -247,12 +437,20 @@ public class SecureChatClient {
                 return;
             } else if (HandleMode.CHAT_CREATION_COMMAND.equalsIgnoreCase(userInputLine)) {
                 // Check whether the user wants to switch to chat creation mode.
-                serverOutput.println(userInputLine);
+                server.sendText(userInputLine);
+            } else if (HandleMode.SESSION_COMMAND.equalsIgnoreCase(userInputLine)) {
+                if (server.isBinary()) {
+                    server.sendText(userInputLine);
+                } else {
+                    System.out.println("Multi-chat sessions need " + BINARY_OPTION + ".");
+                }
             } else {
-                // If the user does not want to quit, send chat ID.
+                // If the user does not want to quit, send chat ID, with a token to skip the challenge if there is one.
                 try {
                     chatID = Integer.parseInt(userInputLine);
-                    serverOutput.println(chatID);
+                    String token = joinTokens.get(chatID);
+                    server.sendText(token == null ? Integer.toString(chatID)
+                            : HandleMode.REJOIN_COMMAND + " " + chatID + " " + token);
                 } catch (NumberFormatException e) {
                     System.out
                             .println("Failed to read \"" + userInputLine + "\". Please enter a valid integer.");
@@ -262,7 +460,7 @@ public class SecureChatClient {
         System.out.println("Quit chat select mode.");
     }
 
-    private void directMode(SSLSocket socket, PrintWriter serverOutput, BufferedReader userInput) throws IOException {
+    private void directMode(SSLSocket socket, ServerLink server, BufferedReader userInput) throws IOException {
         String userInputLine;
         if ((userInputLine = userInput.readLine()) != null) {
             // Check whether the user wants to quit first.
@@ -274,28 +472,30 @@ public class SecureChatClient {
             }
 
             // If the user does not want to quit, send the unencrypted chat selection message.
-            serverOutput.println(userInputLine);
+            server.sendText(userInputLine);
         }
     }
 
     // Java Socket Programming - Multiple Clients Chat - WittCode - https://youtu.be/gLfuZrrfKes - Accessed 11.11.2023
-    public void listener(SSLSocket socket, BufferedReader serverInput) {
+    public void listener(SSLSocket socket, ServerLink server) {
         new Thread(new Runnable() {
             @Override
             public void run() {
                 try {
                     while (!socket.isClosed()) {
                         // Get any messages from the server and print them.
-                        String serverResponse;
-                        if ((serverResponse = serverInput.readLine()) != null) {
+                        Frame serverResponse;
+                        if ((serverResponse = server.read()) != null) {
                             if (!shuttingDown) {
-                                boolean changedMode = checkHandleMode(serverResponse);
+                                boolean changedMode = checkHandleMode(server, serverResponse);
                                 if (!changedMode) {
-                                    processResponse(serverResponse);
+                                    processResponse(server, serverResponse);
                                 }
                             } else {
                                 break;
                             }
+                        } else {
+                            break;
                         }
                     }
                 } catch (IOException e) {
@@ -308,8 +508,16 @@ public class SecureChatClient {
         }).start();
     }
 
-    private boolean checkHandleMode(String serverResponse) {
-        HandleMode newHandleMode = HandleMode.stringToHandleMode(serverResponse);
+    private boolean checkHandleMode(ServerLink server, Frame serverResponse) {
+        HandleMode newHandleMode;
+        if (serverResponse.getType() == Frame.MODE) {
+            newHandleMode = serverResponse.getMode();
+        } else if (serverResponse.getType() == Frame.TEXT && !server.isBinary()) {
+            // The line protocol spells out mode switches as lines.
+            newHandleMode = HandleMode.stringToHandleMode(serverResponse.getText());
+        } else {
+            return false;
+        }
         if (newHandleMode != null && handleMode != newHandleMode) {
             handleMode = newHandleMode;
             System.out.println("Switched handle mode: " + handleMode);
@@ -321,51 +529,159 @@ public class SecureChatClient {
         return false;
     }
 
-    private void processResponse(String serverResponse) {
+    private void processResponse(ServerLink server, Frame serverResponse) {
+        if (saveJoinToken(serverResponse)) {
+            return;
+        }
+        byte[] data = server.dataOf(serverResponse);
         switch (handleMode) {
             case CHAT:
                 try {
-                    if (chatSymmetricKey == null) {
-                        chatSymmetricKey = KeyUtils.readAESKey(chatID, keyFolder);
+                    if (data == null) {
+                        System.out.println("Server response: " + serverResponse.getText());
+                        break;
                     }
-                    // Decrypt the message before displaying it.
-                    String decryptedString = KeyUtils.decryptString(serverResponse,
-                            chatSymmetricKey,
-                            KeyUtils.AES);
+                    if (chatCrypto == null) {
+                        chatCrypto = keyring.getCryptoContext(chatID);
+                    }
+                    // Decrypt the message before displaying it. Lines from before envelopes are still readable.
+                    String decryptedString = new String(openLine(chatCrypto, data), KeyUtils.CHARSET);
                     System.out.println("> " + decryptedString);
                 } catch (Exception e) {
-                    System.out.println("Server response: " + serverResponse);
+                    System.out.println("Server response: " + serverResponse.getText());
                 }
                 break;
             case CHALLENGE_RESPONSE:
                 if (challenge == null) {
-                    try {
-                        challenge = Base64.getDecoder().decode(serverResponse);
-                        System.out.println("Received challenge: " + serverResponse);
+                    if (data != null) {
+                        challenge = data;
+                        System.out.println("Received challenge: " + serverResponse.getText());
                         synchronized (monitor) {
                             monitor.notify();
                         }
-                    } catch (Exception e) {
-                        System.out.println("Server response: " + serverResponse);
+                    } else {
+                        System.out.println("Server response: " + serverResponse.getText());
                     }
                 }
                 break;
             case CHAT_CREATION:
                 try {
-                    chatID = Integer.parseInt(serverResponse);
+                    chatID = Integer.parseInt(serverResponse.getText());
                     System.out.println("Got new chat ID: " + chatID);
 
                     // Wait for the new chat to be created on the database before saving the keys.
-                    KeyUtils.saveRSAPrivateKey(chatID, chatPrivateKey, keyFolder);
-                    KeyUtils.saveRSAPublicKey(chatID, chatPublicKey, keyFolder);
-                    KeyUtils.saveAESKey(chatID, chatSymmetricKey, keyFolder);
+                    keyring.save(chatID, new KeyPair(chatPublicKey, chatPrivateKey), chatSymmetricKey);
                 } catch (NumberFormatException e) {
-                    System.out.println("Server response: " + serverResponse);
+                    System.out.println("Server response: " + serverResponse.getText());
+                } catch (IOException e) {
+                    System.out.println("Failed to save keys for chat " + chatID + ". " + e.toString());
                 }
                 break;
+            case SESSION:
+                sessionResponse(server, serverResponse);
+                break;
             default:
-                System.out.println("Server response: " + serverResponse);
+                System.out.println("Server response: " + serverResponse.getText());
                 break;
         }
     }
+
+    /**
+     * Keeps a rejoin token if the server sent one. Tokens can arrive in any mode.
+     * @return Whether the response was a token.
+     */
+    private boolean saveJoinToken(Frame serverResponse) {
+        if (serverResponse.getType() != Frame.TEXT
+                || !serverResponse.getText().startsWith(HandleMode.TOKEN_REPLY + " ")) {
+            return false;
+        }
+        String[] words = serverResponse.getText().split(" ");
+        try {
+            if (words.length == 3) {
+                joinTokens.put(Integer.parseInt(words[1]), words[2]);
+                return true;
+            }
+        } catch (NumberFormatException e) {
+            // Not a token after all.
+        }
+        return false;
+    }
+
+    private void sessionResponse(ServerLink server, Frame serverResponse) {
+        if (serverResponse.getType() == Frame.CHAT_DATA) {
+            int sessionChat = serverResponse.getChatID();
+            if (pendingJoins.remove(sessionChat)) {
+                answerSessionChallenge(server, sessionChat, serverResponse.getChatData());
+                return;
+            }
+            KeyUtils.CryptoContext crypto = sessionChats.get(sessionChat);
+            if (crypto != null) {
+                try {
+                    String decryptedString = new String(openLine(crypto, serverResponse.getChatData()),
+                            KeyUtils.CHARSET);
+                    System.out.println("[" + sessionChat + "] > " + decryptedString);
+                } catch (GeneralSecurityException e) {
+                    System.out.println("[" + sessionChat + "] Failed to decrypt message.");
+                }
+            }
+            return;
+        }
+
+        String text = serverResponse.getText();
+        String[] words = text.split(" ");
+        if (words.length > 1
+                && (HandleMode.JOINED_REPLY.equals(words[0]) || HandleMode.LEFT_REPLY.equals(words[0]))) {
+            try {
+                int sessionChat = Integer.parseInt(words[1]);
+                if (HandleMode.JOINED_REPLY.equals(words[0])) {
+                    joinedSessionChat(sessionChat, words.length > 2 ? words[2] : "");
+                } else {
+                    pendingJoins.remove(sessionChat);
+                    sessionChats.remove(sessionChat);
+                    System.out.println("Left chat " + sessionChat + ".");
+                }
+                return;
+            } catch (NumberFormatException e) {
+                // Not a reply after all.
+            }
+        }
+        System.out.println("Server response: " + text);
+    }
+
+    private void answerSessionChallenge(ServerLink server, int sessionChat, byte[] sessionChallenge) {
+        joinTokens.remove(sessionChat);
+        try {
+            PrivateKey privateKey = keyring.getPrivateKey(sessionChat);
+            server.sendChatData(sessionChat, KeyUtils.signChallenge(sessionChat, sessionChallenge, privateKey));
+            System.out.println("Sent challenge response for chat " + sessionChat + ".");
+        } catch (Exception e) {
+            System.out.println("Failed to do challenge for chat " + sessionChat + ". " + e.toString());
+            try {
+                server.sendText(HandleMode.LEAVE_COMMAND + " " + sessionChat);
+            } catch (IOException sendFailure) {
+                System.out.println("Failed to report failed challenge. " + sendFailure.toString());
+            }
+        }
+    }
+
+    /**
+     * Decrypts a chat line, accepting legacy lines unless only sealed lines are allowed.
+     */
+    private byte[] openLine(KeyUtils.CryptoContext crypto, byte[] line) throws GeneralSecurityException {
+        return sealedOnly ? crypto.openSealedBytes(line) : crypto.openBytes(line);
+    }
+
+    private void joinedSessionChat(int sessionChat, String encryptedName) {
+        // Joining with a token skips the challenge, so the join may still be pending.
+        pendingJoins.remove(sessionChat);
+        try {
+            KeyUtils.CryptoContext crypto = keyring.getCryptoContext(sessionChat);
+            String chatName = encryptedName.isEmpty() ? ""
+                    : new String(crypto.openBytes(Base64.getDecoder().decode(encryptedName)), KeyUtils.CHARSET);
+            sessionChats.put(sessionChat, crypto);
+            System.out.println("Joined chat " + sessionChat + ": " + chatName);
+        } catch (Exception e) {
+            System.out.println("Failed to read key for chat " + sessionChat + ". " + e.toString());
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,153 @@
+package Client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Base64;
+
+import Shared.Frame;
+import Shared.HandleMode;
+
+/**
+ * The client's end of the connection to the server.
+ * Speaks the line protocol until binary framing has been negotiated, then frames. Either way the rest of the
+ * client sends text and data and reads frames, with data Base64 encoded only while lines are in use.
+ * One thread sends and another reads.
+ */
+public class ServerLink {
+    static final Charset CHARSET = Charset.defaultCharset();
+
+    final DataInputStream input;
+    final DataOutputStream output;
+    final Object negotiationMonitor = new Object();
+    volatile boolean binary;
+    // Guarded by negotiationMonitor.
+    boolean negotiating;
+
+    public ServerLink(InputStream input, OutputStream output) {
+        this.input = new DataInputStream(new BufferedInputStream(input));
+        this.output = new DataOutputStream(new BufferedOutputStream(output));
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Asks the server for binary framing and waits for its answer, which is picked up by the reading thread.
+     * Servers that only know the line protocol reject the request as an invalid chat number, and the link
+     * carries on with lines.
+     * @return Whether binary framing is in use.
+     */
+    public boolean requestBinary() throws IOException {
+        synchronized (negotiationMonitor) {
+            negotiating = true;
+        }
+        sendText(HandleMode.HELLO_BINARY_COMMAND);
+        synchronized (negotiationMonitor) {
+            try {
+                while (negotiating) {
+                    negotiationMonitor.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return binary;
+    }
+
+    public synchronized void sendText(String text) throws IOException {
+        if (binary) {
+            Frame.text(text).write(output);
+        } else {
+            output.write(text.getBytes(CHARSET));
+            output.write('\n');
+        }
+        output.flush();
+    }
+
+    public synchronized void sendData(byte[] data) throws IOException {
+        if (binary) {
+            Frame.data(data).write(output);
+            output.flush();
+        } else {
+            sendText(Base64.getEncoder().encodeToString(data));
+        }
+    }
+
+    /**
+     * Sends data for one chat of a multi-chat session. Needs binary framing.
+     */
+    public synchronized void sendChatData(int chatID, byte[] data) throws IOException {
+        if (!binary) {
+            throw new IOException("Chat data can only be sent with binary framing.");
+        }
+        Frame.chatData(chatID, data).write(output);
+        output.flush();
+    }
+
+    /**
+     * Reads the next frame from the server. With the line protocol each line is returned as a TEXT frame.
+     * @return The frame, or null once the server has closed the connection.
+     */
+    public Frame read() throws IOException {
+        while (true) {
+            if (binary) {
+                Frame frame = Frame.read(input);
+                if (frame == null) {
+                    endNegotiation(false);
+                }
+                return frame;
+            }
+            String line = Frame.readLine(input, CHARSET);
+            if (line == null) {
+                endNegotiation(false);
+                return null;
+            }
+            if (isNegotiating() && line.contains(HandleMode.HELLO_BINARY_COMMAND)) {
+                // Either the server's echo, after which it sends frames, or an older server's rejection.
+                endNegotiation(line.equals(HandleMode.HELLO_BINARY_COMMAND));
+                continue;
+            }
+            return Frame.text(line);
+        }
+    }
+
+    /**
+     * @return The frame's data, decoding Base64 if the line protocol is in use, or null if it carries none.
+     */
+    public byte[] dataOf(Frame frame) {
+        if (frame.getType() == Frame.DATA) {
+            return frame.getPayload();
+        }
+        if (binary || frame.getType() != Frame.TEXT) {
+            return null;
+        }
+        try {
+            return Base64.getDecoder().decode(frame.getText());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private boolean isNegotiating() {
+        synchronized (negotiationMonitor) {
+            return negotiating;
+        }
+    }
+
+    private void endNegotiation(boolean accepted) {
+        synchronized (negotiationMonitor) {
+            if (negotiating) {
+                binary = accepted;
+                negotiating = false;
+                negotiationMonitor.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * A line of (encrypted) chat text belonging to a chat.
+ */
+public class ChatLine {
+    // Unset until the line has been saved.
+    public static final long NO_ID = -1;
+    final long id;
+    final int chatID;
+    final String text;
+
+    public ChatLine(int chatID, String text) {
+        this(NO_ID, chatID, text);
+    }
+
+    public ChatLine(long id, int chatID, String text) {
+        this.id = id;
+        this.chatID = chatID;
+        this.text = text;
+    }
+
+    public long getID() {
+        return id;
+    }
+
+    public int getChatID() {
+        return chatID;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+
+import Shared.KeyUtils;
+
+/**
+ * Rewrites a chat's saved lines from the legacy AES/ECB format into AES-GCM message envelopes.
+ * The server never holds chat keys, so this is run by a member of the chat with the chat's key folder and
+ * database access. Lines already in envelopes are left alone, so the migration can be stopped and run again,
+ * and it can run while the server is up since clients read both formats. A segment store can only be used by one
+ * process, so for one of those the server has to be stopped first.
+ * Once a chat has been migrated its members can run the client with --sealed-only to refuse legacy lines.
+ */
+public class ChatLineMigration {
+    public static void main(String[] args) throws Exception {
+        ServerConfig config = new ServerConfig(args);
+        if (config.positionalCount() < 5) {
+            throw new IllegalArgumentException(
+                    "Usage: java ChatLineMigration <dbURL|segments:<directory>> <dbUser> <dbPassword> <chat id>"
+                            + " <chat key folder> [--batch=500] [--dry-run=false]");
+        }
+        ChatStore chatStore = SegmentChatStore.open(config.getPositional(0), config.getPositional(1),
+                config.getPositional(2));
+        int chatID = Integer.parseInt(config.getPositional(3));
+        SecretKey key = KeyUtils.readAESKey(chatID, config.getPositional(4));
+        new ChatLineMigration(chatStore, chatID, key, config.getInt("batch", 500),
+                config.getBoolean("dry-run", false)).run();
+    }
+
+    final ChatStore chatStore;
+    final int chatID;
+    final SecretKey key;
+    final int batchSize;
+    final boolean dryRun;
+
+    long migrated;
+    long alreadySealed;
+    long skipped;
+
+    public ChatLineMigration(ChatStore chatStore, int chatID, SecretKey key, int batchSize, boolean dryRun) {
+        this.chatStore = chatStore;
+        this.chatID = chatID;
+        this.key = key;
+        this.batchSize = Math.max(1, batchSize);
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * Walks the chat in ID order, sealing and saving each batch of legacy lines in its own transaction.
+     */
+    public void run() throws SQLException, IOException {
+        long afterID = 0;
+        List<ChatLine> page;
+        do {
+            page = chatStore.readChatAfter(chatID, afterID, batchSize);
+            List<ChatLine> originals = new ArrayList<ChatLine>();
+            List<ChatLine> replacements = new ArrayList<ChatLine>();
+            for (ChatLine line : page) {
+                String sealed = reseal(line);
+                if (sealed != null) {
+                    originals.add(line);
+                    replacements.add(new ChatLine(line.getID(), chatID, sealed));
+                }
+            }
+            if (!replacements.isEmpty() && !dryRun) {
+                int updated = chatStore.updateChatLines(originals, replacements);
+                migrated += updated;
+                skipped += replacements.size() - updated;
+            } else {
+                migrated += replacements.size();
+            }
+            if (!page.isEmpty()) {
+                afterID = page.get(page.size() - 1).getID();
+                System.out.println("Migrated chat " + chatID + " up to line " + afterID + ".");
+            }
+        } while (page.size() == batchSize);
+
+        System.out.println((dryRun ? "Would migrate " : "Migrated ") + migrated + " lines, " + alreadySealed
+                + " already sealed, " + skipped + " skipped.");
+    }
+
+    /**
+     * @return The line sealed into an envelope, or null if it does not need or cannot take migrating.
+     */
+    private String reseal(ChatLine line) {
+        try {
+            byte[] message = Base64.getDecoder().decode(line.getText());
+            if (KeyUtils.isEnvelope(message)) {
+                try {
+                    KeyUtils.openEnvelope(message, key);
+                    alreadySealed++;
+                    return null;
+                } catch (GeneralSecurityException e) {
+                    // A legacy line that happens to start with the version byte.
+                }
+            }
+            // Sealed as decrypted, so the text's bytes are kept exactly even if they are not valid in any charset.
+            String sealed = Base64.getEncoder().encodeToString(
+                    KeyUtils.sealBytes(KeyUtils.decryptBytes(message, key, KeyUtils.AES), key));
+            if (sealed.length() > ChatStore.LINE_TEXT_LENGTH) {
+                System.out.println("Line " + line.getID() + " is too long to seal. Leaving it as it is.");
+                skipped++;
+                return null;
+            }
+            return sealed;
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            System.out.println("Failed to decrypt line " + line.getID() + ". Leaving it as it is. " + e.toString());
+            skipped++;
+            return null;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import Shared.Log;
+
+/**
+ * Saves chat lines to the database in the background.
+ * Handlers append lines to an in-memory journal and carry on. A single writer thread takes everything that
+ * has built up, up to a batch size, and inserts it in one transaction. A batch is written once it is full or
+ * once its oldest line has waited for the maximum delay, so a burst of messages costs a few round trips
+ * instead of one per message. If a batch fails, its lines are written again one at a time, so one line that
+ * cannot be saved does not fail the others.
+ */
+public class ChatLineWriter implements Runnable {
+    static final Log LOG = Log.get(ChatLineWriter.class);
+    final ChatStore chatStore;
+    final RecentHistoryCache recentHistory;
+    final Durability durability;
+    final int maxBatchSize;
+    final long maxDelayNanos;
+    final int capacity;
+
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition notEmpty = lock.newCondition();
+    final Condition notFull = lock.newCondition();
+    final ArrayDeque<PendingLine> journal = new ArrayDeque<PendingLine>();
+    // Started by start rather than the constructor, so the thread never sees a writer that is half built.
+    volatile Thread writerThread;
+    boolean closed;
+
+    // Metrics.
+    final LongAdder linesWritten = new LongAdder();
+    final LongAdder batchesWritten = new LongAdder();
+    final LongAdder linesFailed = new LongAdder();
+
+    /**
+     * @param chatStore Used to insert the batches.
+     * @param recentHistory Given each batch once it is committed, or null if there is no history cache.
+     * @param durability Whether callers should wait for the commit before relaying a line.
+     * @param maxBatchSize The most lines to insert in one transaction.
+     * @param maxDelayMillis How long a line may wait for its batch to fill before it is written anyway.
+     * @param capacity The most lines to hold in memory before appending blocks.
+     */
+    public ChatLineWriter(ChatStore chatStore, RecentHistoryCache recentHistory, Durability durability,
+            int maxBatchSize, long maxDelayMillis, int capacity) {
+        this.chatStore = chatStore;
+        this.recentHistory = recentHistory;
+        this.durability = durability;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMillis));
+        this.capacity = Math.max(this.maxBatchSize, capacity);
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "chat-line-writer");
+        thread.setDaemon(true);
+        writerThread = thread;
+        thread.start();
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Adds a line to the journal. Blocks if the journal is full until the writer catches up.
+     * @param chatID The chat the line belongs to.
+     * @param text The line to save.
+     * @return A future that completes once the line has been committed, or fails if it could not be saved.
+     */
+    public CompletableFuture<Void> append(int chatID, String text) {
+        PendingLine pending = new PendingLine(new ChatLine(chatID, text));
+        lock.lock();
+        try {
+            while (journal.size() >= capacity && !closed) {
+                notFull.awaitUninterruptibly();
+            }
+            if (closed) {
+                pending.written.completeExceptionally(new SQLException("The chat line writer has been closed."));
+                return pending.written;
+            }
+            journal.add(pending);
+            if (journal.size() == 1 || journal.size() >= maxBatchSize) {
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return pending.written;
+    }
+
+    @Override
+    public void run() {
+        List<PendingLine> batch = new ArrayList<PendingLine>(maxBatchSize);
+        while (takeBatch(batch)) {
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Waits for a batch to be ready and moves it out of the journal.
+     * @return False once the writer is closed and the journal is empty.
+     */
+    private boolean takeBatch(List<PendingLine> batch) {
+        lock.lock();
+        try {
+            while (journal.isEmpty()) {
+                if (closed) {
+                    return false;
+                }
+                notEmpty.awaitUninterruptibly();
+            }
+            // Give the batch a chance to fill, counting from when its oldest line was appended.
+            long deadline = journal.peek().appendedAt + maxDelayNanos;
+            long remaining;
+            while (journal.size() < maxBatchSize && !closed && (remaining = deadline - System.nanoTime()) > 0) {
+                notEmpty.awaitNanos(remaining);
+            }
+            PendingLine pending;
+            while (batch.size() < maxBatchSize && (pending = journal.poll()) != null) {
+                batch.add(pending);
+            }
+            notFull.signalAll();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeBatch(List<PendingLine> batch) {
+        List<ChatLine> lines = new ArrayList<ChatLine>(batch.size());
+        for (PendingLine pending : batch) {
+            lines.add(pending.line);
+        }
+        try {
+            List<ChatLine> saved = chatStore.sendToChat(lines);
+            if (recentHistory != null) {
+                recentHistory.appendCommitted(saved);
+            }
+            linesWritten.add(batch.size());
+            batchesWritten.increment();
+            for (PendingLine pending : batch) {
+                pending.written.complete(null);
+            }
+        } catch (SQLException e) {
+            if (batch.size() == 1) {
+                failed(batch.get(0), e);
+                return;
+            }
+            LOG.warn("Failed to save a batch of " + batch.size() + " chat lines. Saving them one at a time. "
+                    + e.getMessage());
+            for (PendingLine pending : batch) {
+                writeLine(pending);
+            }
+        }
+    }
+
+    private void writeLine(PendingLine pending) {
+        try {
+            List<ChatLine> saved = chatStore.sendToChat(Collections.singletonList(pending.line));
+            if (recentHistory != null) {
+                recentHistory.appendCommitted(saved);
+            }
+            linesWritten.increment();
+            pending.written.complete(null);
+        } catch (SQLException e) {
+            failed(pending, e);
+        }
+    }
+
+    private void failed(PendingLine pending, SQLException e) {
+        LOG.error("Failed to save a chat line for chat " + pending.line.getChatID() + ". " + e.getMessage());
+        linesFailed.increment();
+        if (recentHistory != null) {
+            // The line may have been saved after all, so the buffer cannot be trusted to match the store.
+            recentHistory.invalidate(pending.line.getChatID());
+        }
+        pending.written.completeExceptionally(e);
+    }
+
+    /**
+     * Writes out whatever is left in the journal and stops the writer.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            Thread thread = writerThread;
+            if (thread != null) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPendingLines() {
+        lock.lock();
+        try {
+            return journal.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getLinesWritten() {
+        return linesWritten.sum();
+    }
+
+    public long getBatchesWritten() {
+        return batchesWritten.sum();
+    }
+
+    public long getLinesFailed() {
+        return linesFailed.sum();
+    }
+
+    static class PendingLine {
+        final ChatLine line;
+        final long appendedAt = System.nanoTime();
+        final CompletableFuture<Void> written = new CompletableFuture<Void>();
+
+        PendingLine(ChatLine line) {
+            this.line = line;
+        }
+    }
+}
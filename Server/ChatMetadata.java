@@ -0,0 +1,70 @@
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import Shared.KeyUtils;
+
+/**
+ * What the server needs to know about a chat to let clients into it: its public key, already decoded, and
+ * its encrypted name.
+ * Challenge proofs are checked with signatures already initialised with the public key. A Signature can only
+ * be used by one thread at a time, so each check borrows one and returns it, and concurrent checks for the
+ * same chat create more as needed.
+ */
+public class ChatMetadata {
+    final int chatID;
+    final String chatName;
+    final PublicKey publicKey;
+    final ConcurrentLinkedQueue<Signature> verifiers = new ConcurrentLinkedQueue<Signature>();
+
+    public ChatMetadata(int chatID, String chatName, PublicKey publicKey) {
+        this.chatID = chatID;
+        this.chatName = chatName;
+        this.publicKey = publicKey;
+    }
+
+    public int getChatID() {
+        return chatID;
+    }
+
+    public String getChatName() {
+        return chatName;
+    }
+
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * @return Whether the chat's key is RSA, so clients from before signature proofs may still answer challenges
+     *         by encrypting them with the private key.
+     */
+    public boolean acceptsLegacyProof() {
+        return KeyUtils.RSA.equals(publicKey.getAlgorithm());
+    }
+
+    /**
+     * Checks a signature over a challenge against the chat's public key.
+     * @param challenge The challenge sent to the client.
+     * @param proof The client's response.
+     * @return Whether the response is a valid signature.
+     */
+    public boolean verifyProof(byte[] challenge, byte[] proof) throws GeneralSecurityException {
+        Signature verifier = verifiers.poll();
+        if (verifier == null) {
+            verifier = KeyUtils.newProofSignature(publicKey);
+            verifier.initVerify(publicKey);
+        }
+        boolean valid;
+        try {
+            valid = KeyUtils.verifyChallenge(verifier, chatID, challenge, proof);
+        } catch (SignatureException e) {
+            // Not a signature, such as a legacy response. The verifier's state is unknown, so it is dropped.
+            return false;
+        }
+        verifiers.offer(verifier);
+        return valid;
+    }
+}
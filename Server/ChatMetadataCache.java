@@ -0,0 +1,139 @@
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded cache of chat metadata keyed by chat ID, so that challenge-responses and chat entries do not each
+ * query the database and decode the chat's public key again.
+ * A miss reads the key and name together in one query. Concurrent misses for the same chat share that
+ * query. Once full, the least recently used chat is dropped.
+ */
+public class ChatMetadataCache {
+    final ChatStore chatStore;
+    final int maxEntries;
+    final ReentrantLock lock = new ReentrantLock();
+    final LinkedHashMap<Integer, ChatMetadata> entries;
+    final ConcurrentHashMap<Integer, CompletableFuture<ChatMetadata>> loading = new ConcurrentHashMap<Integer, CompletableFuture<ChatMetadata>>();
+
+    // Metrics.
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param chatStore Used to read chats that are not cached.
+     * @param maxEntries The most chats to keep, or 0 to always read from the database.
+     */
+    public ChatMetadataCache(ChatStore chatStore, int maxEntries) {
+        this.chatStore = chatStore;
+        this.maxEntries = Math.max(0, maxEntries);
+        entries = new LinkedHashMap<Integer, ChatMetadata>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ChatMetadata> eldest) {
+                if (size() > ChatMetadataCache.this.maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets a chat's metadata, reading it from the database if it is not cached.
+     * @param chatID The chat to look up.
+     * @return The chat's metadata, or null if there is no such chat.
+     */
+    public ChatMetadata get(int chatID) throws SQLException {
+        lock.lock();
+        try {
+            ChatMetadata metadata = entries.get(chatID);
+            if (metadata != null) {
+                hits.increment();
+                return metadata;
+            }
+        } finally {
+            lock.unlock();
+        }
+        misses.increment();
+
+        CompletableFuture<ChatMetadata> load = new CompletableFuture<ChatMetadata>();
+        CompletableFuture<ChatMetadata> existing = loading.putIfAbsent(chatID, load);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof SQLException) {
+                    throw (SQLException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        try {
+            ChatMetadata metadata = chatStore.readChatMetadata(chatID);
+            // Missing chats are not cached since a chat may be created with that ID later.
+            if (metadata != null && maxEntries > 0) {
+                lock.lock();
+                try {
+                    entries.put(chatID, metadata);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            load.complete(metadata);
+            return metadata;
+        } catch (SQLException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(chatID, load);
+        }
+    }
+
+    /**
+     * Drops a chat from the cache, for example after its key has been changed.
+     * @param chatID The chat to drop.
+     */
+    public void invalidate(int chatID) {
+        lock.lock();
+        try {
+            entries.remove(chatID);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public String getStats() {
+        return String.format("Chat metadata: %d cached, %d hits, %d misses, %d evictions", size(), getHits(),
+                getMisses(), getEvictions());
+    }
+}
@@ -0,0 +1,56 @@
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of which handlers are in each chat, keyed by chat ID.
+ * Broadcasting a message only visits the members of its room, and the membership sets are concurrent so they
+ * can be iterated without locking while other members join and leave.
+ */
+public class ChatRoomRegistry {
+    final ConcurrentHashMap<Integer, Set<ClientHandler>> rooms = new ConcurrentHashMap<Integer, Set<ClientHandler>>();
+
+    /**
+     * Adds a handler to a chat's room, creating the room if needed.
+     * @param chatID The chat being entered.
+     * @param handler The handler entering the chat.
+     */
+    public void join(int chatID, ClientHandler handler) {
+        rooms.compute(chatID, (id, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            members.add(handler);
+            return members;
+        });
+    }
+
+    /**
+     * Removes a handler from a chat's room, dropping the room once it is empty.
+     * @param chatID The chat being left.
+     * @param handler The handler leaving the chat.
+     */
+    public void leave(int chatID, ClientHandler handler) {
+        rooms.computeIfPresent(chatID, (id, members) -> {
+            members.remove(handler);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    /**
+     * Gets the handlers currently in a chat. The set is live and safe to iterate while it changes.
+     * @param chatID The chat to look up.
+     * @return The members of the chat.
+     */
+    public Set<ClientHandler> members(int chatID) {
+        Set<ClientHandler> members = rooms.get(chatID);
+        return members == null ? Collections.<ClientHandler>emptySet() : members;
+    }
+
+    /**
+     * @return The number of chats with at least one member.
+     */
+    public int roomCount() {
+        return rooms.size();
+    }
+}
@@ -0,0 +1,560 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import Shared.Log;
+
+/**
+ * One chat's lines, kept in append-only segment files in the chat's directory.
+ * Each record is its text length, a CRC32 of its ID and text, its ID, and then its UTF-8 text. A chat's line IDs
+ * start at 1 and go up by one, so a segment, named after its first ID, holds a known run of lines. A sparse index
+ * of the offset of every INDEX_INTERVAL-th record finds any line with a short walk forward.
+ * Lines are appended through a FileChannel. Sealed segments are read through memory-mapped views, and the newest
+ * with positional reads on its channel, since it grows with every append and would otherwise need mapping again.
+ * A read-write lock keeps readers from seeing a half-written record.
+ * A chat that has not been used for a while can be released, closing its channel and dropping its mappings to
+ * save file descriptors. Its index is kept, so it opens again on its next use without another scan.
+ * The newest segment is checked record by record when the chat is opened and cut back to its last whole record,
+ * which drops a write torn by a crash. Older segments were forced before the next one was started.
+ */
+class ChatSegments {
+    static final Log LOG = Log.get(ChatSegments.class);
+    static final int HEADER_BYTES = 16;
+    static final int INDEX_INTERVAL = 32;
+    // Offsets in a segment are ints, so segments stay well below 2GB.
+    static final long MAX_SEGMENT_BYTES = 1L << 30;
+    static final int MAX_TEXT_BYTES = ChatStore.LINE_TEXT_LENGTH * 4;
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * A segment file and its sparse index. Only the newest segment grows.
+     */
+    static class Segment {
+        final Path path;
+        final long firstID;
+        // Bytes and records of whole records in the file.
+        long size;
+        int count;
+        // Entry k is the offset of line firstID + k * INDEX_INTERVAL.
+        int[] index = new int[8];
+        // Only used once the segment is sealed, apart from the scan when the chat is opened.
+        MappedByteBuffer mapped;
+        // Readers share the chat's read lock, so mapping takes a lock of its own.
+        final ReentrantLock mapLock = new ReentrantLock();
+
+        Segment(Path path, long firstID) {
+            this.path = path;
+            this.firstID = firstID;
+        }
+
+        long nextID() {
+            return firstID + count;
+        }
+
+        void added(int offset) {
+            if (count % INDEX_INTERVAL == 0) {
+                int entry = count / INDEX_INTERVAL;
+                if (entry == index.length) {
+                    index = Arrays.copyOf(index, entry * 2);
+                }
+                index[entry] = offset;
+            }
+            count++;
+        }
+
+        /**
+         * @return A buffer over the segment's whole records, positioned independently of other readers.
+         */
+        ByteBuffer view() throws IOException {
+            mapLock.lock();
+            try {
+                if (mapped == null || mapped.capacity() < size) {
+                    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    }
+                }
+                return mapped.duplicate();
+            } finally {
+                mapLock.unlock();
+            }
+        }
+    }
+
+    final int chatID;
+    final Path directory;
+    final String chatName;
+    final byte[] publicKey;
+    final long segmentBytes;
+    final boolean sync;
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Guarded by the lock. Oldest first; lines are appended to the last.
+    final List<Segment> segments = new ArrayList<Segment>();
+    // Null while the chat is released. Readers share the read lock, so it is opened again under channelLock.
+    volatile FileChannel active;
+    final ReentrantLock channelLock = new ReentrantLock();
+    // Told when a released chat is opened again.
+    final Consumer<ChatSegments> reopened;
+
+    private ChatSegments(int chatID, Path directory, String chatName, byte[] publicKey, long segmentBytes,
+            boolean sync, Consumer<ChatSegments> reopened) {
+        this.chatID = chatID;
+        this.directory = directory;
+        this.chatName = chatName;
+        this.publicKey = publicKey;
+        this.segmentBytes = Math.max(HEADER_BYTES + MAX_TEXT_BYTES, Math.min(MAX_SEGMENT_BYTES, segmentBytes));
+        this.sync = sync;
+        this.reopened = reopened;
+    }
+
+    /**
+     * Opens a chat's segments, checking the newest and cutting off a torn write.
+     * @param segmentBytes The size after which a new segment is started.
+     * @param sync Whether appends are forced to disk before they return.
+     * @param reopened Told when the chat is opened again after being released.
+     */
+    static ChatSegments open(int chatID, Path directory, String chatName, byte[] publicKey, long segmentBytes,
+            boolean sync, Consumer<ChatSegments> reopened) throws IOException {
+        ChatSegments chat = new ChatSegments(chatID, directory, chatName, publicKey, segmentBytes, sync, reopened);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    // A rewrite that did not finish. The segment it was replacing is still whole.
+                    Files.delete(file);
+                } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                    chat.segments.add(new Segment(file,
+                            Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()))));
+                }
+            }
+        }
+        chat.segments.sort(Comparator.comparingLong(segment -> segment.firstID));
+        if (chat.segments.isEmpty()) {
+            Segment first = new Segment(directory.resolve(segmentName(1)), 1);
+            Files.createFile(first.path);
+            chat.segments.add(first);
+        }
+
+        long expectedID = chat.segments.get(0).firstID;
+        for (int i = 0; i < chat.segments.size(); i++) {
+            Segment segment = chat.segments.get(i);
+            if (segment.firstID != expectedID) {
+                throw new IOException("Chat " + chatID + " is missing lines " + expectedID + " to "
+                        + (segment.firstID - 1) + ".");
+            }
+            boolean newest = i == chat.segments.size() - 1;
+            long fileSize = Files.size(segment.path);
+            segment.size = fileSize;
+            long end = scan(segment, newest);
+            if (end < fileSize) {
+                if (!newest) {
+                    throw new IOException("Chat " + chatID + " segment " + segment.path.getFileName()
+                            + " is damaged at offset " + end + ".");
+                }
+                // The mapping covers the bytes being cut, so it must not be read again.
+                segment.mapped = null;
+                try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.WRITE)) {
+                    channel.truncate(end);
+                    channel.force(true);
+                }
+                LOG.warn("Cut " + (fileSize - end) + " bytes of an unfinished write from chat " + chatID + ".");
+            }
+            segment.size = end;
+            expectedID = segment.nextID();
+        }
+        // The newest segment is read through its channel from here on.
+        chat.newest().mapped = null;
+        chat.active = FileChannel.open(chat.newest().path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return chat;
+    }
+
+    /**
+     * Walks a segment's records, building its index.
+     * @param check Whether to check each record's ID and CRC, rather than only its length.
+     * @return The offset after the last whole record.
+     */
+    private static long scan(Segment segment, boolean check) throws IOException {
+        if (segment.size == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = segment.view();
+        CRC32 crc = new CRC32();
+        int position = 0;
+        while (buffer.limit() - position >= HEADER_BYTES) {
+            int length = buffer.getInt(position);
+            if (length < 0 || length > MAX_TEXT_BYTES || buffer.limit() - position - HEADER_BYTES < length) {
+                break;
+            }
+            if (check) {
+                if (buffer.getLong(position + 8) != segment.nextID()) {
+                    break;
+                }
+                crc.reset();
+                crc.update(buffer.slice(position + 8, 8 + length));
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    break;
+                }
+            }
+            segment.added(position);
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    static String segmentName(long firstID) {
+        return String.format("%020d", firstID) + SEGMENT_SUFFIX;
+    }
+
+    private Segment newest() {
+        return segments.get(segments.size() - 1);
+    }
+
+    long getLastID() {
+        lock.readLock().lock();
+        try {
+            return newest().nextID() - 1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends lines to the chat.
+     * @return The ID given to the first line. The rest follow in order.
+     */
+    long append(List<String> texts) throws IOException {
+        List<byte[]> encoded = new ArrayList<byte[]>(texts.size());
+        int bytes = 0;
+        for (String text : texts) {
+            byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+            encoded.add(textBytes);
+            bytes += HEADER_BYTES + textBytes.length;
+        }
+        lock.writeLock().lock();
+        try {
+            Segment segment = newest();
+            if (segment.size >= segmentBytes) {
+                segment = roll();
+            }
+            long firstID = segment.nextID();
+            ByteBuffer buffer = ByteBuffer.allocate(bytes);
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < encoded.size(); i++) {
+                byte[] textBytes = encoded.get(i);
+                crc.reset();
+                crc.update(ByteBuffer.allocate(8).putLong(0, firstID + i));
+                crc.update(textBytes);
+                buffer.putInt(textBytes.length).putInt((int) crc.getValue()).putLong(firstID + i).put(textBytes);
+            }
+            buffer.flip();
+
+            long position = segment.size;
+            FileChannel channel = active();
+            try {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                if (sync) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                // Best effort: the next append writes over whatever got through, and recovery drops the rest.
+                try {
+                    channel.truncate(segment.size);
+                } catch (IOException truncateFailure) {
+                    e.addSuppressed(truncateFailure);
+                }
+                throw e;
+            }
+            int offset = (int) segment.size;
+            for (byte[] textBytes : encoded) {
+                segment.added(offset);
+                offset += HEADER_BYTES + textBytes.length;
+            }
+            segment.size = offset;
+            return firstID;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the newest lines, undoing appends that are not wanted after all.
+     * @param firstID The first line to remove. Only lines in the newest segment can be removed.
+     */
+    void removeFrom(long firstID) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Segment segment = newest();
+            if (firstID < segment.firstID || firstID > segment.nextID()) {
+                throw new IOException("Chat " + chatID + " cannot remove lines from " + firstID + ".");
+            }
+            int entry = (int) ((firstID - segment.firstID) / INDEX_INTERVAL);
+            long position = segment.index[entry];
+            for (long id = segment.firstID + (long) entry * INDEX_INTERVAL; id < firstID; id++) {
+                position += HEADER_BYTES + readActive(position, position + 4).getInt(0);
+            }
+            FileChannel channel = active();
+            channel.truncate(position);
+            if (sync) {
+                channel.force(false);
+            }
+            // The mapping may cover the bytes that were cut.
+            segment.mapped = null;
+            segment.size = position;
+            segment.count = (int) (firstID - segment.firstID);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Seals the newest segment and starts another. Called with the write lock held.
+     */
+    private Segment roll() throws IOException {
+        Segment segment = new Segment(directory.resolve(segmentName(newest().nextID())), newest().nextID());
+        active().force(true);
+        FileChannel next = FileChannel.open(segment.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        active.close();
+        active = next;
+        syncDirectory(directory);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Reads a run of lines.
+     * @param fromID The first line to read. Clipped to the lines there are.
+     * @param toID The last line to read. Clipped to the lines there are.
+     * @return The lines, oldest first.
+     */
+    List<ChatLine> read(long fromID, long toID) throws IOException {
+        lock.readLock().lock();
+        try {
+            fromID = Math.max(fromID, segments.get(0).firstID);
+            toID = Math.min(toID, newest().nextID() - 1);
+            if (fromID > toID) {
+                return new ArrayList<ChatLine>();
+            }
+            List<ChatLine> lines = new ArrayList<ChatLine>((int) Math.min(toID - fromID + 1, 1024));
+            long id = fromID;
+            for (int s = segmentFor(fromID); id <= toID; s++) {
+                Segment segment = segments.get(s);
+                // Only the records from the index entry before the first line to the one after the last are read.
+                int entry = (int) ((id - segment.firstID) / INDEX_INTERVAL);
+                int start = segment.index[entry];
+                int endEntry = (int) ((Math.min(toID, segment.nextID() - 1) - segment.firstID) / INDEX_INTERVAL) + 1;
+                long end = (long) endEntry * INDEX_INTERVAL < segment.count ? segment.index[endEntry] : segment.size;
+                ByteBuffer buffer = segment == newest() ? readActive(start, end)
+                        : segment.view().slice(start, (int) (end - start));
+                int position = 0;
+                long current = segment.firstID + (long) entry * INDEX_INTERVAL;
+                while (current < id) {
+                    position += HEADER_BYTES + buffer.getInt(position);
+                    current++;
+                }
+                while (id <= toID && id < segment.nextID()) {
+                    byte[] textBytes = new byte[buffer.getInt(position)];
+                    buffer.get(position + HEADER_BYTES, textBytes);
+                    lines.add(new ChatLine(id, chatID, new String(textBytes, StandardCharsets.UTF_8)));
+                    position += HEADER_BYTES + textBytes.length;
+                    id++;
+                }
+            }
+            return lines;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads part of the newest segment. Called with the lock held.
+     * @return A buffer holding the bytes from one offset up to another.
+     */
+    private ByteBuffer readActive(long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (to - from));
+        while (buffer.hasRemaining()) {
+            if (active().read(buffer, from + buffer.position()) < 0) {
+                throw new IOException("Chat " + chatID + " segment ended early.");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * @return The newest segment's channel, opened again if the chat was released. Called with the lock held.
+     */
+    private FileChannel active() throws IOException {
+        FileChannel channel = active;
+        if (channel == null) {
+            channelLock.lock();
+            try {
+                channel = active;
+                if (channel == null) {
+                    channel = FileChannel.open(newest().path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    active = channel;
+                    reopened.accept(this);
+                }
+            } finally {
+                channelLock.unlock();
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Closes the chat's channel and drops its mappings until it is next used.
+     */
+    void release() throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments) {
+                segment.mapped = null;
+            }
+            closeActive();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Called with the write lock held.
+     */
+    private void closeActive() throws IOException {
+        FileChannel channel = active;
+        active = null;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return The index of the segment holding a line that exists.
+     */
+    private int segmentFor(long id) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (segments.get(middle).firstID <= id) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Replaces the text of lines whose text is still the original. Each segment holding one of the lines is
+     * written again to a temporary file, which then replaces it.
+     * @return The number of lines changed.
+     */
+    int rewrite(List<ChatLine> originals, List<ChatLine> replacements) throws IOException {
+        lock.writeLock().lock();
+        try {
+            int updated = 0;
+            for (int s = 0; s < segments.size(); s++) {
+                Segment segment = segments.get(s);
+                List<ChatLine> lines = null;
+                for (int i = 0; i < replacements.size(); i++) {
+                    long id = replacements.get(i).getID();
+                    if (id < segment.firstID || id >= segment.nextID()) {
+                        continue;
+                    }
+                    if (lines == null) {
+                        lines = read(segment.firstID, segment.nextID() - 1);
+                    }
+                    int line = (int) (id - segment.firstID);
+                    if (lines.get(line).getText().equals(originals.get(i).getText())) {
+                        lines.set(line, new ChatLine(id, chatID, replacements.get(i).getText()));
+                        updated++;
+                    }
+                }
+                if (lines != null) {
+                    replace(s, lines);
+                }
+            }
+            return updated;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes a segment's lines to a new file and moves it over the segment. Called with the write lock held.
+     */
+    private void replace(int s, List<ChatLine> lines) throws IOException {
+        Segment old = segments.get(s);
+        boolean newest = s == segments.size() - 1;
+        Path temp = old.path.resolveSibling(old.path.getFileName() + TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CRC32 crc = new CRC32();
+            for (ChatLine line : lines) {
+                byte[] textBytes = line.getText().getBytes(StandardCharsets.UTF_8);
+                crc.reset();
+                crc.update(ByteBuffer.allocate(8).putLong(0, line.getID()));
+                crc.update(textBytes);
+                ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + textBytes.length);
+                buffer.putInt(textBytes.length).putInt((int) crc.getValue()).putLong(line.getID()).put(textBytes);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            channel.force(true);
+        }
+        // Some platforms cannot replace a file that is open. The channel opens again when it is next needed.
+        if (newest) {
+            closeActive();
+        }
+        Files.move(temp, old.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(directory);
+
+        Segment rewritten = new Segment(old.path, old.firstID);
+        rewritten.size = Files.size(rewritten.path);
+        scan(rewritten, false);
+        if (newest) {
+            rewritten.mapped = null;
+        }
+        segments.set(s, rewritten);
+    }
+
+    void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            closeActive();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forces a directory's entries to disk, so that a created or renamed file survives a crash. Not every
+     * platform can open a directory, so failure is ignored.
+     */
+    static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Nothing more can be done here.
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * Where chats and their lines are kept. DBUtils keeps them in MariaDB and SegmentChatStore in local segment
+ * files, so a server can run without an external database.
+ * Line IDs only need to grow within a chat; they are used to page through one chat at a time.
+ * Failures are reported as SQLException by every store, since that is what the callers already handle.
+ */
+public interface ChatStore {
+    // Number of lines returned by each page of history. Matches the LIMIT in the database's read procedures.
+    int HISTORY_PAGE_SIZE = 25;
+    // Longest line text a store has to keep.
+    int LINE_TEXT_LENGTH = 2048;
+
+    /**
+     * Creates a new chat.
+     * @param chat_name The encrypted name of the chat.
+     * @param rsa_public_key The public key for the chat.
+     * @return The ID of the new chat.
+     */
+    int createChat(String chat_name, byte[] rsa_public_key) throws SQLException;
+
+    /**
+     * Reads a chat's name and public key together.
+     * @param id The ID of the chat.
+     * @return The chat's metadata, or null if there is no such chat.
+     */
+    ChatMetadata readChatMetadata(int id) throws SQLException;
+
+    PublicKey readChatKey(int id) throws SQLException, NoSuchAlgorithmException, InvalidKeySpecException, IOException;
+
+    String getChatName(int id) throws SQLException;
+
+    void sendToChat(int chat_id, String chat_line) throws SQLException;
+
+    /**
+     * Saves several chat lines together.
+     * @param lines The lines to save, in order.
+     * @return The saved lines with the IDs they were given. A line's ID is ChatLine.NO_ID if it is not known.
+     */
+    List<ChatLine> sendToChat(List<ChatLine> lines) throws SQLException;
+
+    /**
+     * Reads a page of a chat, skipping the latest lines.
+     * @param id The ID of the chat to read from.
+     * @param offset_val The number of latest lines to skip.
+     * @return Up to a page of lines, pushed newest first.
+     */
+    Stack<String> readChat(int id, int offset_val) throws SQLException;
+
+    /**
+     * Reads the page of lines before a given line.
+     * @param id The ID of the chat to read from.
+     * @param before_id Only lines with a lower ID are read. Use Long.MAX_VALUE for the latest page.
+     * @return Up to a page of lines, newest first.
+     */
+    List<ChatLine> readChatBefore(int id, long before_id) throws SQLException;
+
+    /**
+     * Reads a chat's lines in the order they were written, starting after a given line.
+     * @param id The ID of the chat to read from.
+     * @param after_id Only lines with a higher ID are read. Use 0 to start from the beginning.
+     * @param limit The most lines to read.
+     * @return Up to limit lines, oldest first.
+     */
+    List<ChatLine> readChatAfter(int id, long after_id, int limit) throws SQLException;
+
+    /**
+     * Replaces the text of saved lines. A line is only changed if its text is still what was read, so a
+     * concurrent rewrite is not overwritten.
+     * @param originals The lines as they were read.
+     * @param replacements The new lines, with the same IDs and in the same order as the originals.
+     * @return The number of lines changed.
+     */
+    int updateChatLines(List<ChatLine> originals, List<ChatLine> replacements) throws SQLException;
+
+    /**
+     * Records how long each call takes in the given metrics, or stops recording if null.
+     */
+    void setMetrics(ServerMetrics metrics);
+}
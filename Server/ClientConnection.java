@@ -0,0 +1,54 @@
+import Shared.Frame;
+import Shared.HandleMode;
+
+/**
+ * Transport that a ClientHandler uses to talk to its client.
+ * Implementations decide how frames reach the socket (blocking streams or an event loop) but must allow
+ * send to be called from any thread, since other handlers sync chat messages through it.
+ * Frames are written as lines of text until the client negotiates binary framing.
+ */
+public interface ClientConnection {
+    /**
+     * Queued by startBinaryFraming. Writers send it as a line and then switch to binary framing, so everything
+     * queued before it still goes out as text.
+     */
+    Frame BINARY_ACK = Frame.text(HandleMode.HELLO_BINARY_COMMAND);
+
+    /**
+     * Sends a frame to the client.
+     * @param frame The frame to send.
+     */
+    void send(Frame frame);
+
+    /**
+     * Sends a line of text to the client.
+     * @param line The line to send, without a line terminator.
+     */
+    default void sendLine(String line) {
+        send(Frame.text(line));
+    }
+
+    /**
+     * Delivers a chat message from another member of the client's chat.
+     * Unlike send, this may drop the message or disconnect the client if it has fallen too far behind.
+     * @param message The message to send.
+     */
+    void deliver(Frame message);
+
+    /**
+     * Switches the connection to binary framing. Frames read after this call are expected to be binary, and
+     * BINARY_ACK is queued so that output switches once everything before it has been written.
+     * Called on the thread that handles the client's input, after the client has asked for it.
+     */
+    void startBinaryFraming();
+
+    /**
+     * Closes the connection to the client.
+     */
+    void close();
+
+    /**
+     * @return A printable address of the client for logging.
+     */
+    String getRemoteAddress();
+}
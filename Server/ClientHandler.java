@@ -1,257 +1,755 @@
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.security.PublicKey;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.net.ssl.SSLSocket;
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
 
+import Shared.Frame;
 import Shared.HandleMode;
 import Shared.KeyUtils;
-
-public class ClientHandler implements Runnable {
-    public static List<ClientHandler> activeClientHandlers;
-    SSLSocket clientSocket;
-    BufferedReader clientInput;
-    PrintWriter clientOutput;
-    HandleMode handleMode;
-    int currentChat = -1;
-    DBUtils dbUtility;
-
-    public ClientHandler(SSLSocket clientSocket, DBUtils dbUtility) {
-        this.clientSocket = clientSocket;
-        this.dbUtility = dbUtility;
-        try {
-            // Set up a reader and writer to transfer data between the client and server.
-            clientInput = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            clientOutput = new PrintWriter(clientSocket.getOutputStream(), true);
-        } catch (IOException e) {
-            closeEverything();
-        }
+import Shared.Log;
+
+/**
+ * Server side of the chat protocol for a single client.
+ * The handler is driven one line or frame at a time by its ClientConnection, so the same state machine works
+ * for both the thread-per-connection front end and the event-driven one.
+ * Input for a given handler must be passed in one at a time and in order.
+ * With the line protocol every line is text and data is Base64. With binary framing commands arrive as
+ * TEXT frames and data as DATA frames, and data sent back keeps whichever form the client uses.
+ * A client using binary framing can instead start a multi-chat session, joining any number of chats over the
+ * one connection and exchanging CHAT_DATA frames tagged with the chat they belong to.
+ */
+public class ClientHandler {
+    static final Log LOG = Log.get(ClientHandler.class);
+    public static Set<ClientHandler> activeClientHandlers;
+    public static ChatRoomRegistry chatRooms;
+    public static ChatLineWriter chatLineWriter;
+    public static RecentHistoryCache recentHistory;
+    public static ChatMetadataCache chatMetadata;
+    // Null when rejoin tokens are turned off.
+    public static JoinTokens joinTokens;
+    // Null when metrics are turned off.
+    public static ServerMetrics metrics;
+    static final long LATEST_PAGE = Long.MAX_VALUE;
+    // Long enough for clients that still encrypt the challenge with an RSA-2048 private key to fill one block.
+    static final int CHALLENGE_LENGTH = 245;
+    // Shared by all handlers. SecureRandom is thread-safe, and seeding a new one per challenge is slow.
+    static final SecureRandom CHALLENGE_RANDOM = new SecureRandom();
+    // Bounds the chats a session can be in or joining, and so the challenges held for it.
+    static final int MAX_SESSION_CHATS = 64;
+    final ClientConnection connection;
+    volatile HandleMode handleMode;
+    volatile int currentChat = -1;
+    // Chats joined in a multi-chat session.
+    final Set<Integer> sessionChats = ConcurrentHashMap.newKeySet();
+    // ID of the oldest chat line sent to the client for each chat, used to fetch the page before it.
+    final Map<Integer, Long> historyCursors = new ConcurrentHashMap<Integer, Long>();
+    ChatStore chatStore;
+
+    // State kept between lines while waiting on the client.
+    boolean binaryFraming;
+    int selectedChat = -1;
+    byte[] challenge;
+    String newChatName;
+    // Challenges sent for chats the client is joining in a multi-chat session.
+    final Map<Integer, byte[]> sessionChallenges = new HashMap<Integer, byte[]>();
+
+    public ClientHandler(ClientConnection connection, ChatStore chatStore) {
+        this.connection = connection;
+        this.chatStore = chatStore;
     }
 
-    @Override
-    public void run() {
+    /**
+     * Greets the client and waits for a chat selection.
+     */
+    public void start() {
         activeClientHandlers.add(this);
-        try {
-            System.out.println("Starting client handler.");
-            chatSelect();
+        LOG.debug("Starting client handler.");
+        connection.sendLine("Please select a chat number or type \"" + HandleMode.CHAT_CREATION_COMMAND
+                + "\" to start creating a new chat.");
+        enterChatSelect();
+    }
 
-            // Close the client socket when done.
-            System.out.println("Closing socket to client.");
-            clientSocket.close();
-        } catch (IOException e) {
-            System.out.println("Exception caught when trying to handle a client. " + e.getMessage());
-            closeEverything();
+    /**
+     * Releases the handler once the client has disconnected.
+     */
+    public void stop() {
+        if (currentChat != -1) {
+            chatRooms.leave(currentChat, this);
+            currentChat = -1;
         }
+        for (int chatID : sessionChats) {
+            chatRooms.leave(chatID, this);
+        }
+        sessionChats.clear();
         activeClientHandlers.remove(this);
     }
 
-    private void chatSelect()
-            throws IOException {
-        clientOutput.println("Please select a chat number or type \"" + HandleMode.CHAT_CREATION_COMMAND
-                + "\" to start creating a new chat.");
-        while (!clientSocket.isClosed()) {
-            switchHandleMode(HandleMode.CHAT_SELECT);
-            System.out.println("Waiting for chat number");
-
-            // Ask for a chat.
-            String userInputLine = clientInput.readLine();
+    /**
+     * Processes a line received from a client using the line protocol.
+     * @param inputLine The line received from the client.
+     */
+    public void handleLine(String inputLine) {
+        handleFrame(Frame.text(inputLine));
+    }
 
-            // Check whether the user has quit.
-            if (userInputLine == null) {
+    /**
+     * Processes a line or frame received from the client according to the current handle mode.
+     * @param frame The frame received from the client.
+     */
+    public void handleFrame(Frame frame) {
+        switch (handleMode) {
+            case CHAT_SELECT:
+                chatSelect(frame.getText());
                 break;
+            case CHALLENGE_RESPONSE:
+                challengeResponse(frame);
+                break;
+            case CHAT_CREATION:
+                chatCreation(frame);
+                break;
+            case CHAT:
+                chat(frame);
+                break;
+            case SESSION:
+                session(frame);
+                break;
+        }
+    }
+
+    /**
+     * @return The frame as data. A line protocol client sends data as Base64 text.
+     */
+    private static Frame asData(Frame frame) {
+        return frame.getType() == Frame.DATA ? frame : Frame.base64Data(frame.getText());
+    }
+
+    private void enterChatSelect() {
+        switchHandleMode(HandleMode.CHAT_SELECT);
+        LOG.debug("Waiting for chat number");
+    }
+
+    private void returnToChatSelect() {
+        // Once the chat room has been exited, repeat the chat selection.
+        connection.sendLine(
+                "Please select another chat number or type " + HandleMode.EXIT_COMMAND + " to disconnect.");
+        enterChatSelect();
+    }
+
+    private void chatSelect(String userInputLine) {
+        if (HandleMode.CHAT_CREATION_COMMAND.equalsIgnoreCase(userInputLine)) {
+            startChatCreation();
+        } else if (HandleMode.HELLO_BINARY_COMMAND.equalsIgnoreCase(userInputLine) && !binaryFraming) {
+            LOG.debug("Switching client to binary framing.");
+            binaryFraming = true;
+            connection.startBinaryFraming();
+        } else if (HandleMode.SESSION_COMMAND.equalsIgnoreCase(userInputLine)) {
+            startSession();
+        } else if (userInputLine.startsWith(HandleMode.REJOIN_COMMAND + " ")) {
+            rejoin(userInputLine.substring(HandleMode.REJOIN_COMMAND.length() + 1).trim().split(" +"));
+        } else {
+            try {
+                int chatID = Integer.parseInt(userInputLine);
+
+                // Confirm choice and ask for a password.
+                connection.sendLine("You have selected " + chatID + ". Checking key.");
+                startChallengeResponse(chatID);
+            } catch (NumberFormatException e) {
+                connection.sendLine("Failed to read \"" + userInputLine + "\". Please enter a valid integer.");
             }
-            if (HandleMode.CHAT_CREATION_COMMAND.equalsIgnoreCase(userInputLine)) {
-                chatCreation();
-            } else {
-                try {
-                    int chatID = Integer.parseInt(userInputLine);
-
-                    // Confirm choice and ask for a password.
-                    clientOutput.println("You have selected " + chatID + ". Checking key.");
-                    challengeResponse(chatID);
-                } catch (NumberFormatException e) {
-                    clientOutput.println("Failed to read \"" + userInputLine + "\". Please enter a valid integer.");
-                    continue;
-                }
-            }
+        }
+    }
+
+    /**
+     * Enters a chat with a rejoin token, or falls back to the challenge if the token is no longer valid.
+     * @param words The chat ID and the token.
+     */
+    private void rejoin(String[] words) {
+        int chatID;
+        try {
+            chatID = Integer.parseInt(words[0]);
+        } catch (NumberFormatException e) {
+            connection.sendLine("Failed to read \"" + words[0] + "\". Please enter a valid integer.");
+            return;
+        }
+        if (words.length > 1 && acceptsToken(chatID, words[1])) {
+            connection.sendLine("You have selected " + chatID + ". Rejoining.");
+            enterChat(chatID);
+        } else {
+            connection.sendLine("You have selected " + chatID + ". Checking key.");
+            startChallengeResponse(chatID);
+        }
+    }
 
-            // Once the chat room has been exited, repeat the chat selection.
-            clientOutput.println(
-                    "Please select another chat number or type " + HandleMode.EXIT_COMMAND + " to disconnect.");
+    /**
+     * @return Whether a rejoin token is valid for a chat that still exists.
+     */
+    private boolean acceptsToken(int chatID, String token) {
+        if (joinTokens == null || !joinTokens.check(chatID, token)) {
+            return false;
+        }
+        try {
+            return chatMetadata.get(chatID) != null;
+        } catch (SQLException e) {
+            return false;
         }
     }
 
-    private void challengeResponse(int chatID) throws IOException {
+    private void startChallengeResponse(int chatID) {
         switchHandleMode(HandleMode.CHALLENGE_RESPONSE);
+        selectedChat = chatID;
+        challenge = newChallenge();
+        connection.send(Frame.data(challenge));
+    }
 
-        // Send a challenge to the client by generating random bytes to encrypt.
-        SecureRandom random = new SecureRandom();
-        byte[] challenge = new byte[245];
-        random.nextBytes(challenge);
-        String challengeString = Base64.getEncoder().encodeToString(challenge);
-        clientOutput.println(challengeString);
+    /**
+     * @return Random bytes for the client to sign with a chat's private key.
+     */
+    private static byte[] newChallenge() {
+        byte[] challenge = new byte[CHALLENGE_LENGTH];
+        CHALLENGE_RANDOM.nextBytes(challenge);
+        return challenge;
+    }
 
-        // Wait for the response from the client.
-        try {
-            String response = clientInput.readLine();
-            if (response.equals(HandleMode.CHALLENGE_FAILED)) {
-                System.out.println("Client reported failed challenge!");
-                return;
-            }
+    private void challengeResponse(Frame response) {
+        int chatID = selectedChat;
+        byte[] expected = challenge;
+        selectedChat = -1;
+        challenge = null;
 
-            byte[] encryptedResponse = Base64.getDecoder().decode(response);
-            // Read the chat's public key from the database to decrypt the response.
-            PublicKey publicKey = dbUtility.readChatKey(chatID);
-            byte[] decryptedResponse = KeyUtils.decryptBytes(encryptedResponse, publicKey, KeyUtils.RSA);
+        if (response.getType() == Frame.TEXT && response.getText().equals(HandleMode.CHALLENGE_FAILED)) {
+            LOG.info("Client reported failed challenge!");
+            if (metrics != null) {
+                metrics.recordChallengeFailure();
+            }
+            returnToChatSelect();
+            return;
+        }
+        if (passedChallenge(chatID, expected, response)) {
+            // Enter a server chat room.
+            enterChat(chatID);
+        } else {
+            returnToChatSelect();
+        }
+    }
 
-            // If the decrypted response is the same as the original challenge, let the client enter the chat.
-            if (Arrays.equals(challenge, decryptedResponse)) {
-                // Enter a server chat room.
-                System.out.println("Passed challenge-response!");
-                chat(chatID);
-            } else {
-                clientOutput.println("Invalid credentials.");
+    /**
+     * Checks a challenge response against the chat's public key, telling the client if it fails.
+     * The response is a signature over the challenge. For RSA chats, a response from an older client that
+     * encrypted the challenge with the private key is also accepted.
+     * A client that signed the challenge is sent a token for rejoining the chat without one.
+     * @param chatID The chat being entered.
+     * @param expected The challenge that was sent.
+     * @param response The client's signed or encrypted challenge.
+     * @return Whether the client passed.
+     */
+    private boolean passedChallenge(int chatID, byte[] expected, Frame response) {
+        // Check the response from the client.
+        try {
+            byte[] proof = asData(response).getPayload();
+            // Look up the chat's public key to check the response.
+            ChatMetadata metadata = chatMetadata.get(chatID);
+            if (metadata == null) {
+                connection.sendLine("Chat " + chatID + " does not exist.");
+                if (metrics != null) {
+                    metrics.recordChallengeFailure();
+                }
+                return false;
+            }
+            long verifyStart = System.nanoTime();
+            boolean signed = metadata.verifyProof(expected, proof);
+            boolean passed = signed
+                    || (metadata.acceptsLegacyProof() && passedLegacyChallenge(metadata, expected, proof));
+            if (metrics != null) {
+                metrics.recordChallenge(passed, System.nanoTime() - verifyStart);
+            }
+            if (signed) {
+                LOG.debug("Passed challenge-response!");
+                if (joinTokens != null) {
+                    connection.sendLine(HandleMode.TOKEN_REPLY + " " + chatID + " " + joinTokens.issue(chatID));
+                }
+                return true;
             }
+            if (passed) {
+                LOG.debug("Passed challenge-response!");
+                return true;
+            }
+            connection.sendLine("Invalid credentials.");
         } catch (Exception e) {
-            clientOutput.println("Failed to check credentials against database. " + e.getMessage());
-            e.printStackTrace();
+            if (metrics != null) {
+                metrics.recordChallengeFailure();
+            }
+            connection.sendLine("Failed to check credentials against database. " + e.getMessage());
+            LOG.warn("Failed to check challenge response for chat " + chatID + ".", e);
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether the proof is the challenge encrypted with the chat's RSA private key.
+     */
+    private static boolean passedLegacyChallenge(ChatMetadata metadata, byte[] expected, byte[] proof)
+            throws GeneralSecurityException {
+        byte[] decryptedResponse;
+        try {
+            decryptedResponse = KeyUtils.decryptBytes(proof, metadata.getPublicKey(), KeyUtils.RSA);
+        } catch (BadPaddingException | IllegalBlockSizeException e) {
+            return false;
         }
+        // If the decrypted response is the same as the original challenge, let the client enter the chat.
+        return Arrays.equals(expected, decryptedResponse);
     }
 
-    private void chatCreation() throws IOException {
+    private void startChatCreation() {
         switchHandleMode(HandleMode.CHAT_CREATION);
-        clientOutput.println("Please write a name for your chat. Alternatively, type " + HandleMode.EXIT_COMMAND
+        newChatName = null;
+        connection.sendLine("Please write a name for your chat. Alternatively, type " + HandleMode.EXIT_COMMAND
                 + " to cancel chat creation.");
+    }
 
-        // Ask the user for a chat name.
-        String chatName = clientInput.readLine();
+    private void chatCreation(Frame input) {
+        if (newChatName == null) {
+            // Check whether the user wants to cancel chat creation.
+            if (input.getType() == Frame.TEXT && HandleMode.EXIT_COMMAND.equalsIgnoreCase(input.getText())) {
+                returnToChatSelect();
+                return;
+            }
 
-        // Check whether the user wants to cancel chat creation.
-        if (HandleMode.EXIT_COMMAND.equalsIgnoreCase(chatName)) {
+            // If the user didn't quit, wait for the client to generate keys and send over the public key.
+            // Names are stored as Base64 whichever way they arrive.
+            newChatName = asData(input).getText();
             return;
         }
 
-        // If the user didn't quit, wait for the client to generate keys and send over the public key.
-        String chatPublicKeyString = clientInput.readLine();
-        byte[] rsa_public_key = Base64.getDecoder().decode(chatPublicKeyString);
-        System.out.println("Received public key bytes: " + chatPublicKeyString);
+        String chatName = newChatName;
+        newChatName = null;
+        byte[] rsa_public_key;
+        try {
+            rsa_public_key = asData(input).getPayload();
+            // Chats are keyed with RSA or Ed25519. Anything else could never pass a challenge.
+            KeyUtils.readPublicKey(rsa_public_key);
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            connection.sendLine("Failed to read public key.");
+            returnToChatSelect();
+            return;
+        }
+        LOG.debug("Received a " + rsa_public_key.length + " byte public key.");
 
         try {
             // Attempt to create a chat with the given name and public key.
-            int chatID = dbUtility.createChat(chatName, rsa_public_key);
+            int chatID = chatStore.createChat(chatName, rsa_public_key);
 
             // Send the new chatID to the client.
-            clientOutput.println(chatID);
+            connection.sendLine(Integer.toString(chatID));
 
             // Switch to the new chat.
-            System.out.println("Created chat: " + chatID + ". Switching to it now.");
-            chat(chatID);
+            LOG.info("Created chat: " + chatID + ". Switching to it now.");
+            enterChat(chatID);
         } catch (SQLException e) {
-            System.out.println("Failed to create chat!");
-            clientOutput.println("Failed to create chat!");
+            LOG.error("Failed to create chat!", e);
+            connection.sendLine("Failed to create chat!");
+            returnToChatSelect();
         }
     }
 
-    private void chat(int chatID) throws IOException {
+    private void enterChat(int chatID) {
         currentChat = chatID;
         switchHandleMode(HandleMode.CHAT);
+        chatRooms.join(chatID, this);
         try {
-            clientOutput.println("Entered chat " + chatID);
-            clientOutput.println("Chat name:");
-            clientOutput.println(dbUtility.getChatName(chatID));
-            clientOutput.println("Printing latest messages. Use " + HandleMode.PREVIOUS_COMMAND
-                    + " with an offset value to load earlier messages (i.e. " + HandleMode.PREVIOUS_COMMAND + " 25).");
-
-            readChat(chatID, 0);
-
-            System.out.println("Waiting for user input.");
-            String inputLine;
-            while ((inputLine = clientInput.readLine()) != null) {
-                System.out.println("Got user input.");
-                if (inputLine.length() > 0) {
-                    if (inputLine.charAt(0) != '/') {
-                        System.out.println("Sending message to DB.");
-                        try {
-                            dbUtility.sendToChat(chatID, inputLine);
-                        } catch (SQLException e) {
-                            clientOutput.println("Failed to send message!");
-                        }
-
-                        // Sync the message with other handlers in the same chat.
-                        for (ClientHandler otherHandler : activeClientHandlers) {
-                            if (otherHandler != this && otherHandler.handleMode == HandleMode.CHAT
-                                    && chatID == otherHandler.currentChat) {
-                                otherHandler.clientOutput.println(inputLine);
-                            }
-                        }
-                    } else {
-                        if (HandleMode.EXIT_COMMAND.equalsIgnoreCase(inputLine)) {
-                            System.out.println("User exited chat.");
-                            break;
-                        } else if (inputLine.contains(HandleMode.PREVIOUS_COMMAND)
-                                && inputLine.length() >= HandleMode.PREVIOUS_COMMAND.length() + 2) {
-                            inputLine = inputLine.substring(HandleMode.PREVIOUS_COMMAND.length() + 1);
-                            try {
-                                int offset = Integer.parseInt(inputLine);
-                                readChat(chatID, offset);
-                            } catch (NumberFormatException e) {
-                                clientOutput.println(
-                                        "Failed to read \"" + inputLine + "\". Please enter a valid integer.");
-                            }
-                        }
+            connection.sendLine("Entered chat " + chatID);
+            connection.sendLine("Chat name:");
+            ChatMetadata metadata = chatMetadata.get(chatID);
+            connection.send(metadata == null ? Frame.text("") : Frame.base64Data(metadata.getChatName()));
+            connection.sendLine("Printing latest messages. Use " + HandleMode.OLDER_COMMAND
+                    + " to load the page of messages before the oldest one shown.");
+
+            readChatPage(chatID, LATEST_PAGE);
+
+            LOG.debug("Waiting for user input.");
+        } catch (SQLException e) {
+            failChat(e);
+        }
+    }
+
+    private void chat(Frame input) {
+        int chatID = currentChat;
+        LOG.debug("Got user input.");
+        String inputLine = input.getText();
+        if (inputLine.length() > 0) {
+            if (input.getType() == Frame.DATA || (!binaryFraming && inputLine.charAt(0) != '/')) {
+                // The same frame goes to every member, so it is converted at most once for either protocol.
+                sendMessage(chatID, asData(input));
+            } else if (inputLine.charAt(0) != '/') {
+                connection.sendLine("Messages must be sent as data frames.");
+            } else {
+                if (HandleMode.EXIT_COMMAND.equalsIgnoreCase(inputLine)) {
+                    LOG.debug("User exited chat.");
+                    leaveChat();
+                } else if (HandleMode.OLDER_COMMAND.equalsIgnoreCase(inputLine)
+                        || inputLine.startsWith(HandleMode.OLDER_COMMAND + " ")) {
+                    readOlder(chatID, inputLine.substring(HandleMode.OLDER_COMMAND.length()).trim());
+                } else if (inputLine.contains(HandleMode.PREVIOUS_COMMAND)
+                        && inputLine.length() >= HandleMode.PREVIOUS_COMMAND.length() + 2) {
+                    inputLine = inputLine.substring(HandleMode.PREVIOUS_COMMAND.length() + 1);
+                    try {
+                        int offset = Integer.parseInt(inputLine);
+                        readChat(chatID, offset);
+                    } catch (NumberFormatException e) {
+                        connection.sendLine(
+                                "Failed to read \"" + inputLine + "\". Please enter a valid integer.");
+                    } catch (SQLException e) {
+                        failChat(e);
                     }
                 }
             }
+        }
+    }
+
+    /**
+     * Stores a message and relays it to the other members of the chat.
+     * @param chatID The chat the message was sent to.
+     * @param message The message as a DATA frame.
+     */
+    private void sendMessage(int chatID, Frame message) {
+        LOG.debug("Sending message to DB.");
+        if (HandleMode.contains(message.getText())) {
+            // Line protocol clients would take it as a mode switch.
+            connection.sendLine("Message refused because it could be mistaken for a control line.");
+            return;
+        }
+        if (message.getText().length() > ChatStore.LINE_TEXT_LENGTH) {
+            // It could not be stored, and would fail the batch it was written with.
+            connection.sendLine("Message refused because it is longer than " + ChatStore.LINE_TEXT_LENGTH
+                    + " characters.");
+            return;
+        }
+        if (metrics != null) {
+            metrics.recordMessageIn();
+        }
+        CompletableFuture<Void> written = chatLineWriter.append(chatID, message.getText());
+        if (chatLineWriter.getDurability() == Durability.COMMIT) {
+            // Only relay the message once it is safely stored.
+            written.whenComplete((ignored, error) -> {
+                if (error != null) {
+                    connection.sendLine("Failed to send message!");
+                } else {
+                    broadcast(chatID, message);
+                }
+            });
+        } else {
+            broadcast(chatID, message);
+            written.exceptionally(error -> {
+                connection.sendLine("Failed to send message!");
+                return null;
+            });
+        }
+    }
 
-            System.out.println("Finished chat backend.");
+    /**
+     * Syncs a message with the other handlers in the same chat.
+     * @param chatID The chat the message was sent to.
+     * @param message The message to pass on.
+     */
+    private void broadcast(int chatID, Frame message) {
+        // Members in a multi-chat session get the message tagged with its chat, made once for all of them.
+        Frame tagged = null;
+        int fanOut = 0;
+        for (ClientHandler otherHandler : chatRooms.members(chatID)) {
+            if (otherHandler != this) {
+                if (otherHandler.handleMode != HandleMode.SESSION) {
+                    otherHandler.connection.deliver(message);
+                    fanOut++;
+                    continue;
+                }
+                if (tagged == null) {
+                    try {
+                        tagged = Frame.chatData(chatID, message.getPayload());
+                    } catch (IllegalArgumentException e) {
+                        // Sent by a line protocol client as text that is not Base64, so it is not a message.
+                        continue;
+                    }
+                }
+                otherHandler.connection.deliver(tagged);
+                fanOut++;
+            }
+        }
+        if (metrics != null) {
+            metrics.recordBroadcast(fanOut);
+        }
+    }
+
+    /**
+     * Resends the latest page of messages after the connection fell behind and had messages dropped.
+     */
+    public void replayLatestMessages() {
+        int chatID = currentChat;
+        if (chatID == -1 && sessionChats.isEmpty()) {
+            return;
+        }
+        connection.sendLine("Some messages were skipped because the connection fell behind. Reloading the latest messages.");
+        try {
+            if (chatID != -1) {
+                readChatPage(chatID, LATEST_PAGE);
+            }
+            for (int sessionChat : sessionChats) {
+                readChatPage(sessionChat, LATEST_PAGE);
+            }
         } catch (SQLException e) {
-            clientOutput.println("Failed to read chat. Exiting chat.");
-            clientOutput.println(e.toString());
+            connection.sendLine("Failed to read chat. " + e.getMessage());
         }
+    }
+
+    private void failChat(SQLException e) {
+        if (handleMode == HandleMode.SESSION) {
+            // The other chats in the session carry on.
+            connection.sendLine("Failed to read chat. " + e.getMessage());
+            return;
+        }
+        connection.sendLine("Failed to read chat. Exiting chat.");
+        connection.sendLine(e.toString());
+        leaveChat();
+    }
+
+    private void leaveChat() {
+        LOG.debug("Finished chat backend.");
+        chatRooms.leave(currentChat, this);
+        historyCursors.remove(currentChat);
         currentChat = -1;
+        returnToChatSelect();
     }
 
     private void readChat(int id, int offset_val) throws SQLException {
-        Stack<String> messages = dbUtility.readChat(id, offset_val);
+        Stack<String> messages = chatStore.readChat(id, offset_val);
 
         if (messages.size() == 0) {
-            clientOutput.println("No messages to display.");
+            connection.sendLine("No messages to display.");
         } else {
             while (messages.size() > 0) {
-                clientOutput.println(messages.pop());
+                sendStoredLine(id, messages.pop());
             }
         }
     }
 
-    private void switchHandleMode(HandleMode newHandleMode) {
-        if (handleMode != newHandleMode) {
-            clientOutput.println(newHandleMode);
-            handleMode = newHandleMode;
+    /**
+     * Sends the page of messages before the client's history cursor, or before a line ID given by the client.
+     * @param chatID The chat to read from.
+     * @param cursor The line ID to read before, or an empty string to carry on from the last page.
+     */
+    private void readOlder(int chatID, String cursor) {
+        long beforeID = historyCursors.getOrDefault(chatID, ChatLine.NO_ID);
+        if (cursor.length() > 0) {
+            try {
+                beforeID = Long.parseLong(cursor);
+            } catch (NumberFormatException e) {
+                connection.sendLine("Failed to read \"" + cursor + "\". Please enter a valid integer.");
+                return;
+            }
+        }
+        if (beforeID == ChatLine.NO_ID) {
+            connection.sendLine(chatNotice(chatID, "No older messages to display"));
+            return;
+        }
+        try {
+            readChatPage(chatID, beforeID);
+        } catch (SQLException e) {
+            failChat(e);
+        }
+    }
+
+    /**
+     * Sends a page of messages in the order they were written and moves the history cursor to the oldest one.
+     * @param chatID The chat to read from.
+     * @param beforeID Only messages with a lower line ID are sent.
+     */
+    private void readChatPage(int chatID, long beforeID) throws SQLException {
+        List<ChatLine> page = recentHistory == null ? null : recentHistory.pageBefore(chatID, beforeID);
+        if (page == null) {
+            page = chatStore.readChatBefore(chatID, beforeID);
+        }
+        if (page.isEmpty()) {
+            historyCursors.remove(chatID);
+            connection.sendLine(chatNotice(chatID,
+                    beforeID == LATEST_PAGE ? "No messages to display" : "No older messages to display"));
+            return;
+        }
+        // Pages come back newest first.
+        historyCursors.put(chatID, page.get(page.size() - 1).getID());
+        for (int i = page.size() - 1; i >= 0; i--) {
+            sendStoredLine(chatID, page.get(i).getText());
         }
     }
 
-    private void closeEverything() {
-        System.out.println("Closing ClientHandler.");
+    /**
+     * @return A notice about a chat, naming the chat if the client may be in several.
+     */
+    private String chatNotice(int chatID, String notice) {
+        return handleMode == HandleMode.SESSION ? notice + " in chat " + chatID + "." : notice + ".";
+    }
+
+    /**
+     * Sends a line read from the database, skipping any saved before control-looking lines were refused.
+     * @param chatID The chat the line belongs to.
+     * @param text The line as stored, in Base64.
+     */
+    private void sendStoredLine(int chatID, String text) {
+        if (HandleMode.contains(text)) {
+            return;
+        }
+        if (handleMode != HandleMode.SESSION) {
+            connection.send(Frame.base64Data(text));
+            return;
+        }
         try {
-            if (clientInput != null) {
-                clientInput.close();
-            }
-            if (clientOutput != null) {
-                clientOutput.close();
+            connection.send(Frame.chatData(chatID, Base64.getDecoder().decode(text)));
+        } catch (IllegalArgumentException e) {
+            // Not a message a session client could read.
+        }
+    }
+
+    private void startSession() {
+        if (!binaryFraming) {
+            connection.sendLine("Multi-chat sessions need binary framing. Send \"" + HandleMode.HELLO_BINARY_COMMAND
+                    + "\" first.");
+            return;
+        }
+        LOG.debug("Starting multi-chat session.");
+        switchHandleMode(HandleMode.SESSION);
+        connection.sendLine("Entered multi-chat session. Use " + HandleMode.JOIN_COMMAND + " <chat number> and "
+                + HandleMode.LEAVE_COMMAND + " <chat number> to follow chats, or " + HandleMode.EXIT_COMMAND
+                + " to end the session.");
+    }
+
+    /**
+     * Handles a frame in a multi-chat session: a command naming its chat, or data tagged with its chat.
+     * @param input The frame received from the client.
+     */
+    private void session(Frame input) {
+        if (input.getType() == Frame.CHAT_DATA) {
+            sessionData(input.getChatID(), input.getChatData());
+            return;
+        }
+        if (input.getType() != Frame.TEXT) {
+            connection.sendLine("Session data must be tagged with its chat.");
+            return;
+        }
+        String[] words = input.getText().trim().split(" +");
+        String command = words[0];
+        if (HandleMode.EXIT_COMMAND.equalsIgnoreCase(command)) {
+            LOG.debug("User ended multi-chat session.");
+            endSession();
+            returnToChatSelect();
+            return;
+        }
+        int chatID;
+        try {
+            chatID = Integer.parseInt(words.length > 1 ? words[1] : "");
+        } catch (NumberFormatException e) {
+            connection.sendLine("Failed to read \"" + input.getText() + "\". Commands must name a chat number.");
+            return;
+        }
+        if (HandleMode.JOIN_COMMAND.equalsIgnoreCase(command)) {
+            joinSessionChat(chatID, words.length > 2 ? words[2] : null);
+        } else if (HandleMode.LEAVE_COMMAND.equalsIgnoreCase(command)) {
+            leaveSessionChat(chatID);
+        } else if (HandleMode.OLDER_COMMAND.equalsIgnoreCase(command)) {
+            if (!sessionChats.contains(chatID)) {
+                connection.sendLine("Not in chat " + chatID + ".");
+                return;
             }
-            if (clientSocket != null) {
-                clientSocket.close();
+            readOlder(chatID, words.length > 2 ? words[2] : "");
+        } else {
+            connection.sendLine("Unknown session command \"" + command + "\".");
+        }
+    }
+
+    /**
+     * Starts joining a chat in the session by sending its challenge, or joins it straight away with a token.
+     * @param token A rejoin token for the chat, or null.
+     */
+    private void joinSessionChat(int chatID, String token) {
+        if (sessionChats.contains(chatID) || sessionChallenges.containsKey(chatID)) {
+            connection.sendLine("Already in or joining chat " + chatID + ".");
+            return;
+        }
+        if (sessionChats.size() + sessionChallenges.size() >= MAX_SESSION_CHATS) {
+            connection.sendLine("A session can follow at most " + MAX_SESSION_CHATS + " chats.");
+            connection.sendLine(HandleMode.LEFT_REPLY + " " + chatID);
+            return;
+        }
+        if (token != null && acceptsToken(chatID, token)) {
+            enterSessionChat(chatID);
+            return;
+        }
+        byte[] sessionChallenge = newChallenge();
+        sessionChallenges.put(chatID, sessionChallenge);
+        connection.send(Frame.chatData(chatID, sessionChallenge));
+    }
+
+    /**
+     * Handles data for one chat of the session: the response to its challenge while joining, and messages after.
+     */
+    private void sessionData(int chatID, byte[] data) {
+        byte[] expected = sessionChallenges.remove(chatID);
+        if (expected != null) {
+            if (passedChallenge(chatID, expected, Frame.data(data))) {
+                enterSessionChat(chatID);
+            } else {
+                connection.sendLine(HandleMode.LEFT_REPLY + " " + chatID);
             }
-        } catch (IOException e) {
-            System.out.println("Error while trying to close ClientHandler.");
+        } else if (sessionChats.contains(chatID)) {
+            sendMessage(chatID, Frame.data(data));
+        } else {
+            connection.sendLine("Not in chat " + chatID + ".");
+        }
+    }
+
+    private void enterSessionChat(int chatID) {
+        sessionChats.add(chatID);
+        chatRooms.join(chatID, this);
+        try {
+            ChatMetadata metadata = chatMetadata.get(chatID);
+            connection.sendLine(HandleMode.JOINED_REPLY + " " + chatID + " "
+                    + (metadata == null ? "" : metadata.getChatName()));
+            readChatPage(chatID, LATEST_PAGE);
+        } catch (SQLException e) {
+            failChat(e);
+            leaveSessionChat(chatID);
+        }
+    }
+
+    private void leaveSessionChat(int chatID) {
+        sessionChallenges.remove(chatID);
+        if (sessionChats.remove(chatID)) {
+            chatRooms.leave(chatID, this);
+            historyCursors.remove(chatID);
+        }
+        connection.sendLine(HandleMode.LEFT_REPLY + " " + chatID);
+    }
+
+    private void endSession() {
+        sessionChallenges.clear();
+        for (int chatID : sessionChats) {
+            chatRooms.leave(chatID, this);
+            historyCursors.remove(chatID);
+        }
+        sessionChats.clear();
+    }
+
+    private void switchHandleMode(HandleMode newHandleMode) {
+        if (handleMode != newHandleMode) {
+            connection.send(Frame.mode(newHandleMode));
+            handleMode = newHandleMode;
         }
     }
 }
@@ -0,0 +1,201 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import Shared.HandshakeMetrics;
+import Shared.SslUtil;
+
+/**
+ * Load test that measures how many idle clients fit in a fixed server heap for each server mode.
+ * Each mode runs in a child JVM with the given -Xmx so that the clients opened here do not count towards it.
+ * Idle clients stay in chat selection, so no database is needed.
+ */
+public class ConnectionLoadTest {
+    static final String SERVE_COMMAND = "--serve";
+    static final String HEAP_REQUEST = "heap";
+    static final String HEAP_REPLY = "HEAP ";
+    // Clients share one socket factory, so reconnects to a server can resume its sessions.
+    static final HandshakeMetrics clientHandshakes = new HandshakeMetrics();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && SERVE_COMMAND.equals(args[0])) {
+            serve(args);
+            return;
+        }
+
+        ServerConfig config = new ServerConfig(args);
+        if (config.positionalCount() < 5) {
+            throw new IllegalArgumentException(
+                    "Usage: java ConnectionLoadTest <caCrtFile> <serverCrtFile> <serverKeyFile> <clientCrtFile> <clientKeyFile>"
+                            + " [--modes=threads,virtual,nio] [--heap=256m] [--connections=<max>] [--step=<count>]");
+        }
+        String caCrtFile = config.getPositional(0);
+        SSLSocketFactory socketFactory = SslUtil.getSSLSocketFactory(caCrtFile, config.getPositional(3),
+                config.getPositional(4));
+        String heap = config.getString("heap", "256m");
+        int maxConnections = config.getInt("connections", 20000);
+        int step = config.getInt("step", 250);
+
+        List<String> results = new ArrayList<String>();
+        for (String mode : config.getString("modes", "threads,virtual,nio").split(",")) {
+            results.add(runMode(mode, heap, maxConnections, step, socketFactory, caCrtFile, config.getPositional(1),
+                    config.getPositional(2)));
+        }
+
+        System.out.println();
+        System.out.println("mode, heap, connections, heap used (bytes), bytes per connection");
+        for (String result : results) {
+            System.out.println(result);
+        }
+        System.out.println(clientHandshakes.getStats());
+    }
+
+    /**
+     * Opens idle connections to a server in the given mode until the target is reached or the server fails.
+     * @return A CSV line describing the result.
+     */
+    private static String runMode(String mode, String heap, int maxConnections, int step,
+            SSLSocketFactory socketFactory, String caCrtFile, String crtFile, String keyFile) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process server = new ProcessBuilder(java, "-Xmx" + heap, "-XX:+ExitOnOutOfMemoryError", "-cp",
+                System.getProperty("java.class.path"), ConnectionLoadTest.class.getName(), SERVE_COMMAND,
+                caCrtFile, crtFile, keyFile, Integer.toString(port), "--mode=" + mode, "--max-handshakes=256",
+                "--backlog=1024")
+                .redirectErrorStream(true).start();
+
+        // The server logs every connection, so its output has to be drained.
+        BlockingQueue<String> replies = new LinkedBlockingQueue<String>();
+        Thread drain = new Thread(() -> {
+            try (BufferedReader output = new BufferedReader(new InputStreamReader(server.getInputStream()))) {
+                String line;
+                while ((line = output.readLine()) != null) {
+                    if (line.startsWith(HEAP_REPLY) || line.contains("Echo Server is running")) {
+                        replies.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                // The server has exited.
+            }
+            replies.add("EXITED");
+        });
+        drain.setDaemon(true);
+        drain.start();
+        PrintWriter serverInput = new PrintWriter(server.getOutputStream(), true);
+
+        String ready = replies.poll(30, TimeUnit.SECONDS);
+        if (ready == null || !ready.contains("Echo Server is running")) {
+            server.destroyForcibly();
+            return mode + ", " + heap + ", 0, 0, 0";
+        }
+        System.out.println("Testing " + mode + " mode with a " + heap + " heap.");
+
+        List<SSLSocket> sockets = new ArrayList<SSLSocket>();
+        ExecutorService connectors = Executors.newFixedThreadPool(32);
+        long heapUsed = 0;
+        boolean failed = false;
+        while (!failed && sockets.size() < maxConnections && server.isAlive()) {
+            List<Future<SSLSocket>> opening = new ArrayList<Future<SSLSocket>>();
+            for (int i = 0; i < Math.min(step, maxConnections - sockets.size()); i++) {
+                opening.add(connectors.submit(() -> openIdleClient(socketFactory, port)));
+            }
+            for (Future<SSLSocket> future : opening) {
+                try {
+                    sockets.add(future.get());
+                } catch (Exception e) {
+                    if (!failed) {
+                        System.out.println("Failed to open a connection. " + e.getCause());
+                    }
+                    failed = true;
+                }
+            }
+
+            serverInput.println(HEAP_REQUEST);
+            String reply = replies.poll(60, TimeUnit.SECONDS);
+            if (reply == null || !reply.startsWith(HEAP_REPLY)) {
+                failed = true;
+            } else {
+                heapUsed = Long.parseLong(reply.substring(HEAP_REPLY.length()));
+                System.out.println(sockets.size() + " connections, " + heapUsed + " bytes of heap used.");
+            }
+        }
+        int held = sockets.size();
+
+        connectors.shutdownNow();
+        for (SSLSocket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed by the server.
+            }
+        }
+        server.destroyForcibly().waitFor();
+        long perConnection = held > 0 ? heapUsed / held : 0;
+        return mode + ", " + heap + ", " + held + ", " + heapUsed + ", " + perConnection;
+    }
+
+    /**
+     * Connects a client and waits for the server's greeting, which means its handler has started.
+     */
+    private static SSLSocket openIdleClient(SSLSocketFactory socketFactory, int port) throws IOException {
+        SSLSocket socket = (SSLSocket) socketFactory.createSocket("localhost", port);
+        try {
+            socket.setSoTimeout(30000);
+            long startMillis = System.currentTimeMillis();
+            long start = System.nanoTime();
+            socket.startHandshake();
+            clientHandshakes.record(socket.getSession(), startMillis, System.nanoTime() - start);
+            BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            if (input.readLine() == null) {
+                throw new IOException("Server closed the connection.");
+            }
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the server in a child JVM and reports heap usage whenever asked on standard input.
+     */
+    private static void serve(String[] args) throws IOException {
+        String[] serverArgs = new String[] { args[1], args[2], args[3], "jdbc:mariadb://localhost/unused", "unused",
+                "unused", args[4], args[5], args[6], args[7] };
+        SecureChatServer server = new SecureChatServer(serverArgs);
+        Thread serverThread = new Thread(server::start);
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        BufferedReader commands = new BufferedReader(new InputStreamReader(System.in));
+        String command;
+        while ((command = commands.readLine()) != null) {
+            if (HEAP_REQUEST.equals(command)) {
+                System.gc();
+                MemoryUsage usage = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+                System.out.println(HEAP_REPLY + usage.getUsed());
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,611 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import Shared.Log;
+
+/**
+ * A bounded pool of database connections so that each query does not pay for a new TCP connection and login.
+ * Connections handed out are wrappers whose close method returns the connection to the pool, so DBUtils can
+ * keep using try-with-resources unchanged.
+ * Idle connections are validated when borrowed, evicted after a while once above the minimum size, and any
+ * connection held for longer than the leak threshold is reported along with where it was borrowed.
+ * Each connection can also keep its prepared statements open so that repeated queries are not parsed again.
+ */
+public class ConnectionPool {
+    static final Log LOG = Log.get(ConnectionPool.class);
+    final String url;
+    final String user;
+    final String password;
+    final int minSize;
+    final int maxSize;
+    final long acquireTimeoutMillis;
+    final long idleTimeoutMillis;
+    final long leakThresholdMillis;
+    final long validationIntervalMillis;
+    static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition available = lock.newCondition();
+    final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+    final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    final ScheduledExecutorService housekeeper;
+    volatile int statementCacheSize;
+    int totalConnections;
+    boolean closed;
+
+    // Metrics.
+    final LongAdder acquisitions = new LongAdder();
+    final LongAdder acquireWaitNanos = new LongAdder();
+    final AtomicLong maxAcquireWaitNanos = new AtomicLong();
+    final LongAdder acquireTimeouts = new LongAdder();
+    final LongAdder connectionsCreated = new LongAdder();
+    final LongAdder connectionsClosed = new LongAdder();
+    final LongAdder validationFailures = new LongAdder();
+    final LongAdder leaksDetected = new LongAdder();
+    final LongAdder statementCacheHits = new LongAdder();
+    final LongAdder statementCacheMisses = new LongAdder();
+    final LongAdder statementCacheEvictions = new LongAdder();
+
+    public ConnectionPool(String url, String user, String password, int minSize, int maxSize,
+            long acquireTimeoutMillis, long idleTimeoutMillis, long leakThresholdMillis, long validationIntervalMillis) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+
+        housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts filling the pool to its minimum size and checking it for idle and leaked connections.
+     */
+    public void start() {
+        long period = Math.max(1000, Math.min(idleTimeoutMillis, leakThresholdMillis > 0 ? leakThresholdMillis
+                : idleTimeoutMillis) / 2);
+        housekeeper.scheduleWithFixedDelay(this::housekeep, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keeps up to the given number of prepared statements open on each pooled connection, keyed by their SQL.
+     * Preparing the same SQL again on that connection reuses the statement instead of parsing it again.
+     * @param size The number of statements to keep per connection, or 0 to disable the cache.
+     */
+    public void setStatementCacheSize(int size) {
+        statementCacheSize = Math.max(0, size);
+    }
+
+    /**
+     * Periodically prints the pool's statistics.
+     * @param intervalMillis How often to print them.
+     */
+    public void logStatsEvery(long intervalMillis) {
+        if (intervalMillis > 0) {
+            housekeeper.scheduleAtFixedRate(() -> LOG.info(getStats()), intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Borrows a connection from the pool, opening a new one if the pool is not yet full.
+     * @return A connection that returns itself to the pool when closed.
+     * @throws SQLException If no connection became available before the acquire timeout.
+     */
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        while (true) {
+            PooledConnection pooled = null;
+            boolean create = false;
+            lock.lock();
+            try {
+                while (!closed && idle.isEmpty() && totalConnections >= maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        acquireTimeouts.increment();
+                        throw new SQLException("Timed out after " + acquireTimeoutMillis
+                                + "ms waiting for a database connection.");
+                    }
+                    available.awaitNanos(remaining);
+                }
+                if (closed) {
+                    throw new SQLException("The connection pool has been closed.");
+                }
+                pooled = idle.pollFirst();
+                if (pooled == null) {
+                    totalConnections++;
+                    create = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection.", e);
+            } finally {
+                lock.unlock();
+            }
+
+            if (create) {
+                try {
+                    pooled = new PooledConnection(DriverManager.getConnection(url, user, password));
+                    connectionsCreated.increment();
+                } catch (SQLException e) {
+                    discarded();
+                    throw e;
+                }
+            } else if (!isUsable(pooled)) {
+                validationFailures.increment();
+                destroy(pooled);
+                continue;
+            }
+            return lend(pooled, start);
+        }
+    }
+
+    private boolean isUsable(PooledConnection pooled) {
+        // Only check connections that have sat idle for a while, since a check costs a round trip.
+        if (System.nanoTime() - pooled.lastUsed < TimeUnit.MILLISECONDS.toNanos(validationIntervalMillis)) {
+            return true;
+        }
+        try {
+            return pooled.raw.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private Connection lend(PooledConnection pooled, long start) {
+        long waited = System.nanoTime() - start;
+        acquisitions.increment();
+        acquireWaitNanos.add(waited);
+        maxAcquireWaitNanos.accumulateAndGet(waited, Math::max);
+
+        pooled.borrowedAt = System.nanoTime();
+        pooled.borrowSite = leakThresholdMillis > 0 ? new Throwable("Connection borrowed here") : null;
+        pooled.leakReported = false;
+        pooled.broken = false;
+        borrowed.add(pooled);
+        return pooled.newLease();
+    }
+
+    /**
+     * Returns a borrowed connection to the pool, or closes it if it is no longer usable.
+     */
+    void release(PooledConnection pooled) {
+        borrowed.remove(pooled);
+        if (pooled.leakReported) {
+            LOG.warn("Leaked database connection was returned after "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pooled.borrowedAt) + "ms.");
+        }
+        try {
+            if (!pooled.broken && !pooled.raw.getAutoCommit()) {
+                pooled.raw.rollback();
+                pooled.raw.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            pooled.broken = true;
+        }
+        if (pooled.broken) {
+            destroy(pooled);
+            return;
+        }
+
+        pooled.lastUsed = System.nanoTime();
+        lock.lock();
+        try {
+            if (closed) {
+                totalConnections--;
+            } else {
+                idle.addFirst(pooled);
+                available.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        closeQuietly(pooled);
+    }
+
+    private void destroy(PooledConnection pooled) {
+        closeQuietly(pooled);
+        discarded();
+    }
+
+    private void discarded() {
+        lock.lock();
+        try {
+            totalConnections--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeQuietly(PooledConnection pooled) {
+        connectionsClosed.increment();
+        try {
+            pooled.raw.close();
+        } catch (SQLException e) {
+            // Nothing more to do with a connection being thrown away.
+        }
+    }
+
+    /**
+     * Evicts connections that have been idle too long, tops the pool back up to its minimum size and reports
+     * connections that look leaked.
+     */
+    private void housekeep() {
+        List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+        int missing;
+        lock.lock();
+        try {
+            long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+            Iterator<PooledConnection> oldestFirst = idle.descendingIterator();
+            while (oldestFirst.hasNext() && totalConnections > minSize) {
+                PooledConnection pooled = oldestFirst.next();
+                if (pooled.lastUsed < cutoff) {
+                    oldestFirst.remove();
+                    totalConnections--;
+                    evicted.add(pooled);
+                }
+            }
+            missing = closed ? 0 : minSize - totalConnections;
+            if (missing > 0) {
+                totalConnections += missing;
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (PooledConnection pooled : evicted) {
+            closeQuietly(pooled);
+        }
+
+        for (int i = 0; i < missing; i++) {
+            try {
+                PooledConnection pooled = new PooledConnection(DriverManager.getConnection(url, user, password));
+                connectionsCreated.increment();
+                release(pooled);
+            } catch (SQLException e) {
+                discarded();
+                LOG.warn("Failed to open a pooled database connection. " + e.getMessage());
+            }
+        }
+
+        if (leakThresholdMillis > 0) {
+            long leakCutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(leakThresholdMillis);
+            for (PooledConnection pooled : borrowed) {
+                if (!pooled.leakReported && pooled.borrowedAt < leakCutoff) {
+                    pooled.leakReported = true;
+                    leaksDetected.increment();
+                    LOG.warn("Possible database connection leak: held for more than " + leakThresholdMillis + "ms.",
+                            pooled.borrowSite);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes idle connections and stops handing out new ones. Borrowed connections are closed when returned.
+     */
+    public void close() {
+        List<PooledConnection> toClose;
+        lock.lock();
+        try {
+            closed = true;
+            toClose = new ArrayList<PooledConnection>(idle);
+            totalConnections -= idle.size();
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        housekeeper.shutdownNow();
+        for (PooledConnection pooled : toClose) {
+            closeQuietly(pooled);
+        }
+    }
+
+    public int getTotalConnections() {
+        lock.lock();
+        try {
+            return totalConnections;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getIdleConnections() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBorrowedConnections() {
+        return borrowed.size();
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    public long getAcquireTimeouts() {
+        return acquireTimeouts.sum();
+    }
+
+    public double getAverageAcquireMillis() {
+        long count = acquisitions.sum();
+        return count == 0 ? 0 : acquireWaitNanos.sum() / (count * 1e6);
+    }
+
+    public double getMaxAcquireMillis() {
+        return maxAcquireWaitNanos.get() / 1e6;
+    }
+
+    public long getLeaksDetected() {
+        return leaksDetected.sum();
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
+
+    public double getStatementCacheHitRate() {
+        long hits = statementCacheHits.sum();
+        long total = hits + statementCacheMisses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public String getStats() {
+        return String.format(
+                "Connection pool: %d total, %d idle, %d borrowed, %d acquired (avg %.2fms, max %.2fms), %d timeouts, "
+                        + "%d created, %d closed, %d failed validation, %d leaks; "
+                        + "statement cache: %d hits, %d misses (%.1f%% hit rate), %d evicted",
+                getTotalConnections(), getIdleConnections(), getBorrowedConnections(), getAcquisitions(),
+                getAverageAcquireMillis(), getMaxAcquireMillis(), getAcquireTimeouts(), connectionsCreated.sum(),
+                connectionsClosed.sum(), validationFailures.sum(), getLeaksDetected(), getStatementCacheHits(),
+                getStatementCacheMisses(), getStatementCacheHitRate() * 100, statementCacheEvictions.sum());
+    }
+
+    /**
+     * Calls a method on a driver object, marking the pooled connection as broken if the driver reports a
+     * connection exception (SQLState class 08) so that it is not reused.
+     */
+    static Object invokeOnDriver(PooledConnection pooled, Object target, Method method, Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                String state = ((SQLException) cause).getSQLState();
+                if (state != null && state.startsWith("08")) {
+                    pooled.broken = true;
+                }
+            }
+            throw cause;
+        }
+    }
+
+    /**
+     * A physical connection owned by the pool.
+     */
+    class PooledConnection {
+        final Connection raw;
+        volatile long lastUsed = System.nanoTime();
+        volatile long borrowedAt;
+        volatile Throwable borrowSite;
+        volatile boolean leakReported;
+        volatile boolean broken;
+        // Only used by the current borrower, so it needs no locking. Ordered from least to most recently used.
+        final LinkedHashMap<String, CachedStatement> statements = new LinkedHashMap<String, CachedStatement>(16,
+                0.75f, true);
+
+        PooledConnection(Connection raw) {
+            this.raw = raw;
+        }
+
+        /**
+         * Prepares a statement through the cache.
+         * @param method Either prepareStatement or prepareCall.
+         * @param args The SQL to prepare, optionally followed by the generated keys flag.
+         * @return A statement that goes back to the cache when closed.
+         */
+        PreparedStatement prepareCached(Method method, Object[] args) throws Throwable {
+            String key = method.getName() + (args.length == 2 ? ":" + args[1] : "") + ':' + args[0];
+            CachedStatement cached = statements.get(key);
+            if (cached != null && cached.raw.isClosed()) {
+                statements.remove(key);
+                cached = null;
+            }
+            if (cached != null && !cached.inUse) {
+                statementCacheHits.increment();
+            } else {
+                statementCacheMisses.increment();
+                PreparedStatement raw = (PreparedStatement) invokeOnDriver(this, this.raw, method, args);
+                if (cached != null) {
+                    // The cached copy is still open elsewhere in this borrow, so this one is not kept.
+                    return raw;
+                }
+                cached = new CachedStatement(this, raw, method.getReturnType());
+                statements.put(key, cached);
+                evictStatements();
+            }
+            cached.inUse = true;
+            return cached.newHandle();
+        }
+
+        private void evictStatements() {
+            Iterator<CachedStatement> leastRecentFirst = statements.values().iterator();
+            while (statements.size() > statementCacheSize && leastRecentFirst.hasNext()) {
+                CachedStatement cached = leastRecentFirst.next();
+                if (!cached.inUse) {
+                    leastRecentFirst.remove();
+                    statementCacheEvictions.increment();
+                    cached.closeQuietly();
+                }
+            }
+        }
+
+        /**
+         * Wraps the connection for one borrower. Closing the wrapper returns the connection to the pool, and
+         * any use after that fails rather than touching a connection someone else may now hold.
+         */
+        Connection newLease() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, new Lease(this));
+        }
+    }
+
+    class Lease implements InvocationHandler {
+        final PooledConnection pooled;
+        boolean returned;
+
+        Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "prepareStatement":
+                case "prepareCall":
+                    // Cache the plain forms and the one asking for generated keys.
+                    if (!returned && statementCacheSize > 0
+                            && (args.length == 1 || (args.length == 2 && args[1] instanceof Integer))) {
+                        return pooled.prepareCached(method, args);
+                    }
+                    break;
+                case "close":
+                    if (!returned) {
+                        returned = true;
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return returned || pooled.raw.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + pooled.raw;
+                default:
+                    break;
+            }
+            if (returned) {
+                throw new SQLException("Connection has already been returned to the pool.");
+            }
+            return invokeOnDriver(pooled, pooled.raw, method, args);
+        }
+    }
+
+    /**
+     * A prepared statement kept open on a pooled connection.
+     */
+    static class CachedStatement {
+        final PooledConnection pooled;
+        final PreparedStatement raw;
+        final Class<?> type;
+        boolean inUse;
+
+        CachedStatement(PooledConnection pooled, PreparedStatement raw, Class<?> type) {
+            this.pooled = pooled;
+            this.raw = raw;
+            this.type = type;
+        }
+
+        PreparedStatement newHandle() {
+            return (PreparedStatement) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                    new StatementHandle(this));
+        }
+
+        /**
+         * Makes the statement available again, dropping it from the cache if it cannot be reset.
+         */
+        void release() {
+            try {
+                raw.clearParameters();
+                inUse = false;
+            } catch (SQLException e) {
+                pooled.statements.values().remove(this);
+                closeQuietly();
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                raw.close();
+            } catch (SQLException e) {
+                // The statement is being thrown away anyway.
+            }
+        }
+    }
+
+    static class StatementHandle implements InvocationHandler {
+        final CachedStatement cached;
+        boolean returned;
+
+        StatementHandle(CachedStatement cached) {
+            this.cached = cached;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!returned) {
+                        returned = true;
+                        cached.release();
+                    }
+                    return null;
+                case "isClosed":
+                    return returned || cached.raw.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Cached " + cached.raw;
+                default:
+                    break;
+            }
+            if (returned) {
+                throw new SQLException("Statement has already been closed.");
+            }
+            return invokeOnDriver(cached.pooled, cached.raw, method, args);
+        }
+    }
+}
@@ -1,4 +1,5 @@
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
@@ -9,35 +10,70 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Stack;
 
 import Shared.KeyUtils;
+import Shared.Log;
 
 /**
- * Utilities class that performs database actions for the application.
+ * Utilities class that performs database actions for the application. Keeps chats in MariaDB.
  * How should I use try-with-resources with JDBC? - Jeanne Boyarsky - https://stackoverflow.com/questions/8066501/how-should-i-use-try-with-resources-with-jdbc - Accessed 06.04.2023
  */
-public class DBUtils {
+public class DBUtils implements ChatStore {
+    static final Log LOG = Log.get(DBUtils.class);
     // Variables to allow the controller to connect to the database.
     final String DB_URL;
     final String USER;
     final String PASSWORD;
+    static final String SEND_TO_CHAT_SQL = "INSERT INTO chat_line (chat_id, line_text) VALUES (?,?)";
+    // Optional pool to borrow connections from instead of opening a new one per query.
+    final ConnectionPool connectionPool;
+    // Times each call when set.
+    volatile ServerMetrics metrics;
 
     public DBUtils(String DB_URL, String USER, String PASSWORD) {
+        this(DB_URL, USER, PASSWORD, null);
+    }
+
+    public DBUtils(String DB_URL, String USER, String PASSWORD, ConnectionPool connectionPool) {
         this.DB_URL = DB_URL;
         this.USER = USER;
         this.PASSWORD = PASSWORD;
+        this.connectionPool = connectionPool;
     }
 
     /**
      * Standard method to open a connection to the database.
+     * If a pool is in use, the connection is borrowed and closing it returns it to the pool.
      * @return A connection to the database.
      */
     public Connection openConnection() throws SQLException {
+        if (connectionPool != null) {
+            return connectionPool.getConnection();
+        }
         return DriverManager.getConnection(DB_URL, USER, PASSWORD);
     }
 
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    @Override
+    public void setMetrics(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private void recordCall(String method, long start) {
+        ServerMetrics recorder = metrics;
+        if (recorder != null) {
+            recorder.recordDBCall(method, System.nanoTime() - start);
+        }
+    }
+
     /**
      * Testing method that prints out all the entries in a ResultSet.
      * @param resultSet The ResultSet to print.
@@ -72,10 +108,13 @@ public class DBUtils {
      * @return Whether the login details are valid.
      */
     public boolean validChatCredentials(int id, String password) throws SQLException {
+        long start = System.nanoTime();
         try (Connection connection = openConnection();
                 PreparedStatement ps = validChatCredentialsPS(connection, id, password);
                 ResultSet resultSet = ps.executeQuery()) {
             return resultSet.next() && resultSet.getBoolean(1);
+        } finally {
+            recordCall("validChatCredentials", start);
         }
     }
 
@@ -93,7 +132,9 @@ public class DBUtils {
      * @param offset_val An offset to allow for reading beyond the last few messages.
      * @return Messages from the cat.
      */
+    @Override
     public Stack<String> readChat(int id, int offset_val) throws SQLException {
+        long start = System.nanoTime();
         try (Connection connection = openConnection();
                 PreparedStatement ps = readChatPS(connection, id, offset_val);
                 ResultSet resultSet = ps.executeQuery()) {
@@ -102,6 +143,8 @@ public class DBUtils {
                 messagesStack.add(resultSet.getString(1));
             }
             return messagesStack;
+        } finally {
+            recordCall("readChat", start);
         }
     }
 
@@ -113,28 +156,176 @@ public class DBUtils {
         return ps;
     }
 
-    public void sendToChat(int chat_id, String chat_line) throws SQLException {
+    /**
+     * Reads the page of messages before a given line, seeking on the line ID rather than skipping rows.
+     * @param id The ID of the chat to read from.
+     * @param before_id Only lines with a lower ID are read. Use Long.MAX_VALUE for the latest page.
+     * @return Up to a page of lines, newest first.
+     */
+    @Override
+    public List<ChatLine> readChatBefore(int id, long before_id) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = openConnection();
+                PreparedStatement ps = readChatBeforePS(connection, id, before_id);
+                ResultSet resultSet = ps.executeQuery()) {
+            List<ChatLine> lines = new ArrayList<ChatLine>();
+            while (resultSet.next()) {
+                lines.add(new ChatLine(resultSet.getLong(1), id, resultSet.getString(2)));
+            }
+            return lines;
+        } finally {
+            recordCall("readChatBefore", start);
+        }
+    }
+
+    private PreparedStatement readChatBeforePS(Connection connection, int id, long before_id)
+            throws SQLException {
+        PreparedStatement ps = connection.prepareStatement("CALL proc_read_chat_before(?,?)");
+        ps.setInt(1, id);
+        ps.setLong(2, before_id);
+        return ps;
+    }
+
+    /**
+     * Reads a chat's lines in the order they were written, starting after a given line.
+     * @param id The ID of the chat to read from.
+     * @param after_id Only lines with a higher ID are read. Use 0 to start from the beginning.
+     * @param limit The most lines to read.
+     * @return Up to limit lines, oldest first.
+     */
+    @Override
+    public List<ChatLine> readChatAfter(int id, long after_id, int limit) throws SQLException {
+        long start = System.nanoTime();
         try (Connection connection = openConnection();
-                PreparedStatement ps = sendToChatPS(connection, chat_id, chat_line);
+                PreparedStatement ps = readChatAfterPS(connection, id, after_id, limit);
                 ResultSet resultSet = ps.executeQuery()) {
+            List<ChatLine> lines = new ArrayList<ChatLine>();
+            while (resultSet.next()) {
+                lines.add(new ChatLine(resultSet.getLong(1), id, resultSet.getString(2)));
+            }
+            return lines;
+        } finally {
+            recordCall("readChatAfter", start);
+        }
+    }
+
+    private PreparedStatement readChatAfterPS(Connection connection, int id, long after_id, int limit)
+            throws SQLException {
+        PreparedStatement ps = connection.prepareStatement(
+                "SELECT id, line_text FROM chat_line WHERE chat_id = ? AND id > ? ORDER BY id LIMIT ?");
+        ps.setInt(1, id);
+        ps.setLong(2, after_id);
+        ps.setInt(3, limit);
+        return ps;
+    }
+
+    /**
+     * Replaces the text of saved lines in one transaction. A line is only changed if its text is still what
+     * was read, so a concurrent rewrite is not overwritten.
+     * @param originals The lines as they were read.
+     * @param replacements The new lines, with the same IDs and in the same order as the originals.
+     * @return The number of lines changed.
+     */
+    @Override
+    public int updateChatLines(List<ChatLine> originals, List<ChatLine> replacements) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = openConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = connection.prepareStatement(
+                    "UPDATE chat_line SET line_text = ? WHERE id = ? AND chat_id = ? AND line_text = ?")) {
+                for (int i = 0; i < replacements.size(); i++) {
+                    ps.setString(1, replacements.get(i).getText());
+                    ps.setLong(2, replacements.get(i).getID());
+                    ps.setInt(3, replacements.get(i).getChatID());
+                    ps.setString(4, originals.get(i).getText());
+                    ps.addBatch();
+                }
+                int updated = 0;
+                for (int count : ps.executeBatch()) {
+                    // Drivers may report a successful statement without a row count.
+                    updated += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+                }
+                connection.commit();
+                return updated;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            recordCall("updateChatLines", start);
+        }
+    }
+
+    @Override
+    public void sendToChat(int chat_id, String chat_line) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = openConnection();
+                PreparedStatement ps = sendToChatPS(connection, chat_id, chat_line)) {
+            ps.executeUpdate();
+        } finally {
+            recordCall("sendToChat", start);
+        }
+    }
+
+    /**
+     * Saves several chat lines in one transaction using a JDBC batch.
+     * @param lines The lines to save, in order.
+     * @return The saved lines with the IDs the database gave them. A line's ID is ChatLine.NO_ID if the driver
+     *         did not report it.
+     */
+    @Override
+    public List<ChatLine> sendToChat(List<ChatLine> lines) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = openConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = connection.prepareStatement(SEND_TO_CHAT_SQL, Statement.RETURN_GENERATED_KEYS)) {
+                for (ChatLine line : lines) {
+                    ps.setInt(1, line.getChatID());
+                    ps.setString(2, line.getText());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                List<ChatLine> saved = new ArrayList<ChatLine>(lines.size());
+                try (ResultSet keys = ps.getGeneratedKeys()) {
+                    for (ChatLine line : lines) {
+                        long id = keys.next() ? keys.getLong(1) : ChatLine.NO_ID;
+                        saved.add(new ChatLine(id, line.getChatID(), line.getText()));
+                    }
+                }
+                connection.commit();
+                return saved;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            recordCall("sendToChatBatch", start);
         }
     }
 
     private PreparedStatement sendToChatPS(Connection connection, int chat_id, String chat_line)
             throws SQLException {
-        PreparedStatement ps = connection.prepareStatement("INSERT INTO chat_line (chat_id, line_text) VALUES (?,?)");
+        PreparedStatement ps = connection.prepareStatement(SEND_TO_CHAT_SQL);
         ps.setInt(1, chat_id);
         ps.setString(2, chat_line);
         return ps;
     }
 
+    @Override
     public PublicKey readChatKey(int id)
             throws SQLException, NoSuchAlgorithmException, InvalidKeySpecException, IOException {
+        long start = System.nanoTime();
         try (Connection connection = openConnection();
                 PreparedStatement ps = readChatKeyPS(connection, id);
                 ResultSet resultSet = ps.executeQuery()) {
             resultSet.next();
-            return KeyUtils.readRSAPublicKey(resultSet.getBytes(1));
+            return KeyUtils.readPublicKey(resultSet.getBytes(1));
+        } finally {
+            recordCall("readChatKey", start);
         }
     }
 
@@ -152,13 +343,17 @@ public class DBUtils {
     * @param rsa_public_key The public key for the chat.
     * @return The ID of the new chat.
     */
+    @Override
     public int createChat(String chat_name, byte[] rsa_public_key)
             throws SQLException {
+        long start = System.nanoTime();
         try (Connection connection = openConnection();
                 CallableStatement cs = createChatPS(connection, chat_name, rsa_public_key);) {
-            System.out.println("Public key length: " + rsa_public_key.length);
+            LOG.debug("Public key length: " + rsa_public_key.length);
             cs.executeUpdate();
             return cs.getInt(3);
+        } finally {
+            recordCall("createChat", start);
         }
     }
 
@@ -171,12 +366,47 @@ public class DBUtils {
         return cs;
     }
 
+    /**
+     * Reads a chat's name and public key in one query.
+     * @param id The ID of the chat.
+     * @return The chat's metadata, or null if there is no such chat.
+     */
+    @Override
+    public ChatMetadata readChatMetadata(int id) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = openConnection();
+                PreparedStatement ps = readChatMetadataPS(connection, id);
+                ResultSet resultSet = ps.executeQuery()) {
+            if (!resultSet.next()) {
+                return null;
+            }
+            try {
+                return new ChatMetadata(id, resultSet.getString(1), KeyUtils.readPublicKey(resultSet.getBytes(2)));
+            } catch (GeneralSecurityException e) {
+                throw new SQLException("Chat " + id + " has an invalid public key.", e);
+            }
+        } finally {
+            recordCall("readChatMetadata", start);
+        }
+    }
+
+    private PreparedStatement readChatMetadataPS(Connection connection, int id)
+            throws SQLException {
+        PreparedStatement ps = connection.prepareStatement("SELECT chat_name, rsa_public_key FROM chat WHERE id = ?");
+        ps.setInt(1, id);
+        return ps;
+    }
+
+    @Override
     public String getChatName(int id) throws SQLException {
+        long start = System.nanoTime();
         try (Connection connection = openConnection();
                 PreparedStatement ps = getChatPS(connection, id);
                 ResultSet resultSet = ps.executeQuery()) {
             resultSet.next();
             return resultSet.getString(1);
+        } finally {
+            recordCall("getChatName", start);
         }
     }
 
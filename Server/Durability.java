@@ -0,0 +1,27 @@
+/**
+ * When a chat message is passed on to the rest of its chat relative to it being saved to the database.
+ */
+public enum Durability {
+    /** Relay the message once the batch holding it has been committed. */
+    COMMIT,
+    /** Relay the message straight away and save it in the background. */
+    IMMEDIATE;
+
+    /**
+     * Reads a durability mode from a command line value such as "commit".
+     * @param option The value to read.
+     * @return The matching mode, or null if there is none.
+     */
+    public static Durability fromOption(String option) {
+        for (Durability durability : values()) {
+            if (durability.toOption().equalsIgnoreCase(option)) {
+                return durability;
+            }
+        }
+        return null;
+    }
+
+    public String toOption() {
+        return name().toLowerCase().replace('_', '-');
+    }
+}
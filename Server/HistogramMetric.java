@@ -0,0 +1,59 @@
+import Shared.LatencyHistogram;
+
+/**
+ * Publishes a LatencyHistogram as an MBean, scaling its values to the unit shown, such as nanoseconds to
+ * milliseconds.
+ */
+public class HistogramMetric implements HistogramMetricMBean {
+    final LatencyHistogram histogram;
+    final double divisor;
+    final String unit;
+
+    public HistogramMetric(LatencyHistogram histogram, double divisor, String unit) {
+        this.histogram = histogram;
+        this.divisor = divisor;
+        this.unit = unit;
+    }
+
+    /**
+     * @return A view of a histogram of nanoseconds in milliseconds.
+     */
+    public static HistogramMetric millis(LatencyHistogram histogram) {
+        return new HistogramMetric(histogram, 1e6, "ms");
+    }
+
+    @Override
+    public String getUnit() {
+        return unit;
+    }
+
+    @Override
+    public long getCount() {
+        return histogram.getCount();
+    }
+
+    @Override
+    public double getMean() {
+        return histogram.getMean() / divisor;
+    }
+
+    @Override
+    public double getP50() {
+        return histogram.getPercentile(50) / divisor;
+    }
+
+    @Override
+    public double getP99() {
+        return histogram.getPercentile(99) / divisor;
+    }
+
+    @Override
+    public double getP999() {
+        return histogram.getPercentile(99.9) / divisor;
+    }
+
+    @Override
+    public double getMax() {
+        return histogram.getMax() / divisor;
+    }
+}
@@ -0,0 +1,18 @@
+/**
+ * Management interface of HistogramMetric. Values are in the unit given by getUnit.
+ */
+public interface HistogramMetricMBean {
+    String getUnit();
+
+    long getCount();
+
+    double getMean();
+
+    double getP50();
+
+    double getP99();
+
+    double getP999();
+
+    double getMax();
+}
@@ -0,0 +1,250 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+import Shared.HandshakeMetrics;
+import Shared.Log;
+import Shared.ReloadingSslContext;
+
+/**
+ * Event-driven front end for the chat server.
+ * A few event loops multiplex every client socket with a Selector and an SSLEngine per connection, so idle
+ * members do not hold a thread each and a slow handshake never holds up the accept loop.
+ * Protocol work (including database calls) runs on a worker pool, in order for each connection.
+ * SSLEngine - Java Secure Socket Extension (JSSE) Reference Guide - Oracle - https://docs.oracle.com/en/java/javase/17/security/java-secure-socket-extension-jsse-reference-guide.html - Accessed 18.10.2026
+ */
+public class NioChatServer {
+    static final Log LOG = Log.get(NioChatServer.class);
+    // How long to wait after a failed accept, which is usually the process running out of file descriptors.
+    static final long ACCEPT_BACKOFF_MILLIS = 100;
+    final ReloadingSslContext sslContext;
+    final ChatStore chatStore;
+    final int port;
+    final int backlog;
+    final EventLoop[] eventLoops;
+    final ExecutorService workers;
+    final int outboundCapacity;
+    final SlowConsumerPolicy slowConsumerPolicy;
+    final HandshakeMetrics handshakeMetrics;
+    final int handshakeTimeout;
+    // Closes connections whose handshakes run past the timeout.
+    final ScheduledExecutorService handshakeTimer;
+    final AtomicInteger nextEventLoop = new AtomicInteger();
+    ServerSocketChannel serverChannel;
+
+    public NioChatServer(ReloadingSslContext sslContext, ChatStore chatStore, int port, int backlog, int eventLoopCount,
+            int workerCount, int outboundCapacity, SlowConsumerPolicy slowConsumerPolicy,
+            HandshakeMetrics handshakeMetrics, int handshakeTimeout) throws IOException {
+        this.sslContext = sslContext;
+        this.chatStore = chatStore;
+        this.port = port;
+        this.backlog = backlog;
+        this.outboundCapacity = outboundCapacity;
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        this.handshakeMetrics = handshakeMetrics;
+        this.handshakeTimeout = handshakeTimeout;
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "handshake-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Most handshakes finish in time, so cancelled deadlines should not linger.
+        timer.setRemoveOnCancelPolicy(true);
+        handshakeTimer = timer;
+
+        // Size the shared buffers from a throwaway engine so that any TLS record fits.
+        SSLSession session = sslContext.get().createSSLEngine().getSession();
+        eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(session.getPacketBufferSize(), session.getApplicationBufferSize());
+        }
+        workers = Executors.newFixedThreadPool(Math.max(1, workerCount));
+    }
+
+    public void start() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.serverChannel = serverChannel;
+            serverChannel.bind(new InetSocketAddress(port), backlog);
+            for (int i = 0; i < eventLoops.length; i++) {
+                new Thread(eventLoops[i], "event-loop-" + i).start();
+            }
+            LOG.info("Echo Server is running on port " + port + " with " + eventLoops.length
+                    + " event loops.");
+
+            // Accept connections and hand them to the event loops, which perform the handshakes.
+            while (serverChannel.isOpen()) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (ClosedChannelException e) {
+                    throw e;
+                } catch (IOException e) {
+                    // Connections already accepted are unaffected, so wait for the problem to clear.
+                    LOG.warn("Failed to accept a connection. " + e.getMessage());
+                    try {
+                        Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    continue;
+                }
+                try {
+                    accepted(channel);
+                } catch (IOException | RuntimeException e) {
+                    // Such as a client that reset the connection straight away. Only that client is dropped.
+                    LOG.warn("Failed to set up a connection. " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException closeFailure) {
+                        LOG.warn("Error while closing a client socket. " + closeFailure.getMessage());
+                    }
+                }
+            }
+        } catch (AsynchronousCloseException e) {
+            LOG.info("Server socket closed.");
+        } catch (IOException e) {
+            LOG.error("Exception caught when trying to listen on port " + port + " or listening for a connection. "
+                    + e.getMessage());
+        }
+        stop();
+    }
+
+    /**
+     * Creates a connection for an accepted socket and hands it to an event loop.
+     */
+    private void accepted(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        // Taken per connection so that reloaded certificates are used for new clients.
+        SSLEngine engine = sslContext.get().createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setNeedClientAuth(true);
+
+        EventLoop eventLoop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+        NioClientConnection connection = new NioClientConnection(channel, engine, eventLoop, workers, chatStore,
+                new OutboundQueue(outboundCapacity, slowConsumerPolicy), handshakeMetrics, handshakeTimer,
+                handshakeTimeout);
+        eventLoop.execute(connection::register);
+    }
+
+    /**
+     * Stops accepting connections and closes every connected client.
+     */
+    public void stop() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Error while closing server socket. " + e.getMessage());
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.stop();
+        }
+        workers.shutdown();
+        handshakeTimer.shutdown();
+    }
+
+    /**
+     * A selector thread that owns a group of connections.
+     * Only the loop thread touches the selector and the scratch buffers below; other threads pass work in
+     * through execute.
+     */
+    static class EventLoop implements Runnable {
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        volatile boolean running = true;
+
+        // Scratch buffers shared by every connection on this loop so that idle connections hold none.
+        final ByteBuffer netInBuffer;
+        final ByteBuffer netOutBuffer;
+        final ByteBuffer appInBuffer;
+        final ByteBuffer appOutBuffer;
+
+        EventLoop(int packetBufferSize, int applicationBufferSize) throws IOException {
+            selector = Selector.open();
+            netInBuffer = ByteBuffer.allocate(packetBufferSize);
+            netOutBuffer = ByteBuffer.allocate(packetBufferSize);
+            appInBuffer = ByteBuffer.allocate(applicationBufferSize);
+            appOutBuffer = ByteBuffer.allocate(applicationBufferSize);
+        }
+
+        /**
+         * Runs a task on the loop thread.
+         * @param task The task to run.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            LOG.error("Event loop task failed.", e);
+                        }
+                    }
+
+                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+                        NioClientConnection connection = (NioClientConnection) key.attachment();
+                        try {
+                            connection.onSelected(key);
+                        } catch (RuntimeException e) {
+                            // Such as a cancelled key or an SSLEngine in a bad state. Only this connection is lost.
+                            LOG.error("Unexpected failure of a connection.", e);
+                            connection.fail(new IOException(e.toString(), e));
+                        }
+                    }
+                } catch (IOException e) {
+                    LOG.warn("Exception caught in event loop. " + e.getMessage());
+                }
+            }
+
+            // Close any connections left on the loop.
+            for (SelectionKey key : selector.keys()) {
+                ((NioClientConnection) key.attachment()).closeNow();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOG.warn("Error while closing selector. " + e.getMessage());
+            }
+        }
+    }
+}
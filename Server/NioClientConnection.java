@@ -0,0 +1,580 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import Shared.Frame;
+import Shared.HandshakeMetrics;
+import Shared.Log;
+
+/**
+ * Non-blocking transport for one client, driven by an event loop of the NioChatServer.
+ * TLS records are unwrapped on the loop thread and split into lines, or frames once binary framing is
+ * negotiated, which are passed to the ClientHandler in order on a worker. Outgoing frames are queued from any
+ * thread in an OutboundQueue and written by the loop thread, coalescing whatever is queued into as few TLS
+ * records as possible.
+ * Reading stops while too many lines or frames are waiting for the handler, so a client cannot queue work
+ * faster than it is done, and starts again once the handler has caught up. A client that has not finished its
+ * handshake by the deadline is disconnected.
+ */
+public final class NioClientConnection implements ClientConnection {
+    static final Log LOG = Log.get(NioClientConnection.class);
+    // Lines longer than this are treated as a misbehaving client.
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+    static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    static final Charset CHARSET = Charset.defaultCharset();
+    // Reading stops once this many lines or frames are waiting for the handler, and starts again at half.
+    static final int MAX_PENDING_INPUT = 256;
+    static final int RESUME_PENDING_INPUT = MAX_PENDING_INPUT / 2;
+
+    final SocketChannel channel;
+    final SSLEngine engine;
+    final NioChatServer.EventLoop eventLoop;
+    final Executor taskExecutor;
+    final SerialExecutor handlerExecutor;
+    final ClientHandler handler;
+    final String remoteAddress;
+
+    final OutboundQueue outbound;
+    final HandshakeMetrics handshakeMetrics;
+    final AtomicBoolean flushScheduled = new AtomicBoolean();
+    final AtomicInteger pendingInput = new AtomicInteger();
+    final ScheduledExecutorService timer;
+    final int handshakeTimeout;
+    volatile boolean closed;
+    // Set by the handler's worker before BINARY_ACK is queued, so it is visible before the client can switch.
+    volatile boolean binaryInput;
+
+    // State below is only touched on the loop thread. Buffers are only held while data is left over.
+    SelectionKey key;
+    ByteBuffer pendingNetIn;
+    ByteBuffer pendingNetOut;
+    ByteBuffer pendingAppOut;
+    byte[] lineBytes;
+    int lineLength;
+    ByteBuffer frameHeader;
+    byte frameType;
+    byte[] framePayload;
+    int framePayloadLength;
+    boolean binaryOutput;
+    boolean handshakeComplete;
+    boolean runningTasks;
+    long handshakeStartMillis;
+    long handshakeStart;
+    ScheduledFuture<?> handshakeDeadline;
+
+    public NioClientConnection(SocketChannel channel, SSLEngine engine, NioChatServer.EventLoop eventLoop,
+            Executor workers, ChatStore chatStore, OutboundQueue outbound, HandshakeMetrics handshakeMetrics,
+            ScheduledExecutorService timer, int handshakeTimeout) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        this.eventLoop = eventLoop;
+        this.taskExecutor = workers;
+        this.handlerExecutor = new SerialExecutor(workers);
+        this.handler = new ClientHandler(this, chatStore);
+        this.outbound = outbound;
+        this.handshakeMetrics = handshakeMetrics;
+        this.timer = timer;
+        this.handshakeTimeout = handshakeTimeout;
+        this.remoteAddress = channel.getRemoteAddress().toString();
+    }
+
+    /**
+     * Registers the connection with its event loop and starts the handshake. Called on the loop thread.
+     */
+    void register() {
+        try {
+            key = channel.register(eventLoop.selector, SelectionKey.OP_READ, this);
+            handshakeStartMillis = System.currentTimeMillis();
+            handshakeStart = System.nanoTime();
+            if (handshakeTimeout > 0) {
+                handshakeDeadline = timer.schedule(() -> eventLoop.execute(this::handshakeTimedOut),
+                        handshakeTimeout, TimeUnit.MILLISECONDS);
+            }
+            engine.beginHandshake();
+            pump(false);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void send(Frame frame) {
+        if (closed) {
+            return;
+        }
+        outbound.add(frame);
+        scheduleFlush();
+    }
+
+    @Override
+    public void deliver(Frame message) {
+        if (closed) {
+            return;
+        }
+        if (!outbound.deliver(message)) {
+            LOG.warn("Disconnecting slow client: " + remoteAddress);
+            outbound.clear();
+            close();
+            return;
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    public void startBinaryFraming() {
+        binaryInput = true;
+        send(BINARY_ACK);
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(() -> {
+                flushScheduled.set(false);
+                try {
+                    pump(false);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void close() {
+        eventLoop.execute(this::closeNow);
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Handles a readiness event from the selector.
+     * @param key The key that was selected.
+     */
+    void onSelected(SelectionKey key) {
+        try {
+            if (key.isValid() && (key.isReadable() || key.isWritable())) {
+                pump(key.isReadable());
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Moves data between the socket, the SSLEngine and the handler for as long as progress can be made.
+     * @param readChannel Whether to read from the socket first.
+     */
+    private void pump(boolean readChannel) throws IOException {
+        if (closed || runningTasks) {
+            return;
+        }
+        ByteBuffer netIn = eventLoop.netInBuffer;
+        netIn.clear();
+        if (pendingNetIn != null) {
+            netIn.put(pendingNetIn);
+            pendingNetIn = null;
+        }
+        boolean endOfStream = false;
+        if (readChannel && pendingNetOut == null && !inputPaused()) {
+            endOfStream = channel.read(netIn) < 0;
+        }
+        netIn.flip();
+        try {
+            process(netIn);
+        } finally {
+            // Keep any partial TLS record until more bytes arrive.
+            if (netIn.hasRemaining()) {
+                pendingNetIn = ByteBuffer.allocate(netIn.remaining());
+                pendingNetIn.put(netIn).flip();
+            }
+        }
+        if (endOfStream) {
+            LOG.debug("Closing socket to client.");
+            closeNow();
+            return;
+        }
+        updateInterest();
+    }
+
+    private void process(ByteBuffer netIn) throws IOException {
+        while (!closed) {
+            if (pendingNetOut != null) {
+                channel.write(pendingNetOut);
+                if (pendingNetOut.hasRemaining()) {
+                    return;
+                }
+                pendingNetOut = null;
+            }
+
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                return;
+            }
+            if (status == HandshakeStatus.NEED_WRAP
+                    || (handshakeComplete && (pendingAppOut != null || !outbound.isEmpty()))) {
+                if (wrap()) {
+                    continue;
+                }
+                if (status == HandshakeStatus.NEED_WRAP) {
+                    return;
+                }
+            }
+            if (netIn.hasRemaining() && !inputPaused() && unwrap(netIn)) {
+                continue;
+            }
+            if (handshakeComplete && pendingAppOut == null && outbound.takeReplayRequest()) {
+                handlerExecutor.execute(handler::replayLatestMessages);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Wraps handshake messages or queued lines into a TLS record and writes it.
+     * Queued lines are coalesced so that a burst of messages costs a single record.
+     * @return Whether any progress was made.
+     */
+    private boolean wrap() throws IOException {
+        ByteBuffer app = handshakeComplete ? fillAppOut() : EMPTY;
+        ByteBuffer netOut = eventLoop.netOutBuffer;
+        netOut.clear();
+        SSLEngineResult result = engine.wrap(app, netOut);
+        if (app.hasRemaining()) {
+            keepAppOut(app);
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            throw new SSLException("TLS record did not fit the network buffer.");
+        }
+
+        netOut.flip();
+        channel.write(netOut);
+        if (netOut.hasRemaining()) {
+            // Wait for the socket to drain before writing anything else.
+            pendingNetOut = ByteBuffer.allocate(netOut.remaining());
+            pendingNetOut.put(netOut).flip();
+        }
+        checkFinished(result);
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            closeNow();
+            return false;
+        }
+        return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+    }
+
+    private ByteBuffer fillAppOut() {
+        ByteBuffer app = eventLoop.appOutBuffer;
+        app.clear();
+        if (pendingAppOut != null) {
+            putAvailable(app, pendingAppOut);
+            if (!pendingAppOut.hasRemaining()) {
+                pendingAppOut = null;
+            }
+        }
+        Frame frame;
+        while (pendingAppOut == null && app.hasRemaining() && (frame = outbound.poll()) != null) {
+            if (!binaryOutput) {
+                ByteBuffer bytes = ByteBuffer.wrap((frame.getText() + "\n").getBytes(CHARSET));
+                putAvailable(app, bytes);
+                if (bytes.hasRemaining()) {
+                    pendingAppOut = bytes;
+                }
+                if (frame == BINARY_ACK) {
+                    binaryOutput = true;
+                }
+                continue;
+            }
+            try {
+                if (frame.getEncodedLength() <= app.remaining()) {
+                    frame.write(app);
+                } else {
+                    ByteBuffer bytes = ByteBuffer.allocate(frame.getEncodedLength());
+                    frame.write(bytes);
+                    bytes.flip();
+                    putAvailable(app, bytes);
+                    pendingAppOut = bytes;
+                }
+            } catch (IllegalArgumentException e) {
+                // A message from a line protocol client that was not Base64. Nothing has been written yet.
+                LOG.warn("Dropping a message that could not be framed. " + e.getMessage());
+            }
+        }
+        app.flip();
+        return app;
+    }
+
+    private static void putAvailable(ByteBuffer destination, ByteBuffer source) {
+        int length = Math.min(destination.remaining(), source.remaining());
+        ByteBuffer slice = source.duplicate();
+        slice.limit(slice.position() + length);
+        destination.put(slice);
+        source.position(source.position() + length);
+    }
+
+    private void keepAppOut(ByteBuffer app) {
+        // Bytes the engine did not consume go back in front of anything still waiting.
+        int pendingLength = pendingAppOut == null ? 0 : pendingAppOut.remaining();
+        ByteBuffer kept = ByteBuffer.allocate(app.remaining() + pendingLength);
+        kept.put(app);
+        if (pendingAppOut != null) {
+            kept.put(pendingAppOut);
+        }
+        kept.flip();
+        pendingAppOut = kept;
+    }
+
+    /**
+     * Unwraps one TLS record and passes any complete lines or frames to the handler.
+     * @param netIn Bytes read from the socket.
+     * @return Whether any progress was made.
+     */
+    private boolean unwrap(ByteBuffer netIn) throws IOException {
+        ByteBuffer app = eventLoop.appInBuffer;
+        app.clear();
+        SSLEngineResult result = engine.unwrap(netIn, app);
+        app.flip();
+        if (binaryInput) {
+            readFrames(app);
+        } else {
+            readLines(app);
+        }
+
+        switch (result.getStatus()) {
+            case OK:
+                checkFinished(result);
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            case BUFFER_UNDERFLOW:
+                return false;
+            case BUFFER_OVERFLOW:
+                throw new SSLException("TLS record did not fit the application buffer.");
+            case CLOSED:
+            default:
+                closeNow();
+                return false;
+        }
+    }
+
+    private void readLines(ByteBuffer app) throws IOException {
+        while (app.hasRemaining()) {
+            byte b = app.get();
+            if (b == '\n') {
+                int length = lineLength;
+                if (length > 0 && lineBytes[length - 1] == '\r') {
+                    length--;
+                }
+                String line = length == 0 ? "" : new String(lineBytes, 0, length, CHARSET);
+                lineLength = 0;
+                if (lineBytes.length > 256) {
+                    lineBytes = null;
+                }
+                dispatch(() -> handler.handleLine(line));
+            } else {
+                if (lineBytes == null) {
+                    lineBytes = new byte[128];
+                } else if (lineLength == lineBytes.length) {
+                    if (lineLength >= MAX_LINE_LENGTH) {
+                        throw new IOException("Client sent a line longer than " + MAX_LINE_LENGTH + " bytes.");
+                    }
+                    byte[] grown = new byte[lineBytes.length * 2];
+                    System.arraycopy(lineBytes, 0, grown, 0, lineLength);
+                    lineBytes = grown;
+                }
+                lineBytes[lineLength++] = b;
+            }
+        }
+        if (lineLength == 0 && lineBytes != null && lineBytes.length > 256) {
+            lineBytes = null;
+        }
+    }
+
+    private void readFrames(ByteBuffer app) throws IOException {
+        while (app.hasRemaining()) {
+            if (framePayload == null) {
+                if (frameHeader == null) {
+                    frameHeader = ByteBuffer.allocate(Frame.HEADER_LENGTH);
+                }
+                putAvailable(frameHeader, app);
+                if (frameHeader.hasRemaining()) {
+                    return;
+                }
+                frameHeader.flip();
+                frameType = frameHeader.get();
+                int length = frameHeader.getInt();
+                frameHeader.clear();
+                Frame.checkHeader(frameType, length);
+                framePayload = new byte[length];
+                framePayloadLength = 0;
+            }
+            int length = Math.min(app.remaining(), framePayload.length - framePayloadLength);
+            app.get(framePayload, framePayloadLength, length);
+            framePayloadLength += length;
+            if (framePayloadLength == framePayload.length) {
+                Frame frame = Frame.fromWire(frameType, framePayload);
+                framePayload = null;
+                dispatch(() -> handler.handleFrame(frame));
+            }
+        }
+    }
+
+    /**
+     * Passes input to the handler, counting it until the handler is done with it.
+     */
+    private void dispatch(Runnable input) {
+        pendingInput.incrementAndGet();
+        handlerExecutor.execute(() -> {
+            try {
+                input.run();
+            } finally {
+                if (pendingInput.decrementAndGet() == RESUME_PENDING_INPUT) {
+                    eventLoop.execute(this::resumeInput);
+                }
+            }
+        });
+    }
+
+    private boolean inputPaused() {
+        return pendingInput.get() >= MAX_PENDING_INPUT;
+    }
+
+    /**
+     * Processes any input left over from when reading stopped, and reads again. Called on the loop thread.
+     */
+    private void resumeInput() {
+        try {
+            pump(false);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void handshakeTimedOut() {
+        if (!handshakeComplete && !closed) {
+            fail(new SSLException("Handshake did not finish within " + handshakeTimeout + "ms."));
+        }
+    }
+
+    private void checkFinished(SSLEngineResult result) {
+        if (!handshakeComplete && result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+            handshakeComplete = true;
+            if (handshakeDeadline != null) {
+                handshakeDeadline.cancel(false);
+                handshakeDeadline = null;
+            }
+            handshakeMetrics.record(engine.getSession(), handshakeStartMillis, System.nanoTime() - handshakeStart);
+            LOG.info("Client connected: " + remoteAddress);
+            handlerExecutor.execute(handler::start);
+        }
+    }
+
+    /**
+     * Runs the engine's slow handshake tasks (such as certificate checks) on a worker so the loop stays free.
+     */
+    private void runDelegatedTasks() {
+        runningTasks = true;
+        updateInterest();
+        taskExecutor.execute(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            eventLoop.execute(() -> {
+                runningTasks = false;
+                try {
+                    pump(false);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            });
+        });
+    }
+
+    private void updateInterest() {
+        if (closed || !key.isValid()) {
+            return;
+        }
+        int interestOps;
+        if (runningTasks) {
+            interestOps = 0;
+        } else if (pendingNetOut != null) {
+            interestOps = SelectionKey.OP_WRITE;
+        } else if (inputPaused()) {
+            interestOps = 0;
+        } else {
+            interestOps = SelectionKey.OP_READ;
+        }
+        if (key.interestOps() != interestOps) {
+            key.interestOps(interestOps);
+        }
+    }
+
+    void fail(IOException e) {
+        if (!handshakeComplete) {
+            handshakeMetrics.recordFailure();
+            LOG.warn("Handshake failed with client: " + remoteAddress + ". " + e.getMessage());
+        } else {
+            LOG.warn("Exception caught when trying to handle a client. " + e.getMessage());
+        }
+        closeNow();
+    }
+
+    /**
+     * Closes the connection. Called on the loop thread.
+     */
+    void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (handshakeDeadline != null) {
+            handshakeDeadline.cancel(false);
+            handshakeDeadline = null;
+        }
+        try {
+            // Best effort close_notify; the client may already be gone.
+            engine.closeOutbound();
+            if (pendingNetOut == null) {
+                ByteBuffer netOut = eventLoop.netOutBuffer;
+                netOut.clear();
+                engine.wrap(EMPTY, netOut);
+                netOut.flip();
+                channel.write(netOut);
+            }
+        } catch (IOException e) {
+            // Ignore, the channel is closed below.
+        }
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Error while trying to close ClientHandler.");
+        }
+        outbound.clear();
+        pendingNetIn = null;
+        pendingNetOut = null;
+        pendingAppOut = null;
+        lineBytes = null;
+        frameHeader = null;
+        framePayload = null;
+        if (handshakeComplete) {
+            handlerExecutor.execute(handler::stop);
+        }
+    }
+}
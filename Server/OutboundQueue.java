@@ -0,0 +1,213 @@
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import Shared.Frame;
+
+/**
+ * Bounded queue of frames waiting to be written to one client.
+ * Replies to the client's own requests are always queued, while chat messages from other members are
+ * subject to the queue's capacity and SlowConsumerPolicy. Senders only ever enqueue, so a slow client
+ * cannot hold up the rest of its room. Replies count against the capacity too: a blocking connection waits for
+ * room before handling the client's next request, so a client that does not read cannot make the server build
+ * replies without limit.
+ */
+public class OutboundQueue {
+    final int capacity;
+    final SlowConsumerPolicy policy;
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition replyRoom = lock.newCondition();
+    final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+    int replies;
+    boolean replayPending;
+    long droppedMessages;
+
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    /**
+     * Queues a reply to the client. Replies are never dropped.
+     * @param frame The frame to send.
+     */
+    public void add(Frame frame) {
+        lock.lock();
+        try {
+            entries.add(new Entry(frame, false));
+            replies++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a chat message from another member, applying the slow consumer policy if the queue is full.
+     * @param frame The message to send.
+     * @return False if the client should be disconnected.
+     */
+    public boolean deliver(Frame frame) {
+        lock.lock();
+        try {
+            if (replayPending) {
+                droppedMessages++;
+                return true;
+            }
+            if (entries.size() >= capacity) {
+                switch (policy) {
+                    case DISCONNECT:
+                        return false;
+                    case HISTORY_REPLAY:
+                        droppedMessages += removeDroppable(Integer.MAX_VALUE) + 1;
+                        replayPending = true;
+                        return true;
+                    case DROP_OLDEST:
+                    default:
+                        if (removeDroppable(1) == 0) {
+                            // Everything queued is a reply, so drop the new message instead.
+                            droppedMessages++;
+                            return true;
+                        }
+                        droppedMessages++;
+                        break;
+                }
+            }
+            entries.add(new Entry(frame, true));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until fewer replies than the capacity are queued. Returns early once the queue is cleared.
+     */
+    public void awaitReplyRoom() throws InterruptedException {
+        lock.lock();
+        try {
+            while (replies >= capacity) {
+                replyRoom.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes an entry off the queue, waking a reader waiting for room if it was a reply. Called with the lock held.
+     */
+    private Entry take() {
+        Entry entry = entries.poll();
+        if (entry != null && !entry.droppable && replies-- == capacity) {
+            replyRoom.signalAll();
+        }
+        return entry;
+    }
+
+    private int removeDroppable(int limit) {
+        int removed = 0;
+        Iterator<Entry> iterator = entries.iterator();
+        while (removed < limit && iterator.hasNext()) {
+            if (iterator.next().droppable) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Takes the next frame to write.
+     * @return The next frame, or null if the queue is empty.
+     */
+    public Frame poll() {
+        lock.lock();
+        try {
+            Entry entry = take();
+            return entry == null ? null : entry.frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves queued frames into a collection so that they can be written together.
+     * @param frames The collection to add the frames to.
+     * @param maxFrames The maximum number of frames to move.
+     * @return The number of frames moved.
+     */
+    public int drainTo(Collection<Frame> frames, int maxFrames) {
+        lock.lock();
+        try {
+            int count = 0;
+            Entry entry;
+            while (count < maxFrames && (entry = take()) != null) {
+                frames.add(entry.frame);
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether history should be replayed because messages were dropped. Only true once the queue has
+     * drained, and clears the request.
+     * @return Whether the caller should replay history.
+     */
+    public boolean takeReplayRequest() {
+        lock.lock();
+        try {
+            if (replayPending && entries.isEmpty()) {
+                replayPending = false;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            replies = 0;
+            replayPending = false;
+            replyRoom.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedMessages() {
+        lock.lock();
+        try {
+            return droppedMessages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static class Entry {
+        final Frame frame;
+        final boolean droppable;
+
+        Entry(Frame frame, boolean droppable) {
+            this.frame = frame;
+            this.droppable = droppable;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the most recent lines of each active chat in memory so that entering a chat, or replaying its latest
+ * messages, does not need a database query.
+ * A chat's buffer is loaded from the database the first time it is read, with concurrent readers waiting on a
+ * single load. Lines are added by the ChatLineWriter once they have been committed and given their IDs, so
+ * the buffer only ever shows what the database holds. Chats that have not been read for the longest are
+ * dropped when the buffers together go over the memory budget.
+ */
+public class RecentHistoryCache {
+    // Rough cost of a buffered line on top of its text.
+    static final int LINE_OVERHEAD_BYTES = 64;
+
+    final ChatStore chatStore;
+    final int linesPerChat;
+    final long budgetBytes;
+    final ConcurrentHashMap<Integer, ChatHistory> chats = new ConcurrentHashMap<Integer, ChatHistory>();
+    final AtomicLong usedBytes = new AtomicLong();
+    final ReentrantLock evictionLock = new ReentrantLock();
+
+    // Metrics.
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder loads = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param chatStore Used to load a chat's history the first time it is read.
+     * @param linesPerChat The most recent lines to keep for each chat.
+     * @param budgetBytes The approximate memory to use across all chats.
+     */
+    public RecentHistoryCache(ChatStore chatStore, int linesPerChat, long budgetBytes) {
+        this.chatStore = chatStore;
+        this.linesPerChat = Math.max(ChatStore.HISTORY_PAGE_SIZE, linesPerChat);
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Reads a page of history from memory if the buffer can answer it.
+     * @param chatID The chat to read from.
+     * @param beforeID Only lines with a lower ID are returned.
+     * @return Up to a page of lines, newest first, or null if the page has to be read from the database.
+     */
+    public List<ChatLine> pageBefore(int chatID, long beforeID) throws SQLException {
+        ChatHistory history = chats.computeIfAbsent(chatID, ChatHistory::new);
+        history.ensureLoaded();
+        List<ChatLine> page = history.pageBefore(beforeID, ChatStore.HISTORY_PAGE_SIZE);
+        if (page == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return page;
+    }
+
+    /**
+     * Adds committed lines to the buffers of chats that are cached. Lines of other chats are skipped since
+     * those chats will read them from the database when they are first loaded.
+     * @param lines The committed lines in commit order.
+     */
+    public void appendCommitted(Collection<ChatLine> lines) {
+        for (ChatLine line : lines) {
+            ChatHistory history = chats.get(line.getChatID());
+            if (history == null) {
+                continue;
+            }
+            if (line.getID() == ChatLine.NO_ID) {
+                // Without an ID the line cannot be placed, so start over from the database.
+                invalidate(line.getChatID());
+            } else {
+                history.append(line);
+            }
+        }
+        evictIfOverBudget();
+    }
+
+    /**
+     * Forgets a chat's buffer so that it is loaded again on its next read.
+     * @param chatID The chat to forget.
+     */
+    public void invalidate(int chatID) {
+        ChatHistory history = chats.remove(chatID);
+        if (history != null) {
+            history.discard();
+        }
+    }
+
+    /**
+     * Drops the least recently read chats until the buffers fit well within the budget again.
+     */
+    private void evictIfOverBudget() {
+        if (usedBytes.get() <= budgetBytes || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            long target = budgetBytes - budgetBytes / 10;
+            if (usedBytes.get() <= target) {
+                return;
+            }
+            List<Map.Entry<Integer, ChatHistory>> coldestFirst = new ArrayList<Map.Entry<Integer, ChatHistory>>(
+                    chats.entrySet());
+            coldestFirst.sort(Comparator.comparingLong(entry -> entry.getValue().lastRead));
+            Iterator<Map.Entry<Integer, ChatHistory>> iterator = coldestFirst.iterator();
+            while (usedBytes.get() > target && iterator.hasNext()) {
+                Map.Entry<Integer, ChatHistory> entry = iterator.next();
+                // Chats still loading are left alone so their waiting readers are not left empty-handed.
+                if (entry.getValue().loaded && chats.remove(entry.getKey(), entry.getValue())) {
+                    entry.getValue().discard();
+                    evictions.increment();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public int getCachedChats() {
+        return chats.size();
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public String getStats() {
+        return String.format("Recent history: %d chats, %d bytes, %d hits, %d misses, %d loads, %d evictions",
+                getCachedChats(), getUsedBytes(), getHits(), getMisses(), loads.sum(), evictions.sum());
+    }
+
+    private static long weigh(ChatLine line) {
+        return LINE_OVERHEAD_BYTES + 2L * line.getText().length();
+    }
+
+    /**
+     * The buffered lines of one chat, oldest first.
+     */
+    class ChatHistory {
+        final int chatID;
+        final ReentrantLock lock = new ReentrantLock();
+        final ArrayDeque<ChatLine> lines = new ArrayDeque<ChatLine>();
+        volatile long lastRead = System.nanoTime();
+        long bytes;
+        volatile boolean loaded;
+        // Whether the buffer goes back to the first line of the chat, so it can also answer older pages.
+        boolean complete;
+        boolean discarded;
+        CompletableFuture<Void> loading;
+
+        ChatHistory(int chatID) {
+            this.chatID = chatID;
+        }
+
+        /**
+         * Loads the chat's latest lines from the database if that has not been done. Only one reader loads;
+         * the others wait for it.
+         */
+        void ensureLoaded() throws SQLException {
+            lastRead = System.nanoTime();
+            CompletableFuture<Void> load;
+            boolean loader = false;
+            lock.lock();
+            try {
+                if (loaded) {
+                    return;
+                }
+                if (loading == null) {
+                    loading = new CompletableFuture<Void>();
+                    loader = true;
+                }
+                load = loading;
+            } finally {
+                lock.unlock();
+            }
+
+            if (loader) {
+                try {
+                    List<ChatLine> newestFirst = new ArrayList<ChatLine>();
+                    boolean reachedStart = false;
+                    long beforeID = ClientHandler.LATEST_PAGE;
+                    while (newestFirst.size() < linesPerChat) {
+                        List<ChatLine> page = chatStore.readChatBefore(chatID, beforeID);
+                        newestFirst.addAll(page);
+                        if (page.size() < ChatStore.HISTORY_PAGE_SIZE) {
+                            reachedStart = true;
+                            break;
+                        }
+                        beforeID = page.get(page.size() - 1).getID();
+                    }
+                    loads.increment();
+                    install(newestFirst, reachedStart);
+                    load.complete(null);
+                } catch (SQLException e) {
+                    lock.lock();
+                    try {
+                        loading = null;
+                    } finally {
+                        lock.unlock();
+                    }
+                    load.completeExceptionally(e);
+                    throw e;
+                }
+            } else {
+                try {
+                    load.join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof SQLException) {
+                        throw (SQLException) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+            evictIfOverBudget();
+        }
+
+        /**
+         * Merges the loaded lines with any committed while the load was running.
+         */
+        private void install(List<ChatLine> newestFirst, boolean reachedStart) {
+            lock.lock();
+            try {
+                loaded = true;
+                loading = null;
+                if (discarded) {
+                    return;
+                }
+                List<ChatLine> appended = new ArrayList<ChatLine>(lines);
+                clear();
+                for (int i = newestFirst.size() - 1; i >= 0; i--) {
+                    add(newestFirst.get(i));
+                }
+                complete = reachedStart;
+                for (ChatLine line : appended) {
+                    append(line);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Adds a committed line, keeping the buffer in ID order and within its size.
+         */
+        void append(ChatLine line) {
+            lock.lock();
+            try {
+                if (discarded) {
+                    return;
+                }
+                ChatLine newest = lines.peekLast();
+                if (newest == null || newest.getID() < line.getID()) {
+                    add(line);
+                } else {
+                    // Arrived out of order, which only happens around a load. Rebuild in ID order.
+                    List<ChatLine> merged = new ArrayList<ChatLine>(lines);
+                    for (ChatLine existing : merged) {
+                        if (existing.getID() == line.getID()) {
+                            return;
+                        }
+                    }
+                    merged.add(line);
+                    merged.sort(Comparator.comparingLong(ChatLine::getID));
+                    clear();
+                    for (ChatLine existing : merged) {
+                        add(existing);
+                    }
+                }
+                while (lines.size() > linesPerChat) {
+                    ChatLine oldest = lines.pollFirst();
+                    bytes -= weigh(oldest);
+                    usedBytes.addAndGet(-weigh(oldest));
+                    complete = false;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void add(ChatLine line) {
+            lines.addLast(line);
+            bytes += weigh(line);
+            usedBytes.addAndGet(weigh(line));
+        }
+
+        private void clear() {
+            lines.clear();
+            usedBytes.addAndGet(-bytes);
+            bytes = 0;
+        }
+
+        /**
+         * @return Up to a page of lines before the given ID, newest first, or null if the buffer does not hold
+         *         enough of the chat to be sure of the page.
+         */
+        List<ChatLine> pageBefore(long beforeID, int pageSize) {
+            lock.lock();
+            try {
+                if (discarded) {
+                    return null;
+                }
+                List<ChatLine> page = new ArrayList<ChatLine>(pageSize);
+                Iterator<ChatLine> newestFirst = lines.descendingIterator();
+                while (page.size() < pageSize && newestFirst.hasNext()) {
+                    ChatLine line = newestFirst.next();
+                    if (line.getID() < beforeID) {
+                        page.add(line);
+                    }
+                }
+                if (page.size() < pageSize && !complete) {
+                    return null;
+                }
+                return page;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void discard() {
+            lock.lock();
+            try {
+                discarded = true;
+                clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -2,90 +2,347 @@
 
 // Java Echo Server Example Code - Oracle - https://docs.oracle.com/javase/tutorial/networking/sockets/examples/EchoServer.java - Accessed 04.11.2023
 
-import java.util.ArrayList;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
-import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLHandshakeException;
-import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
 
+import Shared.HandshakeMetrics;
+import Shared.Log;
+import Shared.ReloadingSslContext;
 import Shared.SslUtil;
 
 import java.io.*;
 
 public class SecureChatServer {
+    static final Log LOG = Log.get(SecureChatServer.class);
     public static final int DEFAULT_PORT = 8000;
+    public static final String MODE_THREADS = "threads";
+    public static final String MODE_VIRTUAL = "virtual";
+    public static final String MODE_NIO = "nio";
+    public static final int DEFAULT_BACKLOG = 50;
+    public static final int DEFAULT_MAX_HANDSHAKES = 64;
+    public static final int DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+    public static final int DEFAULT_OUTBOUND_CAPACITY = 1024;
+    public static final int DEFAULT_DB_POOL_MIN = 2;
+    public static final int DEFAULT_DB_POOL_MAX = 16;
+    public static final int DEFAULT_DB_POOL_TIMEOUT = 5000;
+    public static final int DEFAULT_DB_POOL_IDLE_TIMEOUT = 600000;
+    public static final int DEFAULT_DB_POOL_LEAK_THRESHOLD = 30000;
+    public static final int DEFAULT_DB_POOL_VALIDATION_INTERVAL = 1000;
+    public static final int DEFAULT_DB_STATEMENT_CACHE = 32;
+    public static final int DEFAULT_WRITE_BATCH = 256;
+    public static final int DEFAULT_WRITE_DELAY = 5;
+    public static final int DEFAULT_WRITE_QUEUE = 65536;
+    public static final int DEFAULT_HISTORY_LINES = 100;
+    public static final int DEFAULT_HISTORY_BUDGET = 16 * 1024 * 1024;
+    public static final int DEFAULT_CHAT_CACHE = 4096;
+    public static final int DEFAULT_TLS_RELOAD_INTERVAL = 10000;
+    public static final int DEFAULT_JOIN_TOKEN_LIFETIME = 300;
     public int port = DEFAULT_PORT;
-    SSLServerSocketFactory sslsocketfactory;
-    DBUtils dbUtility;
+    ReloadingSslContext sslContext;
+    ChatStore chatStore;
+    String mode = MODE_THREADS;
+    int eventLoops;
+    int workers;
+    int backlog;
+    int handshakeTimeout;
+    Semaphore handshakePermits;
+    final HandshakeMetrics handshakeMetrics = new HandshakeMetrics();
+    int outboundCapacity;
+    SlowConsumerPolicy slowConsumerPolicy;
+    Durability durability;
+    int writeBatch;
+    int writeDelay;
+    int writeQueue;
+    int historyLines;
+    int historyBudget;
+    int chatCacheSize;
+    int joinTokenLifetime;
+    boolean metricsEnabled;
+    int metricsStatsInterval;
+    ExecutorService handlerExecutor;
 
     public static void main(String[] args) throws IOException {
         new SecureChatServer(args).start();
     }
 
     public SecureChatServer(String[] args) {
-        if (args.length > 5) {
-            String caCrtFile = args[0];
-            String crtFile = args[1];
-            String keyFile = args[2];
-            String dbURL = args[3];
-            String dbUser = args[4];
-            String dbPassword = args[5];
-            sslsocketfactory = SslUtil.getSSLServerSocketFactory(caCrtFile, crtFile, keyFile);
-            dbUtility = new DBUtils(dbURL, dbUser, dbPassword);
+        ServerConfig config = new ServerConfig(args);
+        Log.configure(config.getString("log-level", Log.DEFAULT_LEVELS),
+                config.getInt("log-queue", Log.DEFAULT_QUEUE_SIZE));
+        if (config.positionalCount() > 5) {
+            String caCrtFile = config.getPositional(0);
+            String crtFile = config.getPositional(1);
+            String keyFile = config.getPositional(2);
+            String dbURL = config.getPositional(3);
+            String dbUser = config.getPositional(4);
+            String dbPassword = config.getPositional(5);
+            SslUtil.configureSessionTickets(config.getBoolean("tls-tickets", true),
+                    config.getInt("tls-ticket-key-timeout", SslUtil.DEFAULT_TICKET_KEY_TIMEOUT));
+            try {
+                // Certificates can be replaced while the server runs. New handshakes pick them up.
+                sslContext = new ReloadingSslContext(caCrtFile, crtFile, keyFile, "");
+                sslContext.configureSessions(config.getInt("tls-session-cache", SslUtil.DEFAULT_SESSION_CACHE_SIZE),
+                        config.getInt("tls-session-timeout", SslUtil.DEFAULT_SESSION_TIMEOUT));
+                sslContext.watch(config.getInt("tls-reload-interval", DEFAULT_TLS_RELOAD_INTERVAL));
+            } catch (Exception e) {
+                LOG.error("Failed to load the TLS certificates.", e);
+            }
+            handshakeMetrics.logStatsEvery(config.getInt("tls-stats-interval", 0));
+            if (dbURL.startsWith(SegmentChatStore.URL_PREFIX)) {
+                // Chats are kept in local segment files instead of MariaDB. The user and password are not used.
+                String storeDirectory = dbURL.substring(SegmentChatStore.URL_PREFIX.length());
+                try {
+                    chatStore = new SegmentChatStore(Paths.get(storeDirectory),
+                            config.getInt("segment-size", SegmentChatStore.DEFAULT_SEGMENT_BYTES),
+                            config.getBoolean("segment-sync", true),
+                            config.getInt("segment-open-chats", SegmentChatStore.DEFAULT_OPEN_CHATS));
+                } catch (IOException e) {
+                    LOG.error("Failed to open the chat store in " + storeDirectory + ".", e);
+                }
+            } else {
+                ConnectionPool connectionPool = null;
+                if (config.getBoolean("db-pool", false)) {
+                    // Server-side prepares only pay off once statements are reused on long-lived connections.
+                    String poolURL = config.getBoolean("db-server-prepare", true)
+                            ? withURLOption(dbURL, "useServerPrepStmts", "true")
+                            : dbURL;
+                    connectionPool = new ConnectionPool(poolURL, dbUser, dbPassword,
+                            config.getInt("db-pool-min", DEFAULT_DB_POOL_MIN),
+                            config.getInt("db-pool-max", DEFAULT_DB_POOL_MAX),
+                            config.getInt("db-pool-timeout", DEFAULT_DB_POOL_TIMEOUT),
+                            config.getInt("db-pool-idle-timeout", DEFAULT_DB_POOL_IDLE_TIMEOUT),
+                            config.getInt("db-pool-leak-threshold", DEFAULT_DB_POOL_LEAK_THRESHOLD),
+                            config.getInt("db-pool-validation-interval", DEFAULT_DB_POOL_VALIDATION_INTERVAL));
+                    connectionPool.setStatementCacheSize(
+                            config.getInt("db-statement-cache", DEFAULT_DB_STATEMENT_CACHE));
+                    connectionPool.logStatsEvery(config.getInt("db-pool-stats-interval", 0));
+                    connectionPool.start();
+                }
+                chatStore = new DBUtils(dbURL, dbUser, dbPassword, connectionPool);
+            }
 
             try {
-                if (args.length > 6) {
-                    port = Integer.parseInt(args[0]);
+                if (config.positionalCount() > 6) {
+                    port = Integer.parseInt(config.getPositional(6));
                 }
             } catch (NumberFormatException e) {
                 System.err.println("Port must be a valid integer! Using default port instead!");
             }
+
+            mode = config.getString("mode", MODE_THREADS);
+            int processors = Runtime.getRuntime().availableProcessors();
+            eventLoops = config.getInt("event-loops", processors);
+            workers = config.getInt("workers", processors * 4);
+            backlog = config.getInt("backlog", DEFAULT_BACKLOG);
+            handshakePermits = new Semaphore(Math.max(1, config.getInt("max-handshakes", DEFAULT_MAX_HANDSHAKES)));
+            handshakeTimeout = config.getInt("handshake-timeout", DEFAULT_HANDSHAKE_TIMEOUT);
+            outboundCapacity = config.getInt("outbound-capacity", DEFAULT_OUTBOUND_CAPACITY);
+            String policy = config.getString("slow-consumer", SlowConsumerPolicy.DROP_OLDEST.toOption());
+            slowConsumerPolicy = SlowConsumerPolicy.fromOption(policy);
+            if (slowConsumerPolicy == null) {
+                System.err.println("Unknown slow consumer policy \"" + policy + "\"! Using "
+                        + SlowConsumerPolicy.DROP_OLDEST.toOption() + " instead!");
+                slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+            }
+            String durabilityOption = config.getString("durability", Durability.COMMIT.toOption());
+            durability = Durability.fromOption(durabilityOption);
+            if (durability == null) {
+                System.err.println("Unknown durability \"" + durabilityOption + "\"! Using "
+                        + Durability.COMMIT.toOption() + " instead!");
+                durability = Durability.COMMIT;
+            }
+            writeBatch = config.getInt("write-batch", DEFAULT_WRITE_BATCH);
+            writeDelay = config.getInt("write-delay", DEFAULT_WRITE_DELAY);
+            writeQueue = config.getInt("write-queue", DEFAULT_WRITE_QUEUE);
+            historyLines = config.getInt("history-lines", DEFAULT_HISTORY_LINES);
+            historyBudget = config.getInt("history-budget", DEFAULT_HISTORY_BUDGET);
+            chatCacheSize = config.getInt("chat-cache", DEFAULT_CHAT_CACHE);
+            joinTokenLifetime = config.getInt("join-token-lifetime", DEFAULT_JOIN_TOKEN_LIFETIME);
+            metricsEnabled = config.getBoolean("metrics", true);
+            metricsStatsInterval = config.getInt("metrics-stats-interval", 0);
             return;
         }
         throw new IllegalArgumentException(
-                "Usage: java SecureChatServer <caCrtFile> <crtFile> <keyFile> <dbURL> <dbUser> <dbPassword> <port number [optional]>");
+                "Usage: java SecureChatServer <caCrtFile> <crtFile> <keyFile> <dbURL|segments:<directory>> <dbUser>"
+                        + " <dbPassword> <port number [optional]>"
+                        + " [--mode=" + MODE_THREADS + "|" + MODE_VIRTUAL + "|" + MODE_NIO + "]"
+                        + " [--backlog=<count>] [--max-handshakes=<count>] [--handshake-timeout=<ms>]"
+                        + " [--event-loops=<count>] [--workers=<count>]"
+                        + " [--outbound-capacity=<lines>] [--slow-consumer=drop-oldest|disconnect|history-replay]"
+                        + " [--db-pool] [--db-pool-min=<count>] [--db-pool-max=<count>] [--db-pool-timeout=<ms>]"
+                        + " [--db-pool-idle-timeout=<ms>] [--db-pool-leak-threshold=<ms>]"
+                        + " [--db-pool-validation-interval=<ms>] [--db-statement-cache=<count>]"
+                        + " [--db-server-prepare=true|false] [--db-pool-stats-interval=<ms>]"
+                        + " [--durability=commit|immediate] [--write-batch=<lines>] [--write-delay=<ms>]"
+                        + " [--write-queue=<lines>] [--history-lines=<lines per chat>] [--history-budget=<bytes>]"
+                        + " [--chat-cache=<chats>] [--tls-session-cache=<sessions>] [--tls-session-timeout=<s>]"
+                        + " [--tls-tickets=true|false] [--tls-ticket-key-timeout=<s>] [--tls-stats-interval=<ms>]"
+                        + " [--tls-reload-interval=<ms>] [--join-token-lifetime=<s>]"
+                        + " [--metrics=true|false] [--metrics-stats-interval=<ms>]"
+                        + " [--segment-size=<bytes>] [--segment-sync=true|false]"
+                        + " [--segment-open-chats=<chats>]"
+                        + " [--log-level=<level>[,<class>=<level>...]] [--log-queue=<lines>]");
     }
 
     public void start() {
-        if (sslsocketfactory == null || dbUtility == null) {
-            System.err.println("Could not start server! SSLSocketFactory or DBUtils are null!");
+        if (sslContext == null || chatStore == null) {
+            LOG.error("Could not start server! SSLContext or ChatStore are null!");
             return;
         }
+        ClientHandler.activeClientHandlers = ConcurrentHashMap.newKeySet();
+        // Metrics are published over JMX. Turning them off also stops the recording.
+        ServerMetrics metrics = null;
+        if (metricsEnabled) {
+            metrics = new ServerMetrics(handshakeMetrics);
+            metrics.register();
+            metrics.logStatsEvery(metricsStatsInterval);
+        }
+        ClientHandler.metrics = metrics;
+        chatStore.setMetrics(metrics);
+        ClientHandler.chatRooms = new ChatRoomRegistry();
+        ClientHandler.chatMetadata = new ChatMetadataCache(chatStore, chatCacheSize);
+        // A lifetime of 0 turns rejoin tokens off.
+        ClientHandler.joinTokens = joinTokenLifetime > 0 ? new JoinTokens(joinTokenLifetime) : null;
+        // Keeping no lines turns the history cache off.
+        ClientHandler.recentHistory = historyLines > 0 ? new RecentHistoryCache(chatStore, historyLines, historyBudget)
+                : null;
+        ClientHandler.chatLineWriter = new ChatLineWriter(chatStore, ClientHandler.recentHistory, durability,
+                writeBatch, writeDelay, writeQueue);
+        ClientHandler.chatLineWriter.start();
+        // Write out any messages still in the journal when the server is stopped.
+        Runtime.getRuntime().addShutdownHook(new Thread(ClientHandler.chatLineWriter::close));
+        if (MODE_NIO.equalsIgnoreCase(mode)) {
+            try {
+                new NioChatServer(sslContext, chatStore, port, backlog, eventLoops, workers, outboundCapacity,
+                        slowConsumerPolicy, handshakeMetrics, handshakeTimeout).start();
+            } catch (IOException e) {
+                LOG.error("Could not start event loops. " + e.getMessage());
+            }
+            return;
+        }
+
+        handlerExecutor = newHandlerExecutor();
+
         // Try to start the server on the provided port.
-        try (SSLServerSocket serverSocket = (SSLServerSocket) sslsocketfactory.createServerSocket(port)) {
-            System.out.println("Echo Server is running on port " + port);
-            serverSocket.setNeedClientAuth(true);
-            ClientHandler.activeClientHandlers = new ArrayList<ClientHandler>();
+        // TLS is layered over each accepted socket, rather than bound to the listening socket, so that a reloaded
+        // context is used for new clients.
+        try (ServerSocket serverSocket = new ServerSocket(port, backlog)) {
+            LOG.info("Echo Server is running on port " + port);
 
             // Keep the server running indefinitely.
             while (!serverSocket.isClosed()) {
                 // Accept connections from clients attempting to connect.
-                SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
-                try {
-                    // Perform a handshake with the client.
-                    clientSocket.startHandshake();
-                    System.out.println("Client connected: " + clientSocket.getInetAddress());
-
-                    // Create a new thread to handle the client.
-                    new Thread(new ClientHandler(clientSocket, dbUtility)).start();
-                } catch (SSLHandshakeException e) {
-                    // Handshake failed. Log the error and close the connection.
-                    System.out.println("Handshake failed with client: " + clientSocket.getInetAddress());
-                    clientSocket.close();
-                } catch (SSLException e) {
-                    System.out.println(
-                            "Exception caught when trying to handle a client. This client may have been unauthorised.");
-                    System.out.println(e.getMessage());
-                    clientSocket.close();
-                }
+                Socket clientSocket = serverSocket.accept();
+
+                // Limit the handshakes in progress. Once the limit is hit, new clients wait in the backlog.
+                handshakePermits.acquireUninterruptibly();
+                handlerExecutor.execute(() -> handleClient(clientSocket));
             }
 
         } catch (IOException e) {
-            System.out.println("Exception caught when trying to listen on port "
-                    + port + " or listening for a connection.");
-            System.out.println(e.getMessage());
+            LOG.error("Exception caught when trying to listen on port " + port + " or listening for a connection. "
+                    + e.getMessage());
+        }
+        handlerExecutor.shutdown();
+    }
+
+    /**
+     * Performs the handshake with a client and then handles it on the current thread.
+     * @param socket The socket accepted from the client.
+     */
+    private void handleClient(Socket socket) {
+        SSLSocket clientSocket;
+        try {
+            clientSocket = (SSLSocket) sslContext.get().getSocketFactory().createSocket(socket, null,
+                    socket.getPort(), true);
+            clientSocket.setUseClientMode(false);
+            clientSocket.setNeedClientAuth(true);
+        } catch (IOException e) {
+            handshakePermits.release();
+            LOG.warn("Failed to start TLS with client: " + socket.getInetAddress());
+            try {
+                socket.close();
+            } catch (IOException closeFailure) {
+                LOG.warn("Error while closing client socket. " + closeFailure.getMessage());
+            }
+            return;
+        }
+        try {
+            try {
+                // Perform a handshake with the client. Slow clients are cut off so they cannot hold a permit.
+                clientSocket.setSoTimeout(handshakeTimeout);
+                long startMillis = System.currentTimeMillis();
+                long start = System.nanoTime();
+                clientSocket.startHandshake();
+                handshakeMetrics.record(clientSocket.getSession(), startMillis, System.nanoTime() - start);
+                clientSocket.setSoTimeout(0);
+                LOG.info("Client connected: " + clientSocket.getInetAddress());
+            } catch (IOException e) {
+                handshakeMetrics.recordFailure();
+                throw e;
+            } finally {
+                handshakePermits.release();
+            }
+        } catch (SSLHandshakeException e) {
+            // Handshake failed. Log the error and close the connection.
+            LOG.warn("Handshake failed with client: " + clientSocket.getInetAddress());
+            closeQuietly(clientSocket);
+            return;
+        } catch (IOException e) {
+            LOG.warn("Exception caught when trying to handle a client. This client may have been unauthorised. "
+                    + e.getMessage());
+            closeQuietly(clientSocket);
+            return;
+        }
+
+        new SocketClientConnection(clientSocket, chatStore, new OutboundQueue(outboundCapacity, slowConsumerPolicy),
+                handlerExecutor).run();
+    }
+
+    /**
+     * Adds a connection option to a JDBC URL unless the URL already sets it.
+     * @param url The JDBC URL.
+     * @param name The option name.
+     * @param value The option value.
+     * @return The URL with the option set.
+     */
+    private static String withURLOption(String url, String name, String value) {
+        if (url.contains(name + "=")) {
+            return url;
+        }
+        return url + (url.indexOf('?') < 0 ? '?' : '&') + name + "=" + value;
+    }
+
+    private static void closeQuietly(SSLSocket clientSocket) {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            LOG.warn("Error while closing client socket. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates the executor that runs blocking client handlers.
+     * Virtual threads need Java 21, so the factory is looked up at runtime and platform threads are used
+     * on older JVMs.
+     * @return An executor that starts a thread per task.
+     */
+    private ExecutorService newHandlerExecutor() {
+        if (MODE_VIRTUAL.equalsIgnoreCase(mode)) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOG.warn("Virtual threads are not available on this JVM! Using platform threads instead!");
+            }
         }
+        return Executors.newCachedThreadPool();
     }
 }
@@ -0,0 +1,526 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import Shared.KeyUtils;
+import Shared.Log;
+
+/**
+ * A ChatStore kept in local files, so that small servers can run without MariaDB.
+ * Each chat has a directory named after its ID, holding a "meta" file with its name and public key, and the
+ * segment files of its lines (see ChatSegments). Appends are sequential writes to the chat's newest segment.
+ * A chat is opened, and its newest segment checked, the first time it is used after start-up. Only the most
+ * recently used chats keep their files open; the rest are released and open again when next used.
+ * Only one process may use a directory at a time, which a lock file enforces. A batch of lines for several
+ * chats is all or nothing when a call fails: the lines already appended are removed before the failure is
+ * reported. It is not atomic across a crash, which may keep one chat's lines and lose another's.
+ * The server uses this store when its database URL is "segments:<directory>".
+ */
+public class SegmentChatStore implements ChatStore {
+    static final Log LOG = Log.get(SegmentChatStore.class);
+    public static final String URL_PREFIX = "segments:";
+    public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    // Well below the usual limit of 1024 file descriptors, which the server's sockets share.
+    public static final int DEFAULT_OPEN_CHATS = 256;
+    static final String META_FILE = "meta";
+    static final String LOCK_FILE = "lock";
+    static final int META_VERSION = 1;
+
+    final Path directory;
+    final long segmentBytes;
+    final boolean sync;
+    final int maxOpenChats;
+    final FileChannel lockChannel;
+    final FileLock lock;
+    final ConcurrentHashMap<Integer, ChatSegments> chats = new ConcurrentHashMap<Integer, ChatSegments>();
+    // Chats being opened, so that each is opened once without holding a lock over the file work.
+    final ConcurrentHashMap<Integer, CompletableFuture<ChatSegments>> opening = new ConcurrentHashMap<Integer, CompletableFuture<ChatSegments>>();
+    final AtomicInteger lastChatID = new AtomicInteger();
+    // Chats with open files, least recently used first.
+    final ReentrantLock openLock = new ReentrantLock();
+    final LinkedHashMap<Integer, ChatSegments> openChats = new LinkedHashMap<Integer, ChatSegments>(16, 0.75f, true);
+    // Times each call when set.
+    volatile ServerMetrics metrics;
+
+    /**
+     * Opens a store, creating its directory if needed.
+     * @param segmentBytes The size after which a chat starts a new segment.
+     * @param sync Whether each append is forced to disk before it returns.
+     */
+    public SegmentChatStore(Path directory, long segmentBytes, boolean sync) throws IOException {
+        this(directory, segmentBytes, sync, DEFAULT_OPEN_CHATS);
+    }
+
+    /**
+     * Opens a store, creating its directory if needed.
+     * @param segmentBytes The size after which a chat starts a new segment.
+     * @param sync Whether each append is forced to disk before it returns.
+     * @param maxOpenChats The most chats to keep files open for.
+     */
+    public SegmentChatStore(Path directory, long segmentBytes, boolean sync, int maxOpenChats) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.sync = sync;
+        this.maxOpenChats = Math.max(1, maxOpenChats);
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException(directory + " is in use by another chat store.");
+        }
+        lock = acquired;
+        // Chat directories are numbered. One left without a meta file by a crash still uses up its number.
+        int last = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                try {
+                    last = Math.max(last, Integer.parseInt(file.getFileName().toString()));
+                } catch (NumberFormatException e) {
+                    // Not a chat.
+                }
+            }
+        }
+        lastChatID.set(last);
+    }
+
+    /**
+     * Opens the store a database URL names: a SegmentChatStore for "segments:<directory>", otherwise DBUtils.
+     */
+    public static ChatStore open(String url, String user, String password) throws IOException {
+        if (url.startsWith(URL_PREFIX)) {
+            return new SegmentChatStore(Path.of(url.substring(URL_PREFIX.length())), DEFAULT_SEGMENT_BYTES, true);
+        }
+        return new DBUtils(url, user, password);
+    }
+
+    @Override
+    public void setMetrics(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private void recordCall(String method, long start) {
+        ServerMetrics recorder = metrics;
+        if (recorder != null) {
+            recorder.recordDBCall(method, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return The open chat, opening it if needed, or null if there is no such chat.
+     */
+    private ChatSegments chat(int id) throws IOException {
+        ChatSegments chat = chats.get(id);
+        if (chat != null) {
+            used(chat);
+            return chat;
+        }
+        if (id <= 0) {
+            return null;
+        }
+        CompletableFuture<ChatSegments> open = new CompletableFuture<ChatSegments>();
+        CompletableFuture<ChatSegments> existing = opening.putIfAbsent(id, open);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            // Another thread may have finished opening the chat since it was looked up.
+            chat = chats.get(id);
+            if (chat == null) {
+                chat = openChat(id);
+                if (chat != null) {
+                    chats.put(id, chat);
+                }
+            }
+            open.complete(chat);
+            if (chat != null) {
+                used(chat);
+            }
+            return chat;
+        } catch (IOException | RuntimeException e) {
+            open.completeExceptionally(e);
+            throw e;
+        } finally {
+            opening.remove(id, open);
+        }
+    }
+
+    /**
+     * Reads a chat's meta file and opens its segments.
+     * @return The chat, or null if there is no such chat.
+     */
+    private ChatSegments openChat(int id) throws IOException {
+        Path chatDirectory = directory.resolve(Integer.toString(id));
+        Path meta = chatDirectory.resolve(META_FILE);
+        if (!Files.exists(meta)) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(Files.newInputStream(meta))) {
+            if (input.readInt() != META_VERSION) {
+                throw new IOException("Chat " + id + " was saved in an unknown format.");
+            }
+            String chatName = input.readUTF();
+            byte[] publicKey = new byte[input.readInt()];
+            input.readFully(publicKey);
+            return ChatSegments.open(id, chatDirectory, chatName, publicKey, segmentBytes, sync, this::reopened);
+        }
+    }
+
+    /**
+     * Marks a chat as the most recently used, and releases the least recently used chats beyond the limit.
+     * Called without holding any chat's lock, since releasing a chat waits for its lock.
+     */
+    private void used(ChatSegments chat) {
+        List<ChatSegments> released = null;
+        openLock.lock();
+        try {
+            openChats.put(chat.chatID, chat);
+            Iterator<ChatSegments> eldest = openChats.values().iterator();
+            while (openChats.size() > maxOpenChats) {
+                if (released == null) {
+                    released = new ArrayList<ChatSegments>();
+                }
+                released.add(eldest.next());
+                eldest.remove();
+            }
+        } finally {
+            openLock.unlock();
+        }
+        if (released != null) {
+            for (ChatSegments idle : released) {
+                try {
+                    idle.release();
+                } catch (IOException e) {
+                    LOG.warn("Failed to close chat " + idle.chatID + ". " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Records a released chat that opened its files again. It may hold a chat's lock, so it releases nothing.
+     */
+    private void reopened(ChatSegments chat) {
+        openLock.lock();
+        try {
+            openChats.put(chat.chatID, chat);
+        } finally {
+            openLock.unlock();
+        }
+    }
+
+    private ChatSegments existingChat(int id) throws IOException, SQLException {
+        ChatSegments chat = chat(id);
+        if (chat == null) {
+            throw new SQLException("Chat " + id + " does not exist.");
+        }
+        return chat;
+    }
+
+    @Override
+    public int createChat(String chat_name, byte[] rsa_public_key) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream output = new DataOutputStream(bytes)) {
+                output.writeInt(META_VERSION);
+                output.writeUTF(chat_name);
+                output.writeInt(rsa_public_key.length);
+                output.write(rsa_public_key);
+            }
+            // Each caller takes its own number, so the file work below needs no shared lock.
+            int id = lastChatID.incrementAndGet();
+            Path chatDirectory = Files.createDirectory(directory.resolve(Integer.toString(id)));
+            // The chat exists once its meta file does, and that only appears whole.
+            Path temp = chatDirectory.resolve(META_FILE + ChatSegments.TEMP_SUFFIX);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, chatDirectory.resolve(META_FILE), StandardCopyOption.ATOMIC_MOVE);
+            ChatSegments.syncDirectory(chatDirectory);
+            ChatSegments.syncDirectory(directory);
+            // Opened like any other chat, since a reader may already be opening it.
+            chat(id);
+            return id;
+        } catch (IOException e) {
+            throw new SQLException("Failed to create a chat.", e);
+        } finally {
+            recordCall("createChat", start);
+        }
+    }
+
+    @Override
+    public ChatMetadata readChatMetadata(int id) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            ChatSegments chat = chat(id);
+            if (chat == null) {
+                return null;
+            }
+            return new ChatMetadata(id, chat.chatName, KeyUtils.readPublicKey(chat.publicKey));
+        } catch (GeneralSecurityException e) {
+            throw new SQLException("Chat " + id + " has an invalid public key.", e);
+        } catch (IOException e) {
+            throw new SQLException("Failed to open chat " + id + ".", e);
+        } finally {
+            recordCall("readChatMetadata", start);
+        }
+    }
+
+    @Override
+    public PublicKey readChatKey(int id)
+            throws SQLException, NoSuchAlgorithmException, InvalidKeySpecException, IOException {
+        long start = System.nanoTime();
+        try {
+            return KeyUtils.readPublicKey(existingChat(id).publicKey);
+        } finally {
+            recordCall("readChatKey", start);
+        }
+    }
+
+    @Override
+    public String getChatName(int id) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return existingChat(id).chatName;
+        } catch (IOException e) {
+            throw new SQLException("Failed to open chat " + id + ".", e);
+        } finally {
+            recordCall("getChatName", start);
+        }
+    }
+
+    @Override
+    public void sendToChat(int chat_id, String chat_line) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            checkLength(chat_line);
+            existingChat(chat_id).append(Collections.singletonList(chat_line));
+        } catch (IOException e) {
+            throw new SQLException("Failed to save a line to chat " + chat_id + ".", e);
+        } finally {
+            recordCall("sendToChat", start);
+        }
+    }
+
+    /**
+     * Saves several chat lines, appending each chat's lines to it in one write.
+     * The batch is saved whole or not at all: every line is checked before any is written, and if a chat's
+     * append fails, the lines already appended to the chats before it are removed again.
+     */
+    @Override
+    public List<ChatLine> sendToChat(List<ChatLine> lines) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            Map<ChatSegments, List<Integer>> byChat = new LinkedHashMap<ChatSegments, List<Integer>>();
+            for (int i = 0; i < lines.size(); i++) {
+                checkLength(lines.get(i).getText());
+                byChat.computeIfAbsent(existingChat(lines.get(i).getChatID()), chat -> new ArrayList<Integer>())
+                        .add(i);
+            }
+            ChatLine[] saved = new ChatLine[lines.size()];
+            Map<ChatSegments, Long> appended = new LinkedHashMap<ChatSegments, Long>();
+            for (Map.Entry<ChatSegments, List<Integer>> entry : byChat.entrySet()) {
+                List<String> texts = new ArrayList<String>(entry.getValue().size());
+                for (int i : entry.getValue()) {
+                    texts.add(lines.get(i).getText());
+                }
+                long id;
+                try {
+                    id = entry.getKey().append(texts);
+                } catch (IOException e) {
+                    undo(appended, e);
+                    throw e;
+                }
+                appended.put(entry.getKey(), id);
+                for (int i : entry.getValue()) {
+                    saved[i] = new ChatLine(id++, lines.get(i).getChatID(), lines.get(i).getText());
+                }
+            }
+            List<ChatLine> result = new ArrayList<ChatLine>(saved.length);
+            Collections.addAll(result, saved);
+            return result;
+        } catch (IOException e) {
+            throw new SQLException("Failed to save " + lines.size() + " chat lines.", e);
+        } finally {
+            recordCall("sendToChatBatch", start);
+        }
+    }
+
+    /**
+     * Removes the lines a failed batch had already appended, so that saving them again does not repeat them.
+     * @param appended The chats appended to, with the first ID each was given.
+     * @param failure The failure of the batch, which is given any failure to undo.
+     */
+    private static void undo(Map<ChatSegments, Long> appended, IOException failure) {
+        for (Map.Entry<ChatSegments, Long> entry : appended.entrySet()) {
+            try {
+                entry.getKey().removeFrom(entry.getValue());
+            } catch (IOException e) {
+                LOG.error("Failed to remove the lines of a failed batch from chat " + entry.getKey().chatID + ". "
+                        + e.getMessage());
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    private static void checkLength(String text) throws SQLException {
+        if (text.length() > LINE_TEXT_LENGTH) {
+            throw new SQLException("Chat lines may be at most " + LINE_TEXT_LENGTH + " characters long.");
+        }
+    }
+
+    @Override
+    public Stack<String> readChat(int id, int offset_val) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            Stack<String> messagesStack = new Stack<String>();
+            ChatSegments chat = chat(id);
+            if (chat != null) {
+                long last = chat.getLastID() - Math.max(0, offset_val);
+                List<ChatLine> page = chat.read(last - HISTORY_PAGE_SIZE + 1, last);
+                for (int i = page.size() - 1; i >= 0; i--) {
+                    messagesStack.add(page.get(i).getText());
+                }
+            }
+            return messagesStack;
+        } catch (IOException e) {
+            throw new SQLException("Failed to read chat " + id + ".", e);
+        } finally {
+            recordCall("readChat", start);
+        }
+    }
+
+    @Override
+    public List<ChatLine> readChatBefore(int id, long before_id) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            ChatSegments chat = chat(id);
+            if (chat == null) {
+                return new ArrayList<ChatLine>();
+            }
+            long last = Math.min(before_id - 1, chat.getLastID());
+            List<ChatLine> page = chat.read(last - HISTORY_PAGE_SIZE + 1, last);
+            Collections.reverse(page);
+            return page;
+        } catch (IOException e) {
+            throw new SQLException("Failed to read chat " + id + ".", e);
+        } finally {
+            recordCall("readChatBefore", start);
+        }
+    }
+
+    @Override
+    public List<ChatLine> readChatAfter(int id, long after_id, int limit) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            ChatSegments chat = chat(id);
+            if (chat == null || limit <= 0) {
+                return new ArrayList<ChatLine>();
+            }
+            return chat.read(after_id + 1, after_id + limit);
+        } catch (IOException e) {
+            throw new SQLException("Failed to read chat " + id + ".", e);
+        } finally {
+            recordCall("readChatAfter", start);
+        }
+    }
+
+    /**
+     * Replaces the text of saved lines. Each segment holding one of them is written again and then swapped in,
+     * so this suits occasional rewrites such as ChatLineMigration rather than the message path.
+     */
+    @Override
+    public int updateChatLines(List<ChatLine> originals, List<ChatLine> replacements) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            Map<Integer, List<Integer>> byChat = new LinkedHashMap<Integer, List<Integer>>();
+            for (int i = 0; i < replacements.size(); i++) {
+                checkLength(replacements.get(i).getText());
+                byChat.computeIfAbsent(replacements.get(i).getChatID(), chatID -> new ArrayList<Integer>()).add(i);
+            }
+            int updated = 0;
+            for (Map.Entry<Integer, List<Integer>> entry : byChat.entrySet()) {
+                ChatSegments chat = chat(entry.getKey());
+                if (chat == null) {
+                    continue;
+                }
+                List<ChatLine> chatOriginals = new ArrayList<ChatLine>();
+                List<ChatLine> chatReplacements = new ArrayList<ChatLine>();
+                for (int i : entry.getValue()) {
+                    chatOriginals.add(originals.get(i));
+                    chatReplacements.add(replacements.get(i));
+                }
+                updated += chat.rewrite(chatOriginals, chatReplacements);
+            }
+            return updated;
+        } catch (IOException e) {
+            throw new SQLException("Failed to rewrite chat lines.", e);
+        } finally {
+            recordCall("updateChatLines", start);
+        }
+    }
+
+    /**
+     * Closes every open chat and releases the directory.
+     */
+    public void close() throws IOException {
+        for (ChatSegments chat : chats.values()) {
+            chat.close();
+        }
+        chats.clear();
+        openLock.lock();
+        try {
+            openChats.clear();
+        } finally {
+            openLock.unlock();
+        }
+        lock.release();
+        lockChannel.close();
+    }
+}
@@ -0,0 +1,51 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import Shared.Log;
+
+/**
+ * Runs tasks one at a time and in submission order on top of a shared executor.
+ * Used to keep each client's work ordered without dedicating a thread to it.
+ * Executor interface - Oracle - https://docs.oracle.com/en/java/javase/17/docs/api/java.base/java/util/concurrent/Executor.html - Accessed 18.10.2026
+ */
+public class SerialExecutor implements Executor {
+    static final Log LOG = Log.get(SerialExecutor.class);
+    final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    final AtomicBoolean scheduled = new AtomicBoolean();
+    final Executor executor;
+
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOG.error("Task failed.", e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+        }
+        // A task may have been added after the queue was seen as empty.
+        schedule();
+    }
+}
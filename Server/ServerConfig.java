@@ -0,0 +1,58 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line arguments for the server.
+ * Positional arguments are kept in order and optional settings are given as --name=value.
+ */
+public class ServerConfig {
+    final List<String> positional = new ArrayList<String>();
+    final Map<String, String> options = new HashMap<String, String>();
+
+    public ServerConfig(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int equals = arg.indexOf('=');
+                if (equals < 0) {
+                    options.put(arg.substring(2), "true");
+                } else {
+                    options.put(arg.substring(2, equals), arg.substring(equals + 1));
+                }
+            } else {
+                positional.add(arg);
+            }
+        }
+    }
+
+    public int positionalCount() {
+        return positional.size();
+    }
+
+    public String getPositional(int index) {
+        return positional.get(index);
+    }
+
+    public String getString(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("--" + name + " must be a valid integer! Using " + defaultValue + " instead!");
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,257 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import Shared.HandleMode;
+import Shared.HandshakeMetrics;
+import Shared.LatencyHistogram;
+import Shared.Log;
+
+/**
+ * Counts what the server does and publishes it over JMX under the "SecureChat" domain:
+ * SecureChat:type=Server for the counters, and SecureChat:type=Histogram,name=... for challenge verification
+ * time, broadcast fan-out and the time taken by each ChatStore method.
+ * Recording only adds to striped counters, so the message path does not contend on them. Connections per
+ * handle mode are counted when read, by going over the active handlers, so switching modes costs nothing.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    static final Log LOG = Log.get(ServerMetrics.class);
+    public static final String DOMAIN = "SecureChat";
+    static final long RATE_INTERVAL_MILLIS = 1000;
+
+    final HandshakeMetrics handshakeMetrics;
+    final LongAdder challengesPassed = new LongAdder();
+    final LongAdder challengesFailed = new LongAdder();
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LatencyHistogram challengeVerifyTime = new LatencyHistogram();
+    final LatencyHistogram broadcastFanOut = new LatencyHistogram();
+    final ConcurrentHashMap<String, LatencyHistogram> dbCallTimes = new ConcurrentHashMap<String, LatencyHistogram>();
+    final ScheduledExecutorService sampler;
+    // Null until registered.
+    volatile MBeanServer mBeanServer;
+    // Message rates over the last interval. The previous totals are only used by the sampler.
+    volatile double messagesInPerSecond;
+    volatile double messagesOutPerSecond;
+    long previousMessagesIn;
+    long previousMessagesOut;
+
+    public ServerMetrics(HandshakeMetrics handshakeMetrics) {
+        this.handshakeMetrics = handshakeMetrics;
+        sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "server-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sampleRates, RATE_INTERVAL_MILLIS, RATE_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server. Failure is logged and recording carries on.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(DOMAIN + ":type=Server"));
+            server.registerMBean(HistogramMetric.millis(challengeVerifyTime),
+                    new ObjectName(DOMAIN + ":type=Histogram,name=challengeVerifyTime"));
+            server.registerMBean(new HistogramMetric(broadcastFanOut, 1, "members"),
+                    new ObjectName(DOMAIN + ":type=Histogram,name=broadcastFanOut"));
+            mBeanServer = server;
+            for (String method : dbCallTimes.keySet()) {
+                registerDBCall(method, dbCallTimes.get(method));
+            }
+            LOG.info("Published server metrics over JMX under " + DOMAIN + ".");
+        } catch (JMException e) {
+            LOG.warn("Failed to publish server metrics over JMX. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records a checked challenge response.
+     * @param verifyNanos How long checking the response against the chat's key took.
+     */
+    public void recordChallenge(boolean passed, long verifyNanos) {
+        (passed ? challengesPassed : challengesFailed).increment();
+        challengeVerifyTime.record(verifyNanos);
+    }
+
+    /**
+     * Records a challenge that failed without a response being checked, such as one for a missing chat.
+     */
+    public void recordChallengeFailure() {
+        challengesFailed.increment();
+    }
+
+    public void recordMessageIn() {
+        messagesIn.increment();
+    }
+
+    /**
+     * Records a message relayed to the other members of its chat.
+     * @param fanOut The number of members it was handed to.
+     */
+    public void recordBroadcast(int fanOut) {
+        messagesOut.add(fanOut);
+        broadcastFanOut.record(fanOut);
+    }
+
+    /**
+     * Records a call to a ChatStore method. Each method's histogram is published the first time it is called.
+     */
+    public void recordDBCall(String method, long nanos) {
+        LatencyHistogram histogram = dbCallTimes.get(method);
+        if (histogram == null) {
+            histogram = dbCallTimes.computeIfAbsent(method, name -> {
+                LatencyHistogram created = new LatencyHistogram();
+                registerDBCall(name, created);
+                return created;
+            });
+        }
+        histogram.record(nanos);
+    }
+
+    private void registerDBCall(String method, LatencyHistogram histogram) {
+        MBeanServer server = mBeanServer;
+        if (server == null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=Histogram,name=db." + method);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(HistogramMetric.millis(histogram), name);
+            }
+        } catch (JMException e) {
+            LOG.warn("Failed to publish metrics for " + method + ". " + e.getMessage());
+        }
+    }
+
+    private void sampleRates() {
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        double seconds = RATE_INTERVAL_MILLIS / 1000.0;
+        messagesInPerSecond = (in - previousMessagesIn) / seconds;
+        messagesOutPerSecond = (out - previousMessagesOut) / seconds;
+        previousMessagesIn = in;
+        previousMessagesOut = out;
+    }
+
+    /**
+     * Periodically prints the metrics.
+     * @param intervalMillis How often to print them.
+     */
+    public void logStatsEvery(long intervalMillis) {
+        if (intervalMillis > 0) {
+            sampler.scheduleAtFixedRate(() -> LOG.info(getStats()), intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return The number of connected clients in a handle mode.
+     */
+    private static int clientsIn(HandleMode handleMode) {
+        int clients = 0;
+        if (ClientHandler.activeClientHandlers != null) {
+            for (ClientHandler handler : ClientHandler.activeClientHandlers) {
+                if (handler.handleMode == handleMode) {
+                    clients++;
+                }
+            }
+        }
+        return clients;
+    }
+
+    @Override
+    public long getAcceptedHandshakes() {
+        return handshakeMetrics.getFullHandshakes() + handshakeMetrics.getResumedHandshakes();
+    }
+
+    @Override
+    public long getResumedHandshakes() {
+        return handshakeMetrics.getResumedHandshakes();
+    }
+
+    @Override
+    public long getFailedHandshakes() {
+        return handshakeMetrics.getFailedHandshakes();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return ClientHandler.activeClientHandlers == null ? 0 : ClientHandler.activeClientHandlers.size();
+    }
+
+    @Override
+    public int getClientsInChatSelect() {
+        return clientsIn(HandleMode.CHAT_SELECT);
+    }
+
+    @Override
+    public int getClientsInChallengeResponse() {
+        return clientsIn(HandleMode.CHALLENGE_RESPONSE);
+    }
+
+    @Override
+    public int getClientsInChat() {
+        return clientsIn(HandleMode.CHAT);
+    }
+
+    @Override
+    public int getClientsInChatCreation() {
+        return clientsIn(HandleMode.CHAT_CREATION);
+    }
+
+    @Override
+    public int getClientsInSession() {
+        return clientsIn(HandleMode.SESSION);
+    }
+
+    @Override
+    public long getChallengesPassed() {
+        return challengesPassed.sum();
+    }
+
+    @Override
+    public long getChallengesFailed() {
+        return challengesFailed.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesInPerSecond;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOutPerSecond;
+    }
+
+    @Override
+    public String getStats() {
+        return String.format(
+                "Server metrics: %d connections, %d handshakes (%d failed), %d challenges passed (%d failed, verify p99 %.2fms),"
+                        + " %.1f messages in/s, %.1f out/s, fan-out p99 %d",
+                getActiveConnections(), getAcceptedHandshakes(), getFailedHandshakes(), getChallengesPassed(),
+                getChallengesFailed(), challengeVerifyTime.getPercentileMillis(99), getMessagesInPerSecond(),
+                getMessagesOutPerSecond(), broadcastFanOut.getPercentile(99));
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Management interface of ServerMetrics. Counts are totals since the server started.
+ */
+public interface ServerMetricsMBean {
+    long getAcceptedHandshakes();
+
+    long getResumedHandshakes();
+
+    long getFailedHandshakes();
+
+    int getActiveConnections();
+
+    int getClientsInChatSelect();
+
+    int getClientsInChallengeResponse();
+
+    int getClientsInChat();
+
+    int getClientsInChatCreation();
+
+    int getClientsInSession();
+
+    long getChallengesPassed();
+
+    long getChallengesFailed();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    String getStats();
+}
@@ -0,0 +1,29 @@
+/**
+ * What to do when a client reads chat messages more slowly than they are sent and its outbound queue fills up.
+ */
+public enum SlowConsumerPolicy {
+    /** Drop the oldest queued chat message to make room for the new one. */
+    DROP_OLDEST,
+    /** Disconnect the client. */
+    DISCONNECT,
+    /** Drop the queued chat messages and resend the latest page of history once the client catches up. */
+    HISTORY_REPLAY;
+
+    /**
+     * Reads a policy from a command line value such as "drop-oldest".
+     * @param option The value to read.
+     * @return The matching policy, or null if there is none.
+     */
+    public static SlowConsumerPolicy fromOption(String option) {
+        for (SlowConsumerPolicy policy : values()) {
+            if (policy.toOption().equalsIgnoreCase(option)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+
+    public String toOption() {
+        return name().toLowerCase().replace('_', '-');
+    }
+}
@@ -0,0 +1,252 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLSocket;
+
+import Shared.Frame;
+import Shared.Log;
+
+/**
+ * Blocking transport that reads lines, or frames once binary framing is negotiated, from an SSLSocket on its
+ * own thread and feeds them to a ClientHandler. The streams are read and written as bytes so that they can
+ * switch from lines to frames part way through.
+ * Outgoing frames go through an OutboundQueue that is drained by a single writer task at a time, so senders
+ * never block on this client's socket. The write path holds no monitors, so a virtual thread blocked on a
+ * slow socket does not pin its carrier thread.
+ * The handler is called by one thread at a time: a replay asked for by the writer runs on whichever thread
+ * finds the handler free, so it never overlaps a line or frame being handled by the reading thread.
+ */
+public final class SocketClientConnection implements ClientConnection, Runnable {
+    static final Log LOG = Log.get(SocketClientConnection.class);
+    // Maximum number of frames written before each flush.
+    static final int WRITE_BATCH = 256;
+    static final Charset CHARSET = Charset.defaultCharset();
+
+    SSLSocket clientSocket;
+    DataInputStream clientInput;
+    DataOutputStream clientOutput;
+    ClientHandler handler;
+    final OutboundQueue outbound;
+    final Executor writerExecutor;
+    final AtomicBoolean writeScheduled = new AtomicBoolean();
+    // Held while the handler is called. Never waited on by the writer.
+    final ReentrantLock handlerLock = new ReentrantLock();
+    final AtomicBoolean replayRequested = new AtomicBoolean();
+    // Input switches when the handler accepts binary framing, output once BINARY_ACK has been written.
+    volatile boolean binaryInput;
+    volatile boolean binaryOutput;
+
+    public SocketClientConnection(SSLSocket clientSocket, ChatStore chatStore, OutboundQueue outbound,
+            Executor writerExecutor) {
+        this.clientSocket = clientSocket;
+        this.outbound = outbound;
+        this.writerExecutor = writerExecutor;
+        this.handler = new ClientHandler(this, chatStore);
+        try {
+            // Set up a reader and writer to transfer data between the client and server.
+            clientInput = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            clientOutput = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    @Override
+    public void run() {
+        if (clientInput == null) {
+            return;
+        }
+        handlerLock.lock();
+        try {
+            handler.start();
+        } finally {
+            handlerLock.unlock();
+        }
+        try {
+            while (!clientSocket.isClosed()) {
+                // Stop reading requests while the client is not reading the replies, as a blocking write would.
+                outbound.awaitReplyRoom();
+                if (binaryInput) {
+                    Frame frame = Frame.read(clientInput);
+                    if (frame == null) {
+                        break;
+                    }
+                    handlerLock.lock();
+                    try {
+                        handler.handleFrame(frame);
+                    } finally {
+                        handlerLock.unlock();
+                    }
+                } else {
+                    String inputLine = Frame.readLine(clientInput, CHARSET);
+                    if (inputLine == null) {
+                        break;
+                    }
+                    handlerLock.lock();
+                    try {
+                        handler.handleLine(inputLine);
+                    } finally {
+                        handlerLock.unlock();
+                    }
+                }
+                runRequestedReplay();
+            }
+
+            // Close the client socket when done.
+            LOG.debug("Closing socket to client.");
+            clientSocket.close();
+        } catch (IOException e) {
+            LOG.warn("Exception caught when trying to handle a client. " + e.getMessage());
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+        }
+        outbound.clear();
+        handlerLock.lock();
+        try {
+            handler.stop();
+        } finally {
+            handlerLock.unlock();
+        }
+    }
+
+    @Override
+    public void send(Frame frame) {
+        outbound.add(frame);
+        scheduleWrite();
+    }
+
+    @Override
+    public void deliver(Frame message) {
+        if (!outbound.deliver(message)) {
+            disconnect();
+            return;
+        }
+        scheduleWrite();
+    }
+
+    @Override
+    public void startBinaryFraming() {
+        // Called from the reading thread, so the next read already expects a frame.
+        binaryInput = true;
+        send(BINARY_ACK);
+    }
+
+    /**
+     * Disconnects a client that has fallen too far behind. The socket is closed off the sender's thread since
+     * the close may block on the client's full TCP window. The reading thread then cleans up.
+     */
+    private void disconnect() {
+        outbound.clear();
+        writerExecutor.execute(() -> {
+            LOG.warn("Disconnecting slow client: " + getRemoteAddress());
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                LOG.warn("Error while trying to close ClientHandler.");
+            }
+        });
+    }
+
+    private void scheduleWrite() {
+        if (!clientSocket.isClosed() && writeScheduled.compareAndSet(false, true)) {
+            writerExecutor.execute(this::writeQueued);
+        }
+    }
+
+    /**
+     * Writes everything queued so far, flushing once per batch so that a burst of frames shares TLS records.
+     */
+    private void writeQueued() {
+        try {
+            List<Frame> frames = new ArrayList<Frame>();
+            while (outbound.drainTo(frames, WRITE_BATCH) > 0) {
+                for (Frame frame : frames) {
+                    write(frame);
+                }
+                clientOutput.flush();
+                frames.clear();
+            }
+        } catch (IOException e) {
+            // The reading thread notices the broken socket and cleans up.
+            outbound.clear();
+        } finally {
+            writeScheduled.set(false);
+        }
+
+        if (outbound.takeReplayRequest()) {
+            replayRequested.set(true);
+            runRequestedReplay();
+        }
+        // Lines may have been queued after the last drain.
+        if (!outbound.isEmpty()) {
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * Replays the latest messages if the writer asked for it and the handler is free. Both the reading thread
+     * and the writer call this after they are done with the handler, so the replay is never left behind.
+     */
+    private void runRequestedReplay() {
+        while (replayRequested.get() && handlerLock.tryLock()) {
+            try {
+                if (replayRequested.compareAndSet(true, false)) {
+                    handler.replayLatestMessages();
+                }
+            } finally {
+                handlerLock.unlock();
+            }
+        }
+    }
+
+    private void write(Frame frame) throws IOException {
+        if (!binaryOutput) {
+            clientOutput.write(frame.getText().getBytes(CHARSET));
+            clientOutput.write('\n');
+            if (frame == BINARY_ACK) {
+                binaryOutput = true;
+            }
+            return;
+        }
+        try {
+            frame.write(clientOutput);
+        } catch (IllegalArgumentException e) {
+            // A message from a line protocol client that was not Base64. Nothing has been written yet.
+            LOG.warn("Dropping a message that could not be framed. " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return clientSocket.getInetAddress().toString();
+    }
+
+    @Override
+    public void close() {
+        LOG.debug("Closing ClientHandler.");
+        try {
+            if (clientInput != null) {
+                clientInput.close();
+            }
+            if (clientOutput != null) {
+                clientOutput.close();
+            }
+            if (clientSocket != null) {
+                clientSocket.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Error while trying to close ClientHandler.");
+        }
+    }
+}
@@ -21,6 +21,8 @@ CREATE TABLE chat_line (
     chat_id INT,
     line_text VARCHAR(2048),
     PRIMARY KEY (id),
+    -- Lets history pages seek straight to a chat's lines before a given ID.
+    INDEX idx_chat_line_chat_id_id (chat_id, id),
     FOREIGN KEY (chat_id) REFERENCES chat (id) ON DELETE CASCADE ON UPDATE CASCADE
 );
 /*------------------------------------------------------------------------------------------------*/
@@ -38,6 +40,18 @@ ORDER BY chat_line.id DESC
 LIMIT 25 OFFSET offset_val;
 END;
 /*----------------------------------------------*/
+-- Read the page of messages before a given line ID, newest first.
+-- Seeking on (chat_id, id) keeps each page as cheap as the first, however far back it is.
+CREATE OR REPLACE PROCEDURE proc_read_chat_before(IN chat_id INT, IN before_id BIGINT) BEGIN
+SELECT chat_line.id,
+    line_text
+FROM chat_line
+WHERE chat_line.chat_id = chat_id
+    AND chat_line.id < before_id
+ORDER BY chat_line.id DESC
+LIMIT 25;
+END;
+/*----------------------------------------------*/
 -- Procedure to create a new chat, returning the ID.
 CREATE OR REPLACE PROCEDURE proc_create_chat(
         IN chat_name VARCHAR(256),
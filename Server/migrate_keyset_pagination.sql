@@ -0,0 +1,17 @@
+/*------------------------------------------------------------------------------------------------*/
+-- Upgrade an existing database for keyset pagination of chat history.
+-- Safe to run more than once.
+/*----------------------------------------------*/
+CREATE INDEX IF NOT EXISTS idx_chat_line_chat_id_id ON chat_line (chat_id, id);
+/*----------------------------------------------*/
+-- Read the page of messages before a given line ID, newest first.
+-- Seeking on (chat_id, id) keeps each page as cheap as the first, however far back it is.
+CREATE OR REPLACE PROCEDURE proc_read_chat_before(IN chat_id INT, IN before_id BIGINT) BEGIN
+SELECT chat_line.id,
+    line_text
+FROM chat_line
+WHERE chat_line.chat_id = chat_id
+    AND chat_line.id < before_id
+ORDER BY chat_line.id DESC
+LIMIT 25;
+END;
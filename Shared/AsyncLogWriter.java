@@ -0,0 +1,190 @@
+package Shared;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Prints log lines on its own thread so that the threads logging them never wait on the console.
+ * Lines wait in a fixed-size ring that any number of threads can add to without locks. When the ring is full
+ * the line is dropped and counted, and the count is printed once the writer catches up.
+ * The ring is a bounded queue after Dmitry Vyukov's, in which each slot's sequence number tells producers
+ * whether it is free and the consumer whether it is filled.
+ * Lines go to whatever System.out and System.err are when they are printed, WARN and ERROR to System.err.
+ * Once the writer is closed, lines offered to it are printed on the calling thread instead.
+ */
+class AsyncLogWriter {
+    static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+    // How long the writer sleeps when it finds nothing to print, unless woken by a new line.
+    static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * A line as it was logged. Formatted only when printed.
+     */
+    static class Line {
+        final long timeMillis;
+        final Log.Level level;
+        final String logName;
+        final String threadName;
+        final String message;
+        final Throwable error;
+
+        Line(long timeMillis, Log.Level level, String logName, String threadName, String message, Throwable error) {
+            this.timeMillis = timeMillis;
+            this.level = level;
+            this.logName = logName;
+            this.threadName = threadName;
+            this.message = message;
+            this.error = error;
+        }
+
+        void print() {
+            PrintStream output = level.compareTo(Log.Level.WARN) >= 0 ? System.err : System.out;
+            output.println(TIME_FORMAT.format(Instant.ofEpochMilli(timeMillis)) + " " + level + " [" + threadName
+                    + "] " + logName + ": " + message);
+            if (error != null) {
+                error.printStackTrace(output);
+            }
+        }
+    }
+
+    final int mask;
+    final AtomicReferenceArray<Line> slots;
+    final AtomicLongArray sequences;
+    final AtomicLong tail = new AtomicLong();
+    // Only used by the writer thread.
+    long head;
+    final LongAdder dropped = new LongAdder();
+    final Thread thread;
+    volatile boolean sleeping;
+    volatile boolean closing;
+    // Held while a thread other than the writer prints lines left in the ring after it stopped.
+    final AtomicBoolean drainingLeftovers = new AtomicBoolean();
+
+    /**
+     * @param capacity The most lines to hold, rounded up to a power of two.
+     */
+    AsyncLogWriter(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        slots = new AtomicReferenceArray<Line>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        thread = new Thread(this::run, "log-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a line for the writer, or drops it if the ring is full.
+     */
+    void offer(Line line) {
+        if (closing) {
+            line.print();
+            return;
+        }
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, line);
+                    sequences.set(index, position + 1);
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        if (closing) {
+            // The writer may have stopped before it could see this line.
+            printLeftovers();
+        } else if (sleeping) {
+            sleeping = false;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Prints lines still in the ring once the writer thread has stopped.
+     */
+    private void printLeftovers() {
+        if (!thread.isAlive() && drainingLeftovers.compareAndSet(false, true)) {
+            try {
+                Line line;
+                while ((line = poll()) != null) {
+                    line.print();
+                }
+            } finally {
+                drainingLeftovers.set(false);
+            }
+        }
+    }
+
+    private Line poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Line line = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, head + mask + 1);
+        head++;
+        return line;
+    }
+
+    private void run() {
+        while (true) {
+            Line line;
+            while ((line = poll()) != null) {
+                line.print();
+            }
+            long droppedLines = dropped.sumThenReset();
+            if (droppedLines > 0) {
+                System.err.println(TIME_FORMAT.format(Instant.now()) + " WARN [log-writer] Log: Dropped "
+                        + droppedLines + " log lines because the writer fell behind.");
+            }
+            if (closing) {
+                return;
+            }
+            sleeping = true;
+            // A line may have arrived before the writer said it was sleeping.
+            if (sequences.get((int) head & mask) == head + 1) {
+                sleeping = false;
+                continue;
+            }
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            sleeping = false;
+        }
+    }
+
+    /**
+     * Prints the lines already queued and stops the writer thread.
+     */
+    void close() {
+        closing = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        printLeftovers();
+    }
+}
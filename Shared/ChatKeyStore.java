@@ -0,0 +1,199 @@
+package Shared;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A single file holding the keys of every chat, in place of three key files per chat in the key folder.
+ * The file is a header followed by one record per saved chat. Records are only ever appended, and a later
+ * record for a chat replaces an earlier one, as when a chat ID is reused after the server's database is reset.
+ * Opening the file reads it through once to index where each chat's newest record starts, after which a
+ * lookup is a single positional read. A record cut short by a crash while appending is dropped on open.
+ * Record layout: chat ID, length of the rest of the record, then the encoded public, private and AES keys,
+ * each preceded by its length. All numbers are 4-byte big-endian integers.
+ */
+public class ChatKeyStore implements AutoCloseable {
+    public static final String DEFAULT_FILE_NAME = "chat-keys.store";
+    static final int MAGIC = 0x53434b53; // "SCKS"
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 8;
+    static final int RECORD_HEADER_LENGTH = 8;
+    // Encoded chat keys are a few hundred bytes to a couple of kilobytes. Longer records mean the file is damaged.
+    static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    final Path path;
+    final FileChannel channel;
+    final ConcurrentHashMap<Integer, Long> index = new ConcurrentHashMap<Integer, Long>();
+    // Guarded by this.
+    long end;
+
+    /**
+     * The encoded keys of one chat.
+     */
+    public static final class Record {
+        final byte[] publicKey;
+        final byte[] privateKey;
+        final byte[] aesKey;
+
+        public Record(byte[] publicKey, byte[] privateKey, byte[] aesKey) {
+            this.publicKey = publicKey;
+            this.privateKey = privateKey;
+            this.aesKey = aesKey;
+        }
+
+        public byte[] getPublicKey() {
+            return publicKey;
+        }
+
+        public byte[] getPrivateKey() {
+            return privateKey;
+        }
+
+        public byte[] getAESKey() {
+            return aesKey;
+        }
+    }
+
+    /**
+     * Opens a key store, creating it if it does not exist, and indexes its records.
+     * @param path The key store file.
+     * @throws IOException If the file cannot be opened or is not a key store.
+     */
+    public ChatKeyStore(Path path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                channel.write(header, 0);
+                channel.force(true);
+                end = HEADER_LENGTH;
+            } else {
+                end = readIndex();
+                if (end < channel.size()) {
+                    System.out.println("Dropping an incomplete record at the end of " + path + ".");
+                    channel.truncate(end);
+                }
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the file through once, noting where the newest record for each chat starts.
+     * @return The offset just past the last complete record.
+     */
+    private long readIndex() throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException(path + " is not a chat key store.");
+            }
+            long offset = HEADER_LENGTH;
+            long size = channel.size();
+            while (offset + RECORD_HEADER_LENGTH <= size) {
+                int chatID = input.readInt();
+                int length = input.readInt();
+                if (length < 0 || length > MAX_RECORD_LENGTH || offset + RECORD_HEADER_LENGTH + length > size) {
+                    break;
+                }
+                input.readFully(new byte[length]);
+                index.put(chatID, offset);
+                offset += RECORD_HEADER_LENGTH + length;
+            }
+            return offset;
+        } catch (EOFException e) {
+            throw new IOException(path + " is not a chat key store.", e);
+        }
+    }
+
+    /**
+     * @return The chats with keys in the store.
+     */
+    public Set<Integer> chatIDs() {
+        return index.keySet();
+    }
+
+    public boolean contains(int chatID) {
+        return index.containsKey(chatID);
+    }
+
+    /**
+     * @param chatID The chat to read the keys of.
+     * @return The chat's newest keys, or null if the store has none for it.
+     * @throws IOException If the record cannot be read.
+     */
+    public Record read(int chatID) throws IOException {
+        Long offset = index.get(chatID);
+        if (offset == null) {
+            return null;
+        }
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        readFully(recordHeader, offset);
+        recordHeader.flip();
+        recordHeader.getInt();
+        ByteBuffer body = ByteBuffer.allocate(recordHeader.getInt());
+        readFully(body, offset + RECORD_HEADER_LENGTH);
+        body.flip();
+        try {
+            return new Record(readBlock(body), readBlock(body), readBlock(body));
+        } catch (RuntimeException e) {
+            throw new IOException("Damaged keys for chat " + chatID + " in " + path + ".", e);
+        }
+    }
+
+    /**
+     * Appends a chat's keys, replacing any it had before.
+     * @param chatID The chat the keys are for.
+     * @param record The encoded keys.
+     * @throws IOException If the keys cannot be written.
+     */
+    public synchronized void write(int chatID, Record record) throws IOException {
+        int length = 12 + record.publicKey.length + record.privateKey.length + record.aesKey.length;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length);
+        buffer.putInt(chatID).putInt(length);
+        buffer.putInt(record.publicKey.length).put(record.publicKey);
+        buffer.putInt(record.privateKey.length).put(record.privateKey);
+        buffer.putInt(record.aesKey.length).put(record.aesKey);
+        buffer.flip();
+        long offset = end;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        // The keys are the only copy, so they reach the disk before the chat is used.
+        channel.force(false);
+        end = offset + buffer.limit();
+        index.put(chatID, offset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + path + ".");
+            }
+        }
+    }
+
+    private static byte[] readBlock(ByteBuffer body) {
+        byte[] block = new byte[body.getInt()];
+        body.get(block);
+        return block;
+    }
+}
@@ -0,0 +1,178 @@
+package Shared;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A client's chat keys, read from disk once per chat and kept decoded for the rest of the session, so entering
+ * a chat again or answering another challenge does not read and parse the key files again.
+ * Keys come either from the loose key files in the key folder or from a ChatKeyStore. With a key store, chats
+ * missing from the store are still read from loose files and then copied into the store, so an existing key
+ * folder moves over as its chats are used.
+ * Safe to share between threads.
+ */
+public class ChatKeyring {
+    final String keyFolder;
+    final ChatKeyStore keyStore;
+    final ConcurrentHashMap<Integer, ChatKeys> chats = new ConcurrentHashMap<Integer, ChatKeys>();
+
+    /**
+     * The decoded keys of one chat, with a context for its messages.
+     */
+    static final class ChatKeys {
+        final PrivateKey privateKey;
+        final SecretKey aesKey;
+        final KeyUtils.CryptoContext crypto;
+
+        ChatKeys(PrivateKey privateKey, SecretKey aesKey) {
+            this.privateKey = privateKey;
+            this.aesKey = aesKey;
+            crypto = KeyUtils.newCryptoContext(aesKey, KeyUtils.AES);
+        }
+    }
+
+    /**
+     * @param keyFolder The folder holding the loose key files.
+     * @param keyStore The key store to use, or null to only use loose key files.
+     */
+    public ChatKeyring(String keyFolder, ChatKeyStore keyStore) {
+        this.keyFolder = keyFolder;
+        this.keyStore = keyStore;
+    }
+
+    public PrivateKey getPrivateKey(int chatID) throws IOException, GeneralSecurityException {
+        return keys(chatID).privateKey;
+    }
+
+    public SecretKey getAESKey(int chatID) throws IOException, GeneralSecurityException {
+        return keys(chatID).aesKey;
+    }
+
+    /**
+     * @return The context for encrypting and decrypting the chat's messages, shared by all its users.
+     */
+    public KeyUtils.CryptoContext getCryptoContext(int chatID) throws IOException, GeneralSecurityException {
+        return keys(chatID).crypto;
+    }
+
+    /**
+     * Saves the keys of a newly created chat and keeps them, replacing any the chat ID had before.
+     * @param chatID The chat the keys are for.
+     * @param keyPair The chat's key pair.
+     * @param aesKey The chat's message key.
+     */
+    public void save(int chatID, KeyPair keyPair, SecretKey aesKey) throws IOException {
+        if (keyStore != null) {
+            keyStore.write(chatID, new ChatKeyStore.Record(keyPair.getPublic().getEncoded(),
+                    keyPair.getPrivate().getEncoded(), aesKey.getEncoded()));
+            System.out.println("Saved keys for chat " + chatID + " to the key store.");
+        } else {
+            KeyUtils.saveRSAKeyPair(chatID, keyPair, keyFolder);
+            KeyUtils.saveAESKey(chatID, aesKey, keyFolder);
+        }
+        chats.put(chatID, new ChatKeys(keyPair.getPrivate(), aesKey));
+    }
+
+    /**
+     * @return The number of chats whose keys are loaded.
+     */
+    public int size() {
+        return chats.size();
+    }
+
+    /**
+     * Loads the keys of every chat in the key store, or in the key folder without one, so that no chat waits
+     * on the disk when it is first used. Chats whose keys cannot be read are skipped and retried on use.
+     * @param threads How many chats to load at once.
+     * @return The number of chats loaded.
+     */
+    public int preload(int threads) {
+        Collection<Integer> chatIDs = keyStore != null ? keyStore.chatIDs() : listKeyFolder();
+        ExecutorService loaders = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "key-preloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger loaded = new AtomicInteger();
+        for (int chatID : chatIDs) {
+            loaders.execute(() -> {
+                try {
+                    keys(chatID);
+                    loaded.incrementAndGet();
+                } catch (IOException | GeneralSecurityException e) {
+                    System.out.println("Failed to preload keys for chat " + chatID + ". " + e.toString());
+                }
+            });
+        }
+        loaders.shutdown();
+        try {
+            loaders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return loaded.get();
+    }
+
+    /**
+     * @return The chats with a message key in the key folder.
+     */
+    private List<Integer> listKeyFolder() {
+        List<Integer> chatIDs = new ArrayList<Integer>();
+        String[] names = new File(keyFolder).list();
+        if (names == null) {
+            return chatIDs;
+        }
+        for (String name : names) {
+            if (name.endsWith(KeyUtils.AES_KEY_STRING)) {
+                try {
+                    chatIDs.add(Integer.parseInt(name.substring(0, name.length() - KeyUtils.AES_KEY_STRING.length())));
+                } catch (NumberFormatException e) {
+                    // Not a chat key file.
+                }
+            }
+        }
+        return chatIDs;
+    }
+
+    private ChatKeys keys(int chatID) throws IOException, GeneralSecurityException {
+        ChatKeys keys = chats.get(chatID);
+        if (keys == null) {
+            // Loads that race both read the same files, and the first to finish is kept.
+            ChatKeys loaded = load(chatID);
+            keys = chats.putIfAbsent(chatID, loaded);
+            if (keys == null) {
+                keys = loaded;
+            }
+        }
+        return keys;
+    }
+
+    private ChatKeys load(int chatID) throws IOException, GeneralSecurityException {
+        ChatKeyStore.Record record = keyStore != null ? keyStore.read(chatID) : null;
+        if (record != null) {
+            return new ChatKeys(KeyUtils.readPrivateKey(record.getPrivateKey()),
+                    new SecretKeySpec(record.getAESKey(), KeyUtils.AES));
+        }
+        PrivateKey privateKey = KeyUtils.readPrivateKey(chatID, keyFolder);
+        SecretKey aesKey = KeyUtils.readAESKey(chatID, keyFolder);
+        if (keyStore != null) {
+            byte[] publicKey = KeyUtils.readKeyBytes(keyFolder + chatID + KeyUtils.PUBLIC_KEY_STRING);
+            keyStore.write(chatID, new ChatKeyStore.Record(publicKey, privateKey.getEncoded(), aesKey.getEncoded()));
+        }
+        return new ChatKeys(privateKey, aesKey);
+    }
+}
@@ -0,0 +1,240 @@
+package Shared;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * A unit of the wire protocol. With the original line protocol every frame is a line of text, and data
+ * travels as Base64. Once a client has negotiated binary framing with HandleMode.HELLO_BINARY_COMMAND, each
+ * frame is written as a type byte, a 4-byte big-endian payload length and the payload, so data such as
+ * ciphertext travels as raw bytes and mode switches are typed rather than spelled out.
+ * In a multi-chat session, data for each chat travels in CHAT_DATA frames tagged with the chat's ID.
+ * A frame keeps whichever of its text and byte forms it was made with and converts to the other on first use,
+ * so a message relayed to many clients is only converted once.
+ */
+public final class Frame {
+    // Text such as commands and status messages. Payload is UTF-8.
+    public static final byte TEXT = 1;
+    // A handle mode switch. Payload is one byte, the mode's ordinal.
+    public static final byte MODE = 2;
+    // Binary data such as ciphertext, keys and challenges. Carried as Base64 by the line protocol.
+    public static final byte DATA = 3;
+    // Data for one chat of a multi-chat session. Payload is the 4-byte big-endian chat ID followed by the data.
+    // Only sent with binary framing.
+    public static final byte CHAT_DATA = 4;
+
+    public static final int HEADER_LENGTH = 5;
+    public static final int CHAT_ID_LENGTH = 4;
+    // Frames larger than this are treated as a misbehaving peer.
+    public static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+    public static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    final byte type;
+    // Either form may be unset until it is first asked for. Racing conversions produce equal values.
+    volatile String text;
+    volatile byte[] payload;
+
+    private Frame(byte type, String text, byte[] payload) {
+        this.type = type;
+        this.text = text;
+        this.payload = payload;
+    }
+
+    public static Frame text(String text) {
+        return new Frame(TEXT, text, null);
+    }
+
+    public static Frame mode(HandleMode handleMode) {
+        return new Frame(MODE, handleMode.name(), new byte[] { (byte) handleMode.ordinal() });
+    }
+
+    public static Frame data(byte[] payload) {
+        return new Frame(DATA, null, payload);
+    }
+
+    /**
+     * @param chatID The chat the data belongs to.
+     * @param data The data, such as a message or a challenge.
+     * @return A frame tagging the data with its chat.
+     */
+    public static Frame chatData(int chatID, byte[] data) {
+        byte[] bytes = new byte[CHAT_ID_LENGTH + data.length];
+        ByteBuffer.wrap(bytes).putInt(chatID).put(data);
+        return new Frame(CHAT_DATA, null, bytes);
+    }
+
+    /**
+     * @param base64 Data as it is carried by the line protocol.
+     * @return A data frame that is only decoded if it is sent to a client using binary framing.
+     */
+    public static Frame base64Data(String base64) {
+        return new Frame(DATA, base64, null);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * @return The frame as a line of the line protocol: the text, the mode name, or the data as Base64.
+     *         Chat data has no line form and is shown as its chat ID and data.
+     */
+    public String getText() {
+        String current = text;
+        if (current == null) {
+            if (type == DATA) {
+                current = Base64.getEncoder().encodeToString(payload);
+            } else if (type == CHAT_DATA) {
+                current = getChatID() + " " + Base64.getEncoder().encodeToString(getChatData());
+            } else {
+                current = new String(payload, CHARSET);
+            }
+            text = current;
+        }
+        return current;
+    }
+
+    /**
+     * @return The payload as sent with binary framing.
+     * @throws IllegalArgumentException If the frame is data made from text that is not Base64.
+     */
+    public byte[] getPayload() {
+        byte[] current = payload;
+        if (current == null) {
+            current = type == DATA ? Base64.getDecoder().decode(text) : text.getBytes(CHARSET);
+            payload = current;
+        }
+        return current;
+    }
+
+    /**
+     * @return The mode a MODE frame switches to, or null if the mode is unknown.
+     */
+    public HandleMode getMode() {
+        if (type != MODE) {
+            return null;
+        }
+        return HandleMode.fromOrdinal(getPayload()[0]);
+    }
+
+    /**
+     * @return The chat a CHAT_DATA frame belongs to.
+     */
+    public int getChatID() {
+        return ByteBuffer.wrap(payload).getInt();
+    }
+
+    /**
+     * @return The data carried by a CHAT_DATA frame, without its chat ID.
+     */
+    public byte[] getChatData() {
+        byte[] data = new byte[payload.length - CHAT_ID_LENGTH];
+        System.arraycopy(payload, CHAT_ID_LENGTH, data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * @return The number of bytes the frame takes with binary framing.
+     */
+    public int getEncodedLength() {
+        return HEADER_LENGTH + getPayload().length;
+    }
+
+    /**
+     * Writes the frame with binary framing.
+     */
+    public void write(DataOutputStream output) throws IOException {
+        byte[] bytes = getPayload();
+        output.writeByte(type);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Writes the frame with binary framing into a buffer with at least getEncodedLength() bytes remaining.
+     */
+    public void write(ByteBuffer output) {
+        byte[] bytes = getPayload();
+        output.put(type);
+        output.putInt(bytes.length);
+        output.put(bytes);
+    }
+
+    /**
+     * Reads a frame written with binary framing.
+     * @return The frame, or null if the stream ended cleanly before it.
+     */
+    public static Frame read(DataInputStream input) throws IOException {
+        int type = input.read();
+        if (type < 0) {
+            return null;
+        }
+        int length = input.readInt();
+        checkHeader((byte) type, length);
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return fromWire((byte) type, bytes);
+    }
+
+    /**
+     * Checks a frame header read from the wire.
+     * @throws IOException If the type is unknown or the length is out of range.
+     */
+    public static void checkHeader(byte type, int length) throws IOException {
+        if (type < TEXT || type > CHAT_DATA) {
+            throw new IOException("Unknown frame type " + type + ".");
+        }
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH || (type == MODE && length != 1)
+                || (type == CHAT_DATA && length < CHAT_ID_LENGTH)) {
+            throw new IOException("Invalid frame length " + length + " for frame type " + type + ".");
+        }
+    }
+
+    /**
+     * @return A frame made from a header and payload read from the wire. The header must have been checked.
+     */
+    public static Frame fromWire(byte type, byte[] payload) {
+        return new Frame(type, null, payload);
+    }
+
+    /**
+     * Reads a line of the line protocol from a byte stream, so the stream can switch to binary framing
+     * afterwards without losing anything to a reader's buffer.
+     * @param input The stream to read from.
+     * @param charset The charset the line is in.
+     * @return The line without its terminator, or null if the stream ended before any of it.
+     * @throws IOException If the line is longer than MAX_PAYLOAD_LENGTH bytes.
+     */
+    public static String readLine(DataInputStream input, Charset charset) throws IOException {
+        byte[] line = new byte[128];
+        int length = 0;
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b < 0) {
+                // Like BufferedReader, an unterminated last line is still returned.
+                if (length == 0) {
+                    return null;
+                }
+                break;
+            }
+            if (length == line.length) {
+                if (length >= MAX_PAYLOAD_LENGTH) {
+                    throw new IOException("Line longer than " + MAX_PAYLOAD_LENGTH + " bytes.");
+                }
+                byte[] grown = new byte[length * 2];
+                System.arraycopy(line, 0, grown, 0, length);
+                line = grown;
+            }
+            line[length++] = (byte) b;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, charset);
+    }
+}
@@ -1,10 +1,29 @@
 package Shared;
 
+import java.util.HashMap;
+import java.util.Map;
+
+// The order of the modes is part of the binary protocol, since MODE frames carry the ordinal.
 public enum HandleMode {
     CHAT_SELECT,
     CHALLENGE_RESPONSE,
     CHAT,
-    CHAT_CREATION;
+    CHAT_CREATION,
+    SESSION;
+
+    // Precomputed so that checking a line neither clones values() nor compares it against every name.
+    private static final HandleMode[] MODES = values();
+    private static final Map<String, HandleMode> MODES_BY_NAME = new HashMap<String, HandleMode>();
+    private static final int MAX_NAME_LENGTH;
+
+    static {
+        int maxNameLength = 0;
+        for (HandleMode handleMode : MODES) {
+            MODES_BY_NAME.put(handleMode.name(), handleMode);
+            maxNameLength = Math.max(maxNameLength, handleMode.name().length());
+        }
+        MAX_NAME_LENGTH = maxNameLength;
+    }
 
     /**
      * Checks whether a string is contained in the enum.
@@ -18,20 +37,48 @@ public enum HandleMode {
 
     /**
      * Checks whether a string is contained in the enum, returning the enum value if so.
+     * Chat lines are Base64 ciphertext, longer than any mode name, so they are ruled out by length alone
+     * without being hashed.
      * @param test The string to test against the enum.
      * @return The matching enum value.
      */
     public static HandleMode stringToHandleMode(String test) {
-        for (HandleMode handleMode : HandleMode.values()) {
-            if (handleMode.name().equals(test)) {
-                return handleMode;
-            }
+        if (test == null || test.isEmpty() || test.length() > MAX_NAME_LENGTH) {
+            return null;
         }
-        return null;
+        return MODES_BY_NAME.get(test);
+    }
+
+    /**
+     * @param ordinal The ordinal carried by a MODE frame.
+     * @return The matching enum value, or null if there is none.
+     */
+    public static HandleMode fromOrdinal(int ordinal) {
+        return ordinal >= 0 && ordinal < MODES.length ? MODES[ordinal] : null;
     }
 
     public static final String CHAT_CREATION_COMMAND = "/create";
     public static final String EXIT_COMMAND = "/exit";
     public static final String PREVIOUS_COMMAND = "/previous";
+    public static final String OLDER_COMMAND = "/older";
     public static final String CHALLENGE_FAILED = "CHALLENGE_FAILED";
+    // Sent by a client in chat selection to ask for binary framing. The server echoes it back as its last line
+    // before switching, and the client switches once it reads the echo.
+    public static final String HELLO_BINARY_COMMAND = "/hello binary";
+    // Sent by a client using binary framing in chat selection to start a multi-chat session, in which it can
+    // join several chats and send and receive CHAT_DATA frames for each of them over the one connection.
+    public static final String SESSION_COMMAND = "/session";
+    // "/join <chat ID>" asks for a challenge for the chat. It arrives as CHAT_DATA and is answered the same way.
+    public static final String JOIN_COMMAND = "/join";
+    // "/leave <chat ID>" leaves a chat, or gives up joining it.
+    public static final String LEAVE_COMMAND = "/leave";
+    // Sent by the server as "/joined <chat ID> <chat name as Base64>" once the client has passed the challenge.
+    public static final String JOINED_REPLY = "/joined";
+    // Sent by the server as "/left <chat ID>" once the client is no longer in the chat or joining it.
+    public static final String LEFT_REPLY = "/left";
+    // Sent by the server as "/token <chat ID> <token>" after a client signs a challenge. Until it expires, the
+    // token enters the chat without a challenge, either from chat selection as "/rejoin <chat ID> <token>" or
+    // in a session as "/join <chat ID> <token>". An expired token falls back to the challenge.
+    public static final String TOKEN_REPLY = "/token";
+    public static final String REJOIN_COMMAND = "/rejoin";
 }
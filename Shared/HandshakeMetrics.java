@@ -0,0 +1,110 @@
+package Shared;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * Counts TLS handshakes and the time they take, split into full handshakes and resumed sessions, so the
+ * certificate checks saved by resumption can be seen.
+ * JSSE has no public flag for resumption. A resumed session keeps the creation time of the session it was
+ * resumed from, so a session created before its handshake started is counted as resumed.
+ */
+public class HandshakeMetrics {
+    static final Log LOG = Log.get(HandshakeMetrics.class);
+    final LongAdder fullHandshakes = new LongAdder();
+    final LongAdder fullHandshakeNanos = new LongAdder();
+    final LongAdder resumedHandshakes = new LongAdder();
+    final LongAdder resumedHandshakeNanos = new LongAdder();
+    final LongAdder failedHandshakes = new LongAdder();
+    ScheduledExecutorService logger;
+
+    /**
+     * @param session The session negotiated by the handshake.
+     * @param startMillis The wall clock time at which the handshake started.
+     * @return Whether the handshake resumed an earlier session.
+     */
+    public static boolean isResumed(SSLSession session, long startMillis) {
+        return session.getCreationTime() < startMillis;
+    }
+
+    /**
+     * Records a completed handshake.
+     * @param session The session negotiated by the handshake.
+     * @param startMillis The wall clock time at which the handshake started.
+     * @param elapsedNanos How long the handshake took.
+     * @return Whether the handshake resumed an earlier session.
+     */
+    public boolean record(SSLSession session, long startMillis, long elapsedNanos) {
+        boolean resumed = isResumed(session, startMillis);
+        if (resumed) {
+            resumedHandshakes.increment();
+            resumedHandshakeNanos.add(elapsedNanos);
+        } else {
+            fullHandshakes.increment();
+            fullHandshakeNanos.add(elapsedNanos);
+        }
+        return resumed;
+    }
+
+    public void recordFailure() {
+        failedHandshakes.increment();
+    }
+
+    public long getFullHandshakes() {
+        return fullHandshakes.sum();
+    }
+
+    public long getResumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    public long getFailedHandshakes() {
+        return failedHandshakes.sum();
+    }
+
+    public double getAverageFullMillis() {
+        long count = fullHandshakes.sum();
+        return count == 0 ? 0 : fullHandshakeNanos.sum() / 1e6 / count;
+    }
+
+    public double getAverageResumedMillis() {
+        long count = resumedHandshakes.sum();
+        return count == 0 ? 0 : resumedHandshakeNanos.sum() / 1e6 / count;
+    }
+
+    /**
+     * @return The share of completed handshakes that resumed a session.
+     */
+    public double getResumptionRate() {
+        long resumed = resumedHandshakes.sum();
+        long total = resumed + fullHandshakes.sum();
+        return total == 0 ? 0 : (double) resumed / total;
+    }
+
+    public String getStats() {
+        return String.format(
+                "TLS handshakes: %d full (avg %.2fms), %d resumed (avg %.2fms, %.1f%% of handshakes), %d failed",
+                getFullHandshakes(), getAverageFullMillis(), getResumedHandshakes(), getAverageResumedMillis(),
+                getResumptionRate() * 100, getFailedHandshakes());
+    }
+
+    /**
+     * Periodically prints the handshake statistics.
+     * @param intervalMillis How often to print them.
+     */
+    public synchronized void logStatsEvery(long intervalMillis) {
+        if (intervalMillis > 0 && logger == null) {
+            logger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "handshake-stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            logger.scheduleAtFixedRate(() -> LOG.info(getStats()), intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -5,10 +5,13 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyFactory;
 import java.security.KeyPair;
@@ -16,26 +19,48 @@ import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
+import java.security.spec.MGF1ParameterSpec;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.PSSParameterSpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public class KeyUtils {
+    // Chat key files keep these names whichever algorithm the chat's key pair uses.
     public static final String PUBLIC_KEY_STRING = "-rsa-public-key.pem";
     public static final String PRIVATE_KEY_STRING = "-rsa-private-key.pem";
     public static final String AES_KEY_STRING = "-aes-key.pem";
     public static final String RSA = "RSA";
     public static final int RSA_SIZE = 2048;
+    public static final String ED25519 = "Ed25519";
+    // Signature algorithms for challenge proofs: RSA-PSS for RSA chat keys and Ed25519 for Ed25519 chat keys.
+    public static final String RSA_PSS = "RSASSA-PSS";
+    static final PSSParameterSpec PSS_PARAMETERS = new PSSParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256,
+            32, PSSParameterSpec.TRAILER_FIELD_BC);
+    // Signed ahead of the chat ID and the challenge, so a proof cannot be replayed as a signature for anything
+    // else made with the chat's key.
+    static final byte[] CHALLENGE_PROOF_CONTEXT = "SecureChat challenge proof v1".getBytes(StandardCharsets.US_ASCII);
+    // Resolves to ECB with PKCS5 padding. Only used to read chat lines written before message envelopes.
     public static final String AES = "AES";
+    public static final String AES_GCM = "AES/GCM/NoPadding";
     public static final int AES_SIZE = 256;
     public static final Charset CHARSET = StandardCharsets.UTF_8;
     // Maximum string length using RSA and UTF_8. 245 bytes / 4 bytes per char (max case) = 61.
@@ -45,6 +70,35 @@ public class KeyUtils {
     // https://stackoverflow.com/questions/38072073/how-can-i-get-the-maximum-byte-array-length-from-a-string-that-has-always-the-sa
     // Accessed 12.11.2023
 
+    // Cipher and KeyFactory lookups go through the provider list and allocate new objects, so each thread keeps
+    // the instances it has used. Neither class is thread-safe, which is why they are not shared between threads.
+    private static final ThreadLocal<Map<String, Cipher>> THREAD_CIPHERS = ThreadLocal
+            .withInitial(() -> new HashMap<String, Cipher>());
+    private static final ThreadLocal<Map<String, KeyFactory>> THREAD_KEY_FACTORIES = ThreadLocal
+            .withInitial(() -> new HashMap<String, KeyFactory>());
+    // Message envelope layout: version byte, GCM nonce, then the ciphertext followed by the GCM tag.
+    public static final byte ENVELOPE_VERSION_GCM = 1;
+    public static final int GCM_NONCE_LENGTH = 12;
+    public static final int GCM_TAG_LENGTH = 16;
+    public static final int ENVELOPE_HEADER_LENGTH = 1 + GCM_NONCE_LENGTH;
+    public static final int ENVELOPE_OVERHEAD = ENVELOPE_HEADER_LENGTH + GCM_TAG_LENGTH;
+    // Each thread numbers its nonces after a random 8-byte prefix, so nonces never repeat within a thread and
+    // only collide across threads or clients if two prefixes match. Drawing the prefix once instead of a whole
+    // random nonce per message keeps SecureRandom off the send path.
+    private static final SecureRandom NONCE_RANDOM = new SecureRandom();
+    private static final ThreadLocal<NonceSequence> THREAD_NONCES = ThreadLocal.withInitial(NonceSequence::new);
+    // Holds the encrypted bytes between the cipher and the Base64 encoder. Grows to the largest message seen.
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocate(1024));
+    private static final byte[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final int[] BASE64_VALUES = new int[128];
+    static {
+        Arrays.fill(BASE64_VALUES, -1);
+        for (int i = 0; i < BASE64_ALPHABET.length; i++) {
+            BASE64_VALUES[BASE64_ALPHABET[i]] = i;
+        }
+    }
+
     public static void main(String[] args) {
         try {
             int chatID = 1;
@@ -103,6 +157,14 @@ public class KeyUtils {
         return generator.generateKeyPair();
     }
 
+    /**
+     * Generates an Ed25519 key pair, a cheaper alternative to RSA for proving access to a chat.
+     * @return The generated Ed25519 key pair.
+     */
+    public static KeyPair generateEd25519KeyPair() throws NoSuchAlgorithmException {
+        return KeyPairGenerator.getInstance(ED25519).generateKeyPair();
+    }
+
     /**
      * Generates an AES key used for encrypting the message.
      * @return The generated AES key.
@@ -154,7 +216,7 @@ public class KeyUtils {
     public static byte[] encryptBytes(byte[] unencryptedBytes, Key key, String algorithm)
             throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, IllegalBlockSizeException,
             BadPaddingException {
-        Cipher encryptCipher = Cipher.getInstance(algorithm);
+        Cipher encryptCipher = threadCipher(algorithm);
         encryptCipher.init(Cipher.ENCRYPT_MODE, key);
         return encryptCipher.doFinal(unencryptedBytes);
     }
@@ -202,11 +264,622 @@ public class KeyUtils {
     public static byte[] decryptBytes(byte[] encryptedBytes, Key key, String algorithm)
             throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, IllegalBlockSizeException,
             BadPaddingException {
-        Cipher decryptCipher = Cipher.getInstance(algorithm);
+        Cipher decryptCipher = threadCipher(algorithm);
         decryptCipher.init(Cipher.DECRYPT_MODE, key);
         return decryptCipher.doFinal(encryptedBytes);
     }
 
+    /**
+     * CIPHER REUSE METHODS
+     */
+
+    /**
+     * Gets the current thread's cipher for an algorithm, creating it the first time.
+     * The cipher must be initialised before each use since other callers on the thread may have used it.
+     * @param algorithm The algorithm of the cipher.
+     * @return The thread's cipher.
+     */
+    static Cipher threadCipher(String algorithm) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Map<String, Cipher> ciphers = THREAD_CIPHERS.get();
+        Cipher cipher = ciphers.get(algorithm);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(algorithm);
+            ciphers.put(algorithm, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Gets the current thread's key factory for an algorithm, creating it the first time.
+     * @param algorithm The key algorithm, such as RSA or Ed25519.
+     * @return The thread's key factory.
+     */
+    static KeyFactory threadKeyFactory(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, KeyFactory> keyFactories = THREAD_KEY_FACTORIES.get();
+        KeyFactory keyFactory = keyFactories.get(algorithm);
+        if (keyFactory == null) {
+            keyFactory = KeyFactory.getInstance(algorithm);
+            keyFactories.put(algorithm, keyFactory);
+        }
+        return keyFactory;
+    }
+
+    /**
+     * Gets the current thread's RSA key factory, creating it the first time.
+     * @return The thread's key factory.
+     */
+    static KeyFactory threadRSAKeyFactory() throws NoSuchAlgorithmException {
+        return threadKeyFactory(RSA);
+    }
+
+    /**
+     * Creates a context for repeatedly encrypting and decrypting with one key.
+     * @param key The key to use.
+     * @param algorithm The algorithm to use.
+     * @return The context.
+     */
+    public static CryptoContext newCryptoContext(Key key, String algorithm) {
+        return new CryptoContext(key, algorithm);
+    }
+
+    /**
+     * Encrypts and decrypts with a single key, such as a chat's AES key or a chat's RSA public key.
+     * Each thread that uses the context gets its own ciphers, initialised with the key the first time they are
+     * needed. Ciphers return to their initialised state after each doFinal, so later messages skip both the
+     * provider lookup and the key setup. Safe to share between threads.
+     */
+    public static class CryptoContext {
+        final Key key;
+        final String algorithm;
+        final ThreadLocal<Cipher> encryptCipher = new ThreadLocal<Cipher>();
+        final ThreadLocal<Cipher> decryptCipher = new ThreadLocal<Cipher>();
+
+        CryptoContext(Key key, String algorithm) {
+            this.key = key;
+            this.algorithm = algorithm;
+        }
+
+        public Key getKey() {
+            return key;
+        }
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        public byte[] encryptBytes(byte[] unencryptedBytes)
+                throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, IllegalBlockSizeException,
+                BadPaddingException {
+            Cipher cipher = cipher(encryptCipher, Cipher.ENCRYPT_MODE);
+            try {
+                return cipher.doFinal(unencryptedBytes);
+            } catch (IllegalBlockSizeException | BadPaddingException | RuntimeException e) {
+                encryptCipher.remove();
+                throw e;
+            }
+        }
+
+        public byte[] decryptBytes(byte[] encryptedBytes)
+                throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, IllegalBlockSizeException,
+                BadPaddingException {
+            Cipher cipher = cipher(decryptCipher, Cipher.DECRYPT_MODE);
+            try {
+                return cipher.doFinal(encryptedBytes);
+            } catch (IllegalBlockSizeException | BadPaddingException | RuntimeException e) {
+                decryptCipher.remove();
+                throw e;
+            }
+        }
+
+        /**
+         * Encrypts the remaining bytes of one buffer into another. Works with heap and direct buffers.
+         * @param input The bytes to encrypt. Its position is moved to its limit.
+         * @param output Receives the encrypted bytes at its position, which needs at least
+         *               getEncryptedSize(input.remaining()) bytes of room.
+         * @return The number of bytes written.
+         */
+        public int encrypt(ByteBuffer input, ByteBuffer output)
+                throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, ShortBufferException,
+                IllegalBlockSizeException, BadPaddingException {
+            Cipher cipher = cipher(encryptCipher, Cipher.ENCRYPT_MODE);
+            try {
+                return cipher.doFinal(input, output);
+            } catch (ShortBufferException e) {
+                // The cipher is left as it was, so it can be reused.
+                throw e;
+            } catch (IllegalBlockSizeException | BadPaddingException | RuntimeException e) {
+                encryptCipher.remove();
+                throw e;
+            }
+        }
+
+        /**
+         * Decrypts the remaining bytes of one buffer into another. Works with heap and direct buffers.
+         * @param input The bytes to decrypt. Its position is moved to its limit.
+         * @param output Receives the decrypted bytes at its position, which needs at least input.remaining()
+         *               bytes of room.
+         * @return The number of bytes written.
+         */
+        public int decrypt(ByteBuffer input, ByteBuffer output)
+                throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, ShortBufferException,
+                IllegalBlockSizeException, BadPaddingException {
+            Cipher cipher = cipher(decryptCipher, Cipher.DECRYPT_MODE);
+            try {
+                return cipher.doFinal(input, output);
+            } catch (ShortBufferException e) {
+                throw e;
+            } catch (IllegalBlockSizeException | BadPaddingException | RuntimeException e) {
+                decryptCipher.remove();
+                throw e;
+            }
+        }
+
+        /**
+         * @param inputLength The number of bytes to encrypt.
+         * @return The most bytes that encrypting them can produce.
+         */
+        public int getEncryptedSize(int inputLength)
+                throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException {
+            return cipher(encryptCipher, Cipher.ENCRYPT_MODE).getOutputSize(inputLength);
+        }
+
+        /**
+         * Encrypts plain bytes and writes them out as Base64 text, as sent in a chat line.
+         * @param input The bytes to encrypt. Its position is moved to its limit.
+         * @param base64Output Receives the Base64 characters as ASCII bytes at its position.
+         * @return The number of bytes written.
+         */
+        public int encryptToBase64(ByteBuffer input, ByteBuffer base64Output)
+                throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, ShortBufferException,
+                IllegalBlockSizeException, BadPaddingException {
+            ByteBuffer encrypted = scratchBuffer(getEncryptedSize(input.remaining()));
+            encrypt(input, encrypted);
+            encrypted.flip();
+            return encodeBase64(encrypted, base64Output);
+        }
+
+        /**
+         * Decrypts a chat line held as Base64 text. The Base64 is decoded in place, so the input buffer's
+         * contents are overwritten.
+         * @param base64Input The Base64 characters as ASCII bytes. Its position is moved to its limit.
+         * @param output Receives the decrypted bytes at its position.
+         * @return The number of bytes written.
+         */
+        public int decryptFromBase64(ByteBuffer base64Input, ByteBuffer output)
+                throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, ShortBufferException,
+                IllegalBlockSizeException, BadPaddingException {
+            ByteBuffer encrypted = base64Input.slice();
+            decodeBase64InPlace(encrypted);
+            base64Input.position(base64Input.limit());
+            return decrypt(encrypted, output);
+        }
+
+        public String encryptString(String unencryptedString)
+                throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, IllegalBlockSizeException,
+                BadPaddingException {
+            return Base64.getEncoder().encodeToString(encryptBytes(unencryptedString.getBytes(CHARSET)));
+        }
+
+        public String decryptString(String encryptedString)
+                throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, IllegalBlockSizeException,
+                BadPaddingException {
+            return new String(decryptBytes(Base64.getDecoder().decode(encryptedString)), CHARSET);
+        }
+
+        /**
+         * Seals a message into an envelope with this context's AES key. See KeyUtils.sealBytes.
+         */
+        public byte[] sealBytes(byte[] unencryptedBytes) throws GeneralSecurityException {
+            return KeyUtils.sealBytes(unencryptedBytes, (SecretKey) key);
+        }
+
+        /**
+         * Opens an envelope, or decrypts a legacy message with this context's reused cipher.
+         * See KeyUtils.openBytes.
+         */
+        public byte[] openBytes(byte[] message) throws GeneralSecurityException {
+            if (isEnvelope(message)) {
+                return openEnvelope(message, (SecretKey) key);
+            }
+            return decryptBytes(message);
+        }
+
+        /**
+         * Opens an envelope, refusing legacy messages. See KeyUtils.openSealedBytes.
+         */
+        public byte[] openSealedBytes(byte[] message) throws GeneralSecurityException {
+            return KeyUtils.openSealedBytes(message, (SecretKey) key);
+        }
+
+        public String sealString(String unencryptedString) throws GeneralSecurityException {
+            return Base64.getEncoder().encodeToString(sealBytes(unencryptedString.getBytes(CHARSET)));
+        }
+
+        public String openString(String encryptedString) throws GeneralSecurityException {
+            return new String(openBytes(Base64.getDecoder().decode(encryptedString)), CHARSET);
+        }
+
+        private Cipher cipher(ThreadLocal<Cipher> threadCipher, int mode)
+                throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException {
+            Cipher cipher = threadCipher.get();
+            if (cipher == null) {
+                // A cipher that failed is dropped and replaced in case it was left mid-operation.
+                cipher = Cipher.getInstance(algorithm);
+                cipher.init(mode, key);
+                threadCipher.set(cipher);
+            }
+            return cipher;
+        }
+    }
+
+    /**
+     * CHALLENGE PROOF METHODS
+     */
+
+    /**
+     * Creates an uninitialised signature for proving access to a chat with one of its keys.
+     * @param key The chat's public or private key.
+     * @return An RSA-PSS signature for RSA keys, or an Ed25519 signature for Ed25519 keys.
+     */
+    public static Signature newProofSignature(Key key) throws GeneralSecurityException {
+        if (RSA.equals(key.getAlgorithm())) {
+            Signature signature = Signature.getInstance(RSA_PSS);
+            signature.setParameter(PSS_PARAMETERS);
+            return signature;
+        }
+        if (ED25519.equals(key.getAlgorithm()) || "EdDSA".equals(key.getAlgorithm())) {
+            return Signature.getInstance(ED25519);
+        }
+        throw new InvalidKeyException("No challenge proof for " + key.getAlgorithm() + " keys.");
+    }
+
+    /**
+     * @param chatID The chat being entered.
+     * @param challenge The challenge sent by the server.
+     * @return The bytes signed to prove access to the chat.
+     */
+    public static byte[] challengeMessage(int chatID, byte[] challenge) {
+        return ByteBuffer.allocate(CHALLENGE_PROOF_CONTEXT.length + 4 + challenge.length).put(CHALLENGE_PROOF_CONTEXT)
+                .putInt(chatID).put(challenge).array();
+    }
+
+    /**
+     * Signs a challenge with a chat's private key.
+     * @param chatID The chat being entered.
+     * @param challenge The challenge sent by the server.
+     * @param privateKey The chat's private key.
+     * @return The proof to send back to the server.
+     */
+    public static byte[] signChallenge(int chatID, byte[] challenge, PrivateKey privateKey)
+            throws GeneralSecurityException {
+        Signature signature = newProofSignature(privateKey);
+        signature.initSign(privateKey);
+        signature.update(challengeMessage(chatID, challenge));
+        return signature.sign();
+    }
+
+    /**
+     * Checks a proof with a signature already initialised for verification with the chat's public key.
+     * A verify leaves the signature ready for the next one, so the same signature can check many proofs.
+     * @param verifier The initialised signature.
+     * @param chatID The chat being entered.
+     * @param challenge The challenge sent by the server.
+     * @param proof The proof sent back by the client.
+     * @return Whether the proof is valid.
+     * @throws SignatureException If the proof is not a signature at all. The verifier should then be dropped.
+     */
+    public static boolean verifyChallenge(Signature verifier, int chatID, byte[] challenge, byte[] proof)
+            throws SignatureException {
+        verifier.update(challengeMessage(chatID, challenge));
+        return verifier.verify(proof);
+    }
+
+    /**
+     * MESSAGE ENVELOPE METHODS
+     */
+
+    /**
+     * Encrypts a message with AES-GCM into a versioned envelope: the version byte, a unique nonce, then the
+     * ciphertext and its authentication tag. The version byte is authenticated along with the message.
+     * @param unencryptedBytes The message to encrypt.
+     * @param key The chat's AES key.
+     * @return The envelope.
+     */
+    public static byte[] sealBytes(byte[] unencryptedBytes, SecretKey key) throws GeneralSecurityException {
+        byte[] envelope = new byte[ENVELOPE_OVERHEAD + unencryptedBytes.length];
+        envelope[0] = ENVELOPE_VERSION_GCM;
+        THREAD_NONCES.get().next(envelope, 1);
+
+        Cipher sealCipher = threadCipher(AES_GCM);
+        sealCipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, envelope, 1,
+                GCM_NONCE_LENGTH));
+        sealCipher.updateAAD(envelope, 0, 1);
+        sealCipher.doFinal(unencryptedBytes, 0, unencryptedBytes.length, envelope, ENVELOPE_HEADER_LENGTH);
+        return envelope;
+    }
+
+    /**
+     * Decrypts a message envelope, or a message written before envelopes were introduced.
+     * A message that starts with the version byte is only ever opened as an envelope. Retrying it as ECB after
+     * its tag fails would let a forged envelope through as legacy ciphertext, so the one in 256 legacy
+     * messages that start with the version byte stay unreadable until ChatLineMigration has sealed them.
+     * @param message The envelope or legacy ECB ciphertext.
+     * @param key The chat's AES key.
+     * @return The decrypted message.
+     * @throws AEADBadTagException If an envelope has been tampered with or was sealed with another key.
+     */
+    public static byte[] openBytes(byte[] message, SecretKey key) throws GeneralSecurityException {
+        if (isEnvelope(message)) {
+            return openEnvelope(message, key);
+        }
+        return decryptBytes(message, key, AES);
+    }
+
+    /**
+     * Decrypts a message envelope, refusing anything else. For chats whose lines have all been migrated, so a
+     * line written in the legacy format can only be a forgery.
+     * @param message The envelope.
+     * @param key The chat's AES key.
+     * @return The decrypted message.
+     * @throws AEADBadTagException If the message is not an envelope, has been tampered with or was sealed with
+     *                             another key.
+     */
+    public static byte[] openSealedBytes(byte[] message, SecretKey key) throws GeneralSecurityException {
+        if (!isEnvelope(message)) {
+            throw new AEADBadTagException("Message is not an envelope.");
+        }
+        return openEnvelope(message, key);
+    }
+
+    /**
+     * Decrypts a message envelope without falling back to the legacy format.
+     * @param envelope An envelope produced by sealBytes.
+     * @param key The chat's AES key.
+     * @return The decrypted message.
+     */
+    public static byte[] openEnvelope(byte[] envelope, SecretKey key) throws GeneralSecurityException {
+        Cipher openCipher = threadCipher(AES_GCM);
+        openCipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, envelope, 1,
+                GCM_NONCE_LENGTH));
+        openCipher.updateAAD(envelope, 0, 1);
+        return openCipher.doFinal(envelope, ENVELOPE_HEADER_LENGTH, envelope.length - ENVELOPE_HEADER_LENGTH);
+    }
+
+    /**
+     * @param message An encrypted message.
+     * @return Whether the message looks like an envelope rather than legacy ECB ciphertext.
+     */
+    public static boolean isEnvelope(byte[] message) {
+        return message.length >= ENVELOPE_OVERHEAD && message[0] == ENVELOPE_VERSION_GCM;
+    }
+
+    /**
+     * Seals a string into an envelope and encodes it as Base64 so it can be sent as a line of text.
+     */
+    public static String sealString(String unencryptedString, SecretKey key) throws GeneralSecurityException {
+        return Base64.getEncoder().encodeToString(sealBytes(unencryptedString.getBytes(CHARSET), key));
+    }
+
+    /**
+     * Decodes and opens a string produced by sealString, or by encryptString with AES before envelopes.
+     * @throws IllegalArgumentException If the string is not Base64.
+     */
+    public static String openString(String encryptedString, SecretKey key) throws GeneralSecurityException {
+        return new String(openBytes(Base64.getDecoder().decode(encryptedString), key), CHARSET);
+    }
+
+    /**
+     * Produces a thread's GCM nonces: a random prefix followed by a counter.
+     */
+    static class NonceSequence {
+        final byte[] prefix = new byte[GCM_NONCE_LENGTH - 4];
+        int counter;
+
+        NonceSequence() {
+            NONCE_RANDOM.nextBytes(prefix);
+        }
+
+        void next(byte[] destination, int offset) {
+            if (counter == -1) {
+                // The counter is about to wrap, so start a new sequence rather than repeat a nonce.
+                NONCE_RANDOM.nextBytes(prefix);
+            }
+            counter++;
+            System.arraycopy(prefix, 0, destination, offset, prefix.length);
+            int position = offset + prefix.length;
+            destination[position] = (byte) (counter >>> 24);
+            destination[position + 1] = (byte) (counter >>> 16);
+            destination[position + 2] = (byte) (counter >>> 8);
+            destination[position + 3] = (byte) counter;
+        }
+    }
+
+    /**
+     * BUFFER METHODS
+     */
+
+    /**
+     * Encrypts the remaining bytes of one buffer into another with the thread's cipher for the algorithm.
+     * @param input The bytes to encrypt. Its position is moved to its limit.
+     * @param output Receives the encrypted bytes at its position.
+     * @param key The key to encrypt with.
+     * @param algorithm The algorithm to encrypt with.
+     * @return The number of bytes written.
+     */
+    public static int encrypt(ByteBuffer input, ByteBuffer output, Key key, String algorithm)
+            throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, ShortBufferException,
+            IllegalBlockSizeException, BadPaddingException {
+        Cipher encryptCipher = threadCipher(algorithm);
+        encryptCipher.init(Cipher.ENCRYPT_MODE, key);
+        return encryptCipher.doFinal(input, output);
+    }
+
+    /**
+     * Decrypts the remaining bytes of one buffer into another with the thread's cipher for the algorithm.
+     * @param input The bytes to decrypt. Its position is moved to its limit.
+     * @param output Receives the decrypted bytes at its position.
+     * @param key The key to decrypt with.
+     * @param algorithm The algorithm to decrypt with.
+     * @return The number of bytes written.
+     */
+    public static int decrypt(ByteBuffer input, ByteBuffer output, Key key, String algorithm)
+            throws NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException, ShortBufferException,
+            IllegalBlockSizeException, BadPaddingException {
+        Cipher decryptCipher = threadCipher(algorithm);
+        decryptCipher.init(Cipher.DECRYPT_MODE, key);
+        return decryptCipher.doFinal(input, output);
+    }
+
+    /**
+     * @param length A number of bytes.
+     * @return The length of their padded Base64 encoding.
+     */
+    public static int base64Length(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /**
+     * Encodes bytes as padded Base64 without allocating, matching Base64.getEncoder().
+     * @param input The bytes to encode. Its position is moved to its limit.
+     * @param output Receives the Base64 characters as ASCII bytes at its position.
+     * @return The number of bytes written.
+     */
+    public static int encodeBase64(ByteBuffer input, ByteBuffer output) {
+        int length = base64Length(input.remaining());
+        if (output.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        if (input.hasArray() && output.hasArray()) {
+            encodeBase64(input.array(), input.arrayOffset() + input.position(), input.remaining(),
+                    output.array(), output.arrayOffset() + output.position());
+            input.position(input.limit());
+            output.position(output.position() + length);
+            return length;
+        }
+        while (input.remaining() >= 3) {
+            int bits = (input.get() & 0xff) << 16 | (input.get() & 0xff) << 8 | (input.get() & 0xff);
+            output.put(BASE64_ALPHABET[bits >>> 18 & 0x3f]);
+            output.put(BASE64_ALPHABET[bits >>> 12 & 0x3f]);
+            output.put(BASE64_ALPHABET[bits >>> 6 & 0x3f]);
+            output.put(BASE64_ALPHABET[bits & 0x3f]);
+        }
+        int bits = 0;
+        int tail = input.remaining();
+        for (int i = 0; i < tail; i++) {
+            bits |= (input.get() & 0xff) << (16 - 8 * i);
+        }
+        if (tail > 0) {
+            output.put(BASE64_ALPHABET[bits >>> 18 & 0x3f]);
+            output.put(BASE64_ALPHABET[bits >>> 12 & 0x3f]);
+            output.put(tail == 2 ? BASE64_ALPHABET[bits >>> 6 & 0x3f] : (byte) '=');
+            output.put((byte) '=');
+        }
+        return length;
+    }
+
+    private static void encodeBase64(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        int end = offset + length - length % 3;
+        int o = outputOffset;
+        for (int i = offset; i < end; i += 3) {
+            int bits = (input[i] & 0xff) << 16 | (input[i + 1] & 0xff) << 8 | (input[i + 2] & 0xff);
+            output[o++] = BASE64_ALPHABET[bits >>> 18 & 0x3f];
+            output[o++] = BASE64_ALPHABET[bits >>> 12 & 0x3f];
+            output[o++] = BASE64_ALPHABET[bits >>> 6 & 0x3f];
+            output[o++] = BASE64_ALPHABET[bits & 0x3f];
+        }
+        int tail = length % 3;
+        if (tail > 0) {
+            int bits = (input[end] & 0xff) << 16 | (tail == 2 ? (input[end + 1] & 0xff) << 8 : 0);
+            output[o++] = BASE64_ALPHABET[bits >>> 18 & 0x3f];
+            output[o++] = BASE64_ALPHABET[bits >>> 12 & 0x3f];
+            output[o++] = tail == 2 ? BASE64_ALPHABET[bits >>> 6 & 0x3f] : (byte) '=';
+            output[o] = '=';
+        }
+    }
+
+    /**
+     * Decodes padded Base64 held as ASCII bytes, overwriting the input with the decoded bytes.
+     * Each group of four characters is read before its three bytes are written, and the bytes never get ahead
+     * of the characters, so no second buffer is needed.
+     * @param buffer The Base64 text between its position and limit. Afterwards its limit marks the end of the
+     *               decoded bytes.
+     * @return The number of decoded bytes.
+     * @throws IllegalArgumentException If the input is not valid Base64.
+     */
+    public static int decodeBase64InPlace(ByteBuffer buffer) {
+        int start = buffer.position();
+        int length = buffer.remaining();
+        if (length % 4 != 0) {
+            throw new IllegalArgumentException("Base64 input length is not a multiple of 4.");
+        }
+        int written;
+        if (buffer.hasArray()) {
+            written = decodeBase64InPlace(buffer.array(), buffer.arrayOffset() + start, length);
+        } else {
+            written = 0;
+            for (int i = start; i < start + length; i += 4) {
+                int a = base64Value(buffer.get(i));
+                int b = base64Value(buffer.get(i + 1));
+                int c = buffer.get(i + 2);
+                int d = buffer.get(i + 3);
+                boolean last = i + 4 == start + length;
+                buffer.put(start + written++, (byte) (a << 2 | b >>> 4));
+                if (!last || c != '=') {
+                    c = base64Value(c);
+                    buffer.put(start + written++, (byte) (b << 4 | c >>> 2));
+                    if (!last || d != '=') {
+                        buffer.put(start + written++, (byte) (c << 6 | base64Value(d)));
+                    }
+                } else if (d != '=') {
+                    throw new IllegalArgumentException("Illegal Base64 padding.");
+                }
+            }
+        }
+        buffer.limit(start + written);
+        return written;
+    }
+
+    private static int decodeBase64InPlace(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        int o = offset;
+        for (int i = offset; i < end; i += 4) {
+            int a = base64Value(buffer[i]);
+            int b = base64Value(buffer[i + 1]);
+            int c = buffer[i + 2];
+            int d = buffer[i + 3];
+            boolean last = i + 4 == end;
+            buffer[o++] = (byte) (a << 2 | b >>> 4);
+            if (!last || c != '=') {
+                c = base64Value(c);
+                buffer[o++] = (byte) (b << 4 | c >>> 2);
+                if (!last || d != '=') {
+                    buffer[o++] = (byte) (c << 6 | base64Value(d));
+                }
+            } else if (d != '=') {
+                throw new IllegalArgumentException("Illegal Base64 padding.");
+            }
+        }
+        return o - offset;
+    }
+
+    private static ByteBuffer scratchBuffer(int capacity) {
+        ByteBuffer buffer = SCRATCH.get();
+        if (buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+            SCRATCH.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static int base64Value(int character) {
+        int value = character >= 0 && character < 128 ? BASE64_VALUES[character] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("Illegal Base64 character " + Integer.toHexString(character));
+        }
+        return value;
+    }
+
     /**
      * KEY FILE MANAGEMENT METHODS
      */
@@ -221,6 +894,7 @@ public class KeyUtils {
         saveRSAPrivateKey(chatID, rsaKeyPair.getPrivate(), keyFolder);
     }
 
+    // Keys are saved in their standard encodings, so these also save Ed25519 keys.
     public static void saveRSAPublicKey(int chatID, PublicKey publicKey, String keyFolder) {
         try (FileOutputStream fos = new FileOutputStream(keyFolder + chatID + PUBLIC_KEY_STRING)) {
             fos.write(publicKey.getEncoded());
@@ -268,11 +942,26 @@ public class KeyUtils {
 
     public static PublicKey readRSAPublicKey(byte[] bytes)
             throws NoSuchAlgorithmException, InvalidKeySpecException, IOException {
-        KeyFactory keyFactory = KeyFactory.getInstance(RSA);
+        KeyFactory keyFactory = threadRSAKeyFactory();
         X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(bytes);
         return keyFactory.generatePublic(publicKeySpec);
     }
 
+    /**
+     * Reads a chat's public key, which is either an RSA or an Ed25519 key.
+     * @param bytes The X.509 encoded key.
+     * @return The public key.
+     * @throws InvalidKeySpecException If the bytes are neither kind of key.
+     */
+    public static PublicKey readPublicKey(byte[] bytes) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(bytes);
+        try {
+            return threadRSAKeyFactory().generatePublic(publicKeySpec);
+        } catch (InvalidKeySpecException e) {
+            return threadKeyFactory(ED25519).generatePublic(publicKeySpec);
+        }
+    }
+
     /**
      * Reads the public key for a given chat.
      * @param chatID The chat the key is for.
@@ -282,12 +971,39 @@ public class KeyUtils {
      */
     public static PrivateKey readRSAPrivateKey(int chatID, String keyFolder)
             throws NoSuchAlgorithmException, InvalidKeySpecException, IOException {
-        KeyFactory keyFactory = KeyFactory.getInstance(RSA);
+        KeyFactory keyFactory = threadRSAKeyFactory();
         PKCS8EncodedKeySpec publicKeySpec = new PKCS8EncodedKeySpec(
                 readKeyBytes(keyFolder + chatID + PRIVATE_KEY_STRING));
         return keyFactory.generatePrivate(publicKeySpec);
     }
 
+    /**
+     * Reads the private key for a given chat, which is either an RSA or an Ed25519 key.
+     * @param chatID The chat the key is for.
+     * @return The private key for the chat.
+     * @throws InvalidKeySpecException If the key file is neither kind of key.
+     * @throws IOException If the file containing the key could not be found or read properly.
+     */
+    public static PrivateKey readPrivateKey(int chatID, String keyFolder)
+            throws NoSuchAlgorithmException, InvalidKeySpecException, IOException {
+        return readPrivateKey(readKeyBytes(keyFolder + chatID + PRIVATE_KEY_STRING));
+    }
+
+    /**
+     * Reads a chat's private key, which is either an RSA or an Ed25519 key.
+     * @param bytes The PKCS #8 encoded key.
+     * @return The private key.
+     * @throws InvalidKeySpecException If the bytes are neither kind of key.
+     */
+    public static PrivateKey readPrivateKey(byte[] bytes) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        PKCS8EncodedKeySpec privateKeySpec = new PKCS8EncodedKeySpec(bytes);
+        try {
+            return threadRSAKeyFactory().generatePrivate(privateKeySpec);
+        } catch (InvalidKeySpecException e) {
+            return threadKeyFactory(ED25519).generatePrivate(privateKeySpec);
+        }
+    }
+
     /**
      * Reads the AES key for a given chat.
      * @param chatID The chat the key is for.
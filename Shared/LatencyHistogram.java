@@ -0,0 +1,122 @@
+package Shared;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in buckets so that percentiles can be read without keeping every sample.
+ * Each power of two is split into 16 buckets, so a reported percentile is at most about 6% above the true
+ * value. Recording takes no locks and may happen on any number of threads. The buckets are striped by thread,
+ * like a LongAdder, so threads recording similar values do not fight over the same counter.
+ * Values need not be durations: the raw getters work for any non-negative counts, such as fan-out sizes.
+ */
+public class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    static final int MAX_STRIPES = 16;
+
+    final AtomicLongArray[] stripes;
+    final LongAdder count = new LongAdder();
+    final LongAdder total = new LongAdder();
+    final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+        int stripeCount = Integer.highestOneBit(Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors()));
+        stripes = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /**
+     * Records one duration or other value. Negative values are counted as zero.
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        stripes[Thread.currentThread().hashCode() & (stripes.length - 1)].incrementAndGet(bucketOf(nanos));
+        count.increment();
+        total.add(nanos);
+        if (nanos > max.get()) {
+            max.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        long samples = count.sum();
+        return samples == 0 ? 0 : (double) total.sum() / samples;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile The percentile to read, such as 99.9.
+     * @return The value that the given share of samples did not exceed, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long samples = count.sum();
+        if (samples == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(samples * percentile / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            for (AtomicLongArray stripe : stripes) {
+                seen += stripe.get(bucket);
+            }
+            if (seen >= rank) {
+                return Math.min(highestIn(bucket), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public double getMeanMillis() {
+        return getMean() / 1e6;
+    }
+
+    public double getMaxMillis() {
+        return getMax() / 1e6;
+    }
+
+    public double getPercentileMillis(double percentile) {
+        return getPercentile(percentile) / 1e6;
+    }
+
+    /**
+     * @return A summary such as "count=100, mean=1.20ms, p50=1.10ms, p99=2.50ms, p99.9=3.00ms, max=3.10ms".
+     */
+    public String getStats() {
+        return String.format("count=%d, mean=%.2fms, p50=%.2fms, p99=%.2fms, p99.9=%.2fms, max=%.2fms", getCount(),
+                getMeanMillis(), getPercentileMillis(50), getPercentileMillis(99), getPercentileMillis(99.9),
+                getMaxMillis());
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return The largest value that falls in the bucket.
+     */
+    static long highestIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
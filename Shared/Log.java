@@ -0,0 +1,183 @@
+package Shared;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A small leveled logger, named after the class it is for.
+ * Lines below a logger's level are dropped with one comparison. Lines that pass are handed to an
+ * AsyncLogWriter, which formats and prints them on its own thread and drops lines rather than block when it
+ * falls behind. With a queue size of 0 lines are printed on the calling thread instead.
+ * Levels are set with a list such as "info,ClientHandler=debug,DBUtils=warn": a default level followed by
+ * levels for single classes.
+ */
+public final class Log {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF;
+
+        /**
+         * @return The level with the given name in any case, or null if there is none.
+         */
+        public static Level fromOption(String option) {
+            try {
+                return valueOf(option.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    public static final String DEFAULT_LEVELS = "info";
+    public static final int DEFAULT_QUEUE_SIZE = 8192;
+
+    static final Map<String, Log> LOGS = new ConcurrentHashMap<String, Log>();
+    // Guarded by the class.
+    static Level defaultLevel = Level.INFO;
+    static Map<String, Level> classLevels = new HashMap<String, Level>();
+    static int queueSize = DEFAULT_QUEUE_SIZE;
+    // Started on first use. Null when lines are printed on the calling thread.
+    static volatile AsyncLogWriter writer;
+    static volatile boolean writerStarted;
+    // Guarded by the class. One hook flushes whichever writer is current when the JVM exits.
+    static boolean shutdownHookAdded;
+
+    final String name;
+    volatile Level level;
+
+    private Log(String name, Level level) {
+        this.name = name;
+        this.level = level;
+    }
+
+    /**
+     * @return The logger for a class, named after it.
+     */
+    public static Log get(Class<?> type) {
+        String name = type.getSimpleName();
+        Log log = LOGS.get(name);
+        if (log != null) {
+            return log;
+        }
+        synchronized (Log.class) {
+            return LOGS.computeIfAbsent(name, key -> new Log(key, levelFor(key)));
+        }
+    }
+
+    /**
+     * Sets the levels of all loggers and the size of the queue of lines waiting to be printed.
+     * @param levels A default level, optionally followed by "<class>=<level>" entries, separated by commas.
+     * @param queueSize The most lines to hold for the writer thread, rounded up to a power of two. 0 prints
+     *        lines on the calling thread.
+     */
+    public static synchronized void configure(String levels, int queueSize) {
+        Level newDefault = Level.INFO;
+        Map<String, Level> newClassLevels = new HashMap<String, Level>();
+        for (String entry : levels.split(",")) {
+            int equals = entry.indexOf('=');
+            Level level = Level.fromOption(equals < 0 ? entry : entry.substring(equals + 1));
+            if (level == null) {
+                System.err.println("Unknown log level in \"" + entry + "\"! Ignoring it!");
+            } else if (equals < 0) {
+                newDefault = level;
+            } else {
+                newClassLevels.put(entry.substring(0, equals).trim(), level);
+            }
+        }
+        defaultLevel = newDefault;
+        classLevels = newClassLevels;
+        for (Log log : LOGS.values()) {
+            log.level = levelFor(log.name);
+        }
+
+        if (queueSize != Log.queueSize) {
+            Log.queueSize = Math.max(0, queueSize);
+            AsyncLogWriter oldWriter = writer;
+            writer = null;
+            writerStarted = false;
+            if (oldWriter != null) {
+                oldWriter.close();
+            }
+        }
+    }
+
+    /**
+     * Prints any lines still waiting and stops the writer thread. Later lines start a new one.
+     */
+    public static synchronized void flush() {
+        AsyncLogWriter oldWriter = writer;
+        writer = null;
+        writerStarted = false;
+        if (oldWriter != null) {
+            oldWriter.close();
+        }
+    }
+
+    private static Level levelFor(String name) {
+        return classLevels.getOrDefault(name, defaultLevel);
+    }
+
+    public boolean isEnabled(Level lineLevel) {
+        return lineLevel.compareTo(level) >= 0;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public void warn(String message, Throwable error) {
+        log(Level.WARN, message, error);
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    public void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    private void log(Level lineLevel, String message, Throwable error) {
+        if (!isEnabled(lineLevel)) {
+            return;
+        }
+        AsyncLogWriter.Line line = new AsyncLogWriter.Line(System.currentTimeMillis(), lineLevel, name,
+                Thread.currentThread().getName(), message, error);
+        AsyncLogWriter current = writer;
+        if (current == null && !writerStarted) {
+            current = startWriter();
+        }
+        if (current == null) {
+            line.print();
+        } else {
+            current.offer(line);
+        }
+    }
+
+    private static synchronized AsyncLogWriter startWriter() {
+        if (!writerStarted) {
+            writerStarted = true;
+            if (queueSize > 0) {
+                writer = new AsyncLogWriter(queueSize);
+                if (!shutdownHookAdded) {
+                    shutdownHookAdded = true;
+                    Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+                }
+            }
+        }
+        return writer;
+    }
+}
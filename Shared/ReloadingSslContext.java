@@ -0,0 +1,130 @@
+package Shared;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+/**
+ * Holds the SSL context for a set of PEM files and replaces it when the files change, so certificates can be
+ * rotated without a restart.
+ * The PEM files are parsed once and the resulting key and trust managers are kept, so a change to the CA only
+ * rereads the CA and a change to the certificate or key only rereads those. New handshakes use the newest
+ * context while connections made with an older one carry on until they close.
+ */
+public class ReloadingSslContext {
+    static final Log LOG = Log.get(ReloadingSslContext.class);
+    final String caCrtFile;
+    final String crtFile;
+    final String keyFile;
+    final String password;
+    volatile SSLContext context;
+    int sessionCacheSize = SslUtil.DEFAULT_SESSION_CACHE_SIZE;
+    int sessionTimeout = SslUtil.DEFAULT_SESSION_TIMEOUT;
+    ScheduledExecutorService watcher;
+
+    // Guarded by this. The modification times are of the files the managers were read from.
+    TrustManager[] trustManagers;
+    KeyManager[] keyManagers;
+    long caModified;
+    long crtModified;
+    long keyModified;
+
+    /**
+     * Reads the PEM files and builds the first context.
+     * @throws Exception If the files cannot be read.
+     */
+    public ReloadingSslContext(String caCrtFile, String crtFile, String keyFile, String password) throws Exception {
+        this.caCrtFile = caCrtFile;
+        this.crtFile = crtFile;
+        this.keyFile = keyFile;
+        this.password = password;
+        synchronized (this) {
+            caModified = new File(caCrtFile).lastModified();
+            crtModified = new File(crtFile).lastModified();
+            keyModified = new File(keyFile).lastModified();
+            trustManagers = SslUtil.readTrustManagers(caCrtFile);
+            keyManagers = SslUtil.readKeyManagers(crtFile, keyFile, password);
+            context = newContext(keyManagers, trustManagers);
+        }
+    }
+
+    /**
+     * @return The context to use for a new handshake.
+     */
+    public SSLContext get() {
+        return context;
+    }
+
+    /**
+     * Sets the session cache size and timeout of the current context and of any loaded later.
+     * See SslUtil.configureSessions.
+     */
+    public synchronized void configureSessions(int cacheSize, int timeout) {
+        sessionCacheSize = cacheSize;
+        sessionTimeout = timeout;
+        SslUtil.configureSessions(context, cacheSize, timeout);
+    }
+
+    /**
+     * Rereads whichever PEM files have changed since they were last read and swaps in a new context.
+     * If they cannot be read, or the key does not match the certificate because only one of them has been
+     * replaced so far, the current context is kept and the files are tried again on the next reload.
+     * @return Whether a new context was swapped in.
+     */
+    public synchronized boolean reload() {
+        long ca = new File(caCrtFile).lastModified();
+        long crt = new File(crtFile).lastModified();
+        long key = new File(keyFile).lastModified();
+        boolean trustChanged = ca != caModified;
+        boolean keyChanged = crt != crtModified || key != keyModified;
+        if (!trustChanged && !keyChanged) {
+            return false;
+        }
+        try {
+            TrustManager[] newTrustManagers = trustChanged ? SslUtil.readTrustManagers(caCrtFile) : trustManagers;
+            KeyManager[] newKeyManagers = keyChanged ? SslUtil.readKeyManagers(crtFile, keyFile, password)
+                    : keyManagers;
+            SSLContext newContext = newContext(newKeyManagers, newTrustManagers);
+            // Only recorded once the new context is built, so that a failure is retried.
+            trustManagers = newTrustManagers;
+            keyManagers = newKeyManagers;
+            caModified = ca;
+            crtModified = crt;
+            keyModified = key;
+            context = newContext;
+            LOG.info("Reloaded TLS " + (trustChanged ? "CA certificate" : "")
+                    + (trustChanged && keyChanged ? " and " : "") + (keyChanged ? "certificate and key" : "")
+                    + ". New connections will use them.");
+            return true;
+        } catch (Exception e) {
+            LOG.warn("Failed to reload TLS certificates. Keeping the current ones. " + e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Checks the PEM files for changes on a background thread.
+     * @param intervalMillis How often to check them, or 0 to never check.
+     */
+    public synchronized void watch(long intervalMillis) {
+        if (intervalMillis > 0 && watcher == null) {
+            watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tls-certificate-watcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            watcher.scheduleWithFixedDelay(this::reload, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private SSLContext newContext(KeyManager[] keyManagers, TrustManager[] trustManagers) throws Exception {
+        SSLContext newContext = SslUtil.newSSLContext(keyManagers, trustManagers);
+        SslUtil.configureSessions(newContext, sessionCacheSize, sessionTimeout);
+        return newContext;
+    }
+}
@@ -27,21 +27,31 @@ import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 import org.bouncycastle.openssl.jcajce.JcePEMDecryptorProviderBuilder;
 
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
 import java.io.FileReader;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.Security;
+import java.security.Signature;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 
 public class SslUtil {
+    // Matching the JDK's own defaults.
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 20480;
+    public static final int DEFAULT_SESSION_TIMEOUT = 86400;
+    public static final int DEFAULT_TICKET_KEY_TIMEOUT = 3600;
+
     /**
      * Create an SslSocketFactory using PEM encrypted certificate files. Mutual SSL Authentication is supported.
      *
@@ -75,95 +85,219 @@ public class SslUtil {
         return getSSLContext(caCrtFile, crtFile, keyFile, password).getServerSocketFactory();
     }
 
-    public static SSLContext getSSLContext(final String caCrtFile, final String crtFile,
-            final String keyFile, final String password) {
-        try {
+    /**
+     * Sets how TLS 1.3 sessions are resumed by every context in this JVM. With session tickets the server keeps
+     * no state. The key that encrypts tickets is replaced after the given number of seconds, and tickets made
+     * with a replaced key are refused once the session timeout has also passed, so a leaked key stops being
+     * useful. Without tickets, resumption uses the server's session cache.
+     * JSSE reads these settings once, so this must be called before the first SSL context is created.
+     *
+     * @param tickets
+     *            whether to use stateless session tickets.
+     * @param ticketKeyTimeout
+     *            seconds before the ticket key is rotated.
+     */
+    public static void configureSessionTickets(final boolean tickets, final int ticketKeyTimeout) {
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", Boolean.toString(tickets));
+        System.setProperty("jdk.tls.client.enableSessionTicketExtension", Boolean.toString(tickets));
+        System.setProperty("jdk.tls.server.statelessKeyTimeout", Integer.toString(Math.max(1, ticketKeyTimeout)));
+    }
 
-            /**
-             * Add BouncyCastle as a Security Provider
-             */
-            Security.addProvider(new BouncyCastleProvider());
+    /**
+     * Sets the size and lifetime of the context's session caches. The server cache holds sessions that clients
+     * can resume when tickets are off, and the client cache holds the tickets or sessions this side can offer
+     * when it reconnects to the same host and port. Resumed handshakes skip certificate verification.
+     *
+     * @param context
+     *            the context to configure.
+     * @param cacheSize
+     *            sessions kept by each cache, or 0 for no limit.
+     * @param timeout
+     *            seconds a session can be resumed for, or 0 for no limit.
+     */
+    public static void configureSessions(final SSLContext context, final int cacheSize, final int timeout) {
+        for (SSLSessionContext sessions : new SSLSessionContext[] { context.getServerSessionContext(),
+                context.getClientSessionContext() }) {
+            sessions.setSessionCacheSize(Math.max(0, cacheSize));
+            sessions.setSessionTimeout(Math.max(0, timeout));
+        }
+    }
 
-            JcaX509CertificateConverter certificateConverter = new JcaX509CertificateConverter().setProvider("BC");
-
-            /**
-             * Load Certificate Authority (CA) certificate
-             */
-            PEMParser reader = new PEMParser(new FileReader(caCrtFile));
-            X509CertificateHolder caCertHolder = (X509CertificateHolder) reader.readObject();
-            reader.close();
-
-            X509Certificate caCert = certificateConverter.getCertificate(caCertHolder);
-
-            /**
-             * Load client certificate
-             */
-            reader = new PEMParser(new FileReader(crtFile));
-            X509CertificateHolder certHolder = (X509CertificateHolder) reader.readObject();
-            reader.close();
-
-            X509Certificate cert = certificateConverter.getCertificate(certHolder);
-
-            /**
-             * Load client private key
-             */
-            reader = new PEMParser(new FileReader(keyFile));
-            Object keyObject = reader.readObject();
-            reader.close();
-
-            JcaPEMKeyConverter keyConverter = new JcaPEMKeyConverter().setProvider("BC");
-
-            PrivateKey privateKey = null;
-
-            if (keyObject instanceof PEMEncryptedKeyPair) {
-                PEMDecryptorProvider provider = new JcePEMDecryptorProviderBuilder().build(password.toCharArray());
-                KeyPair keyPair = keyConverter.getKeyPair(((PEMEncryptedKeyPair) keyObject).decryptKeyPair(provider));
-                privateKey = keyPair.getPrivate();
-            } else if (keyObject instanceof PEMKeyPair) {
-                KeyPair keyPair = keyConverter.getKeyPair((PEMKeyPair) keyObject);
-                privateKey = keyPair.getPrivate();
-            } else if (keyObject instanceof PrivateKeyInfo) {
-                privateKey = keyConverter.getPrivateKey((PrivateKeyInfo) keyObject);
-            } else {
-                throw new Exception(String.format("Unsported type of keyFile %s", keyFile));
-            }
-
-            /**
-             * CA certificate is used to authenticate server
-             */
-            KeyStore caKeyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-            caKeyStore.load(null, null);
-            caKeyStore.setCertificateEntry("ca-certificate", caCert);
-
-            TrustManagerFactory trustManagerFactory = TrustManagerFactory
-                    .getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            trustManagerFactory.init(caKeyStore);
-
-            /**
-             * Client key and certificates are sent to server so it can authenticate the client. (server send
-             * CertificateRequest message in TLS handshake step).
-             */
-            KeyStore clientKeyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-            clientKeyStore.load(null, null);
-            clientKeyStore.setCertificateEntry("certificate", cert);
-            clientKeyStore.setKeyEntry("private-key", privateKey, password.toCharArray(), new Certificate[] { cert });
-
-            KeyManagerFactory keyManagerFactory = KeyManagerFactory
-                    .getInstance(KeyManagerFactory.getDefaultAlgorithm());
-            keyManagerFactory.init(clientKeyStore, password.toCharArray());
-
-            /**
-             * Create SSL socket factory
-             */
-            SSLContext context = SSLContext.getInstance("TLSv1.3");
-            context.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
-
-            return context;
+    /**
+     * Registers BouncyCastle as a security provider unless it already is. Building the provider is expensive, so
+     * it is only done once per JVM.
+     */
+    public static synchronized void registerProvider() {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
 
+    public static SSLContext getSSLContext(final String caCrtFile, final String crtFile,
+            final String keyFile, final String password) {
+        try {
+            return newSSLContext(readKeyManagers(crtFile, keyFile, password), readTrustManagers(caCrtFile));
         } catch (Exception e) {
             e.printStackTrace();
         }
 
         return null;
     }
+
+    /**
+     * Create a TLS 1.3 context from key and trust managers that have already been read.
+     *
+     * @param keyManagers
+     *            managers holding this side's certificate and key.
+     * @param trustManagers
+     *            managers trusting the remote side's CA.
+     * @return
+     */
+    public static SSLContext newSSLContext(final KeyManager[] keyManagers, final TrustManager[] trustManagers)
+            throws GeneralSecurityException {
+        /**
+         * Create SSL socket factory
+         */
+        SSLContext context = SSLContext.getInstance("TLSv1.3");
+        context.init(keyManagers, trustManagers, null);
+        return context;
+    }
+
+    /**
+     * Read trust managers that trust certificates signed by the given CA.
+     *
+     * @param caCrtFile
+     *            CA certificate of remote side.
+     * @return
+     */
+    public static TrustManager[] readTrustManagers(final String caCrtFile) throws Exception {
+        registerProvider();
+
+        JcaX509CertificateConverter certificateConverter = new JcaX509CertificateConverter().setProvider("BC");
+
+        /**
+         * Load Certificate Authority (CA) certificate
+         */
+        PEMParser reader = new PEMParser(new FileReader(caCrtFile));
+        X509CertificateHolder caCertHolder = (X509CertificateHolder) reader.readObject();
+        reader.close();
+
+        X509Certificate caCert = certificateConverter.getCertificate(caCertHolder);
+
+        /**
+         * CA certificate is used to authenticate server
+         */
+        KeyStore caKeyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        caKeyStore.load(null, null);
+        caKeyStore.setCertificateEntry("ca-certificate", caCert);
+
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory
+                .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(caKeyStore);
+        return trustManagerFactory.getTrustManagers();
+    }
+
+    /**
+     * Read key managers holding this side's certificate and private key.
+     *
+     * @param crtFile
+     *            certificate file.
+     * @param keyFile
+     *            key file.
+     * @param password
+     *            password of key file.
+     * @return
+     */
+    public static KeyManager[] readKeyManagers(final String crtFile, final String keyFile, final String password)
+            throws Exception {
+        registerProvider();
+
+        JcaX509CertificateConverter certificateConverter = new JcaX509CertificateConverter().setProvider("BC");
+
+        /**
+         * Load client certificate
+         */
+        PEMParser reader = new PEMParser(new FileReader(crtFile));
+        X509CertificateHolder certHolder = (X509CertificateHolder) reader.readObject();
+        reader.close();
+
+        X509Certificate cert = certificateConverter.getCertificate(certHolder);
+
+        /**
+         * Load client private key
+         */
+        reader = new PEMParser(new FileReader(keyFile));
+        Object keyObject = reader.readObject();
+        reader.close();
+
+        JcaPEMKeyConverter keyConverter = new JcaPEMKeyConverter().setProvider("BC");
+
+        PrivateKey privateKey = null;
+
+        if (keyObject instanceof PEMEncryptedKeyPair) {
+            PEMDecryptorProvider provider = new JcePEMDecryptorProviderBuilder().build(password.toCharArray());
+            KeyPair keyPair = keyConverter.getKeyPair(((PEMEncryptedKeyPair) keyObject).decryptKeyPair(provider));
+            privateKey = keyPair.getPrivate();
+        } else if (keyObject instanceof PEMKeyPair) {
+            KeyPair keyPair = keyConverter.getKeyPair((PEMKeyPair) keyObject);
+            privateKey = keyPair.getPrivate();
+        } else if (keyObject instanceof PrivateKeyInfo) {
+            privateKey = keyConverter.getPrivateKey((PrivateKeyInfo) keyObject);
+        } else {
+            throw new Exception(String.format("Unsported type of keyFile %s", keyFile));
+        }
+        checkKeyMatches(cert, privateKey, crtFile, keyFile);
+
+        /**
+         * Client key and certificates are sent to server so it can authenticate the client. (server send
+         * CertificateRequest message in TLS handshake step).
+         */
+        KeyStore clientKeyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        clientKeyStore.load(null, null);
+        clientKeyStore.setCertificateEntry("certificate", cert);
+        clientKeyStore.setKeyEntry("private-key", privateKey, password.toCharArray(), new Certificate[] { cert });
+
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory
+                .getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(clientKeyStore, password.toCharArray());
+        return keyManagerFactory.getKeyManagers();
+    }
+
+    /**
+     * Checks that a private key belongs to a certificate by signing with one and verifying with the other. A
+     * certificate and key read while they are being replaced one after the other may not match, and every
+     * handshake with them would fail.
+     *
+     * @throws GeneralSecurityException
+     *             if the key does not match the certificate.
+     */
+    static void checkKeyMatches(final X509Certificate cert, final PrivateKey privateKey, final String crtFile,
+            final String keyFile) throws GeneralSecurityException {
+        String algorithm;
+        switch (privateKey.getAlgorithm()) {
+            case "RSA":
+                algorithm = "SHA256withRSA";
+                break;
+            case "EC":
+            case "ECDSA":
+                algorithm = "SHA256withECDSA";
+                break;
+            default:
+                // Ed25519 and Ed448 name their own signatures.
+                algorithm = privateKey.getAlgorithm();
+                break;
+        }
+        byte[] data = "key check".getBytes();
+        Signature signer = Signature.getInstance(algorithm);
+        signer.initSign(privateKey);
+        signer.update(data);
+        byte[] signature = signer.sign();
+        Signature verifier = Signature.getInstance(algorithm);
+        verifier.initVerify(cert.getPublicKey());
+        verifier.update(data);
+        if (!verifier.verify(signature)) {
+            throw new GeneralSecurityException(
+                    String.format("The key in %s does not match the certificate in %s", keyFile, crtFile));
+        }
+    }
 }
\ No newline at end of file